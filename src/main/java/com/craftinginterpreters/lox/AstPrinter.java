@@ -14,7 +14,7 @@ public class AstPrinter implements Visitor<String> {
 
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+        return parenthesize(symbol(expr.operator), expr.left, expr.right);
     }
 
     @Override
@@ -32,7 +32,7 @@ public class AstPrinter implements Visitor<String> {
 
     @Override
     public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
+        return parenthesize(symbol(expr.operator), expr.right);
     }
 
     @Override
@@ -42,7 +42,35 @@ public class AstPrinter implements Visitor<String> {
 
     @Override
     public String visitVariableExpr(Expr.Variable expr) {
-        return expr.name.lexeme;
+        return expr.name;
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        Expr[] exprs = new Expr[1 + expr.arguments.size()];
+        exprs[0] = expr.callee;
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            exprs[1 + i] = expr.arguments.get(i);
+        }
+        return parenthesize("call", exprs);
+    }
+
+    static String symbol(TokenType operator) {
+        return switch (operator) {
+            case COMMA -> ",";
+            case MINUS -> "-";
+            case PLUS -> "+";
+            case SLASH -> "/";
+            case STAR -> "*";
+            case BANG -> "!";
+            case BANG_EQUAL -> "!=";
+            case EQUAL_EQUAL -> "==";
+            case GREATER -> ">";
+            case GREATER_EQUAL -> ">=";
+            case LESS -> "<";
+            case LESS_EQUAL -> "<=";
+            default -> operator.name();
+        };
     }
 
     private String parenthesize(String name, Expr... exprs) {
@@ -0,0 +1,160 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+
+/**
+ * The native functions every program can call. Each public static method is a global
+ * function of the same name; see {@link LoxNative} for the types it may take and return.
+ */
+final class Builtins {
+    private Builtins() {
+    }
+
+    /**
+     * @return the seconds since the epoch
+     */
+    public static double clock() {
+        return System.currentTimeMillis() / 1000.0;
+    }
+
+    public static double sqrt(double x) {
+        return Math.sqrt(x);
+    }
+
+    public static double floor(double x) {
+        return Math.floor(x);
+    }
+
+    public static double abs(double x) {
+        return Math.abs(x);
+    }
+
+    /**
+     * @return the number of characters in a string, without flattening it, of elements
+     *         in an array, or of keys in a map
+     */
+    public static int len(Object value) {
+        if (value instanceof LoxArray array) return array.length;
+        if (value instanceof LoxMap map) return map.size();
+        if (Rope.isString(value)) return ((CharSequence) value).length();
+        throw new LoxNative.Failure("Argument to len must be a string, an array or a map.");
+    }
+
+    /**
+     * @return a value as print would show it
+     */
+    public static String str(Object value) {
+        return Interpreter.stringify(value);
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if the range is not within the string
+     */
+    public static String substring(String string, int start, int end) {
+        return string.substring(start, end);
+    }
+
+    /**
+     * @return an array of numbers, all 0
+     */
+    public static LoxArray numbers(int size) {
+        return new LoxArray.Numbers(size);
+    }
+
+    /**
+     * @return an array of any values, all nil
+     */
+    public static LoxArray array(int size) {
+        return new LoxArray.Values(size);
+    }
+
+    /**
+     * @return an empty map
+     */
+    public static LoxMap map() {
+        return new LoxMap();
+    }
+
+    /**
+     * @return the element of an array at an index, or the value of a key in a map,
+     *         nil if it has none
+     */
+    public static Object get(Object container, Object key) {
+        if (container instanceof LoxArray array) return array.get(LoxArray.index(key));
+        if (container instanceof LoxMap map) return map.get(key);
+        throw new LoxNative.Failure("Can only index arrays and maps.");
+    }
+
+    /**
+     * Stores the element of an array at an index, or the value of a key in a map.
+     *
+     * @return the value stored
+     */
+    public static Object set(Object container, Object key, Object value) {
+        if (container instanceof LoxArray array) {
+            array.set(LoxArray.index(key), value);
+        } else if (container instanceof LoxMap map) {
+            map.put(key, value);
+        } else {
+            throw new LoxNative.Failure("Can only index arrays and maps.");
+        }
+        return value;
+    }
+
+    public static boolean has(LoxMap map, Object key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * @return whether the map had the key
+     */
+    public static boolean remove(LoxMap map, Object key) {
+        return map.remove(key);
+    }
+
+    /**
+     * @return an array of the keys of a map, in no particular order
+     */
+    public static LoxArray keys(LoxMap map) {
+        return map.keys();
+    }
+
+    /**
+     * Appends a value to an array.
+     *
+     * @return the new length
+     */
+    public static int push(LoxArray array, Object value) {
+        array.add(value);
+        return array.length;
+    }
+
+    /**
+     * Opens a file for reading, memory-mapped.
+     */
+    public static LoxFile open(String path) {
+        try {
+            return new LoxFile(path, LoxFile.WINDOW_SIZE);
+        } catch (IOException e) {
+            throw new LoxNative.Failure("Could not open file " + path + ".");
+        }
+    }
+
+    /**
+     * @return the next line of a file, or nil at its end
+     */
+    public static CharSequence readLine(LoxFile file) {
+        return file.readLine();
+    }
+
+    /**
+     * @return the next record of a number of bytes, or nil at the end of the file
+     */
+    public static CharSequence readRecord(LoxFile file, int length) {
+        return file.readRecord(length);
+    }
+
+    public static void close(LoxFile file) {
+        file.close();
+    }
+}
@@ -0,0 +1,42 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A program started with {@link Interpreter#start} that runs a slice of statements
+ * at a time. Between slices it holds no thread, so a small pool of threads can take
+ * turns driving many programs; it may be resumed from any thread, one at a time.
+ * Every slice runs in the {@link Session} of the thread that started the program,
+ * so its output and errors go where that thread's would.
+ */
+final class Continuation {
+    private final Interpreter interpreter;
+    private final int slice;
+    private final Session session;
+    private volatile boolean done = false;
+
+    Continuation(Interpreter interpreter, int slice, Session session) {
+        this.interpreter = interpreter;
+        this.slice = slice;
+        this.session = session;
+    }
+
+    /**
+     * Runs the next slice of the program.
+     *
+     * @return true when the program has finished
+     */
+    synchronized boolean resume() {
+        if (!done) {
+            Session previous = Lox.useSession(session);
+            try {
+                done = interpreter.resume(slice);
+            } finally {
+                Lox.useSession(previous);
+            }
+        }
+        return done;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+}
@@ -19,27 +19,27 @@ public class Environment {
         values.put(name, value);
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    Object get(String name, int line) {
+        if (values.containsKey(name)) {
+            return values.get(name);
         }
         if (enclosing != null) {
-            return enclosing.get(name);
+            return enclosing.get(name, line);
         }
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        throw new RuntimeError(line, "Undefined variable '" + name + "'.");
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+    void assign(String name, int line, Object value) {
+        if (values.containsKey(name)) {
+            values.put(name, value);
             return;
         }
 
         if (enclosing != null) {
-            enclosing.assign(name, value);
+            enclosing.assign(name, line, value);
             return;
         }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        throw new RuntimeError(line, "Undefined variable '" + name + "'.");
     }
 }
@@ -3,6 +3,15 @@ package com.craftinginterpreters.lox;
 import java.util.List;
 
 abstract public class Expr {
+  static final int ASSIGN = 0;
+  static final int BINARY = 1;
+  static final int GROUPING = 2;
+  static final int LITERAL = 3;
+  static final int UNARY = 4;
+  static final int TERNARY = 5;
+  static final int VARIABLE = 6;
+  static final int CALL = 7;
+
   interface Visitor<R> {
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
@@ -11,11 +20,14 @@ abstract public class Expr {
     R visitUnaryExpr(Unary expr);
     R visitTernaryExpr(Ternary expr);
     R visitVariableExpr(Variable expr);
+    R visitCallExpr(Call expr);
   }
 
-  static public class Assign extends Expr {
-    Assign(Token name, Expr value) {
+  static final public class Assign extends Expr {
+    Assign(String name, int line, Expr value) {
+      super(ASSIGN);
       this.name = name;
+      this.line = line;
       this.value = value;
     }
 
@@ -24,13 +36,18 @@ abstract public class Expr {
       return visitor.visitAssignExpr(this);
     }
 
-    final Token name;
+    final String name;
+    final int line;
     final Expr value;
+    int slot = -1;
+    boolean calls = false;
   }
-  static public class Binary extends Expr {
-    Binary(Expr left, Token operator, Expr right) {
+  static final public class Binary extends Expr {
+    Binary(Expr left, TokenType operator, int line, Expr right) {
+      super(BINARY);
       this.left = left;
       this.operator = operator;
+      this.line = line;
       this.right = right;
     }
 
@@ -40,11 +57,15 @@ abstract public class Expr {
     }
 
     final Expr left;
-    final Token operator;
+    final TokenType operator;
+    final int line;
     final Expr right;
+    int operandTypes = 0;
+    boolean calls = false;
   }
-  static public class Grouping extends Expr {
+  static final public class Grouping extends Expr {
     Grouping(Expr expression) {
+      super(GROUPING);
       this.expression = expression;
     }
 
@@ -54,9 +75,11 @@ abstract public class Expr {
     }
 
     final Expr expression;
+    boolean calls = false;
   }
-  static public class Literal extends Expr {
+  static final public class Literal extends Expr {
     Literal(Object value) {
+      super(LITERAL);
       this.value = value;
     }
 
@@ -67,9 +90,11 @@ abstract public class Expr {
 
     final Object value;
   }
-  static public class Unary extends Expr {
-    Unary(Token operator, Expr right) {
+  static final public class Unary extends Expr {
+    Unary(TokenType operator, int line, Expr right) {
+      super(UNARY);
       this.operator = operator;
+      this.line = line;
       this.right = right;
     }
 
@@ -78,11 +103,15 @@ abstract public class Expr {
       return visitor.visitUnaryExpr(this);
     }
 
-    final Token operator;
+    final TokenType operator;
+    final int line;
     final Expr right;
+    int operandTypes = 0;
+    boolean calls = false;
   }
-  static public class Ternary extends Expr {
+  static final public class Ternary extends Expr {
     Ternary(Expr condition, Expr left, Expr right) {
+      super(TERNARY);
       this.condition = condition;
       this.left = left;
       this.right = right;
@@ -96,10 +125,13 @@ abstract public class Expr {
     final Expr condition;
     final Expr left;
     final Expr right;
+    boolean calls = false;
   }
-  static public class Variable extends Expr {
-    Variable(Token name) {
+  static final public class Variable extends Expr {
+    Variable(String name, int line) {
+      super(VARIABLE);
       this.name = name;
+      this.line = line;
     }
 
     @Override
@@ -107,8 +139,50 @@ abstract public class Expr {
       return visitor.visitVariableExpr(this);
     }
 
-    final Token name;
+    final String name;
+    final int line;
+    int slot = -1;
+    Stmt.Function function = null;
+  }
+  static final public class Call extends Expr {
+    Call(Expr callee, int line, List<Expr> arguments) {
+      super(CALL);
+      this.callee = callee;
+      this.line = line;
+      this.arguments = arguments;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCallExpr(this);
+    }
+
+    final Expr callee;
+    final int line;
+    final List<Expr> arguments;
+  }
+
+  final int kind;
+
+  Expr(int kind) {
+    this.kind = kind;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
+
+  // Same as expr.accept(visitor), but selects the visitor method with
+  // a switch on the kind tag instead of a virtual call on the node
+  static <R> R dispatch(Visitor<R> visitor, Expr expr) {
+    return switch (expr.kind) {
+      case ASSIGN -> visitor.visitAssignExpr((Assign) expr);
+      case BINARY -> visitor.visitBinaryExpr((Binary) expr);
+      case GROUPING -> visitor.visitGroupingExpr((Grouping) expr);
+      case LITERAL -> visitor.visitLiteralExpr((Literal) expr);
+      case UNARY -> visitor.visitUnaryExpr((Unary) expr);
+      case TERNARY -> visitor.visitTernaryExpr((Ternary) expr);
+      case VARIABLE -> visitor.visitVariableExpr((Variable) expr);
+      case CALL -> visitor.visitCallExpr((Call) expr);
+      default -> throw new IllegalStateException("Unknown kind " + expr.kind);
+    };
+  }
 }
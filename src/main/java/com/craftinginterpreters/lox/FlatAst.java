@@ -0,0 +1,232 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A program encoded as flat arrays instead of linked {@link Expr} and {@link Stmt} objects.
+ * Every node is a run of ints in {@link #code}: an opcode followed by its operands.
+ * Children are referred to by the index of their first int, literal values by an
+ * index into {@link #constants}; variable names are constants too, and operators are
+ * stored as {@link TokenType} ordinals.
+ * <p>
+ * Node layouts:
+ * <pre>
+ *   LITERAL    constant
+ *   VARIABLE   name line slot
+ *   ASSIGN     name line slot value
+ *   BINARY     operator line left right
+ *   UNARY      operator line right
+ *   GROUPING   expression
+ *   TERNARY    condition left right
+ *   CALL       line callee count argument...
+ *   EXPRESSION expression
+ *   PRINT      expression
+ *   VAR        name slot initializer   (initializer is -1 when absent)
+ *   BLOCK      firstSlot declarations count statement...
+ *   WHILE      condition body
+ *   FUNCTION   function slot          (function is the constant of a {@link Function})
+ *   RETURN     value                  (value is -1 when absent)
+ * </pre>
+ * Slots are the ones assigned by the {@link Resolver}, relative to the frame of the
+ * function call they are in; -1 means a global.
+ */
+final class FlatAst {
+    static final int LITERAL = 0;
+    static final int VARIABLE = 1;
+    static final int ASSIGN = 2;
+    static final int BINARY = 3;
+    static final int UNARY = 4;
+    static final int GROUPING = 5;
+    static final int TERNARY = 6;
+    static final int EXPRESSION = 7;
+    static final int PRINT = 8;
+    static final int VAR = 9;
+    static final int BLOCK = 10;
+    static final int WHILE = 11;
+    static final int CALL = 12;
+    static final int FUNCTION = 13;
+    static final int RETURN = 14;
+
+    /**
+     * A function declared in a flat program, which is its value at run time.
+     *
+     * @param body the index of the BLOCK node of the body
+     */
+    record Function(String name, int arity, int frameSize, int body) {
+        @Override
+        public String toString() {
+            return "<fn " + name + ">";
+        }
+    }
+
+    final int[] code;
+    final Object[] constants;
+    // Indexes of the top-level statements, in program order
+    final int[] roots;
+
+    private FlatAst(int[] code, Object[] constants, int[] roots) {
+        this.code = code;
+        this.constants = constants;
+        this.roots = roots;
+    }
+
+    /**
+     * Resolves and encodes a parsed program.
+     *
+     * @param statements the output of {@link Parser#parse()}, free of parse errors
+     * @return the flat encoding of the program
+     */
+    static FlatAst encode(List<Stmt> statements) {
+        new Resolver().resolve(statements);
+
+        Encoder encoder = new Encoder();
+        int[] roots = new int[statements.size()];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = statements.get(i).accept(encoder);
+        }
+        return new FlatAst(
+                Arrays.copyOf(encoder.code, encoder.size),
+                encoder.constants.toArray(),
+                roots);
+    }
+
+    /**
+     * Appends nodes in post-order, so children are always encoded before their parent.
+     */
+    private static class Encoder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        private int[] code = new int[256];
+        private int size = 0;
+        private final List<Object> constants = new ArrayList<>();
+        // The constant of each function declaration
+        private final Map<Stmt.Function, Integer> functions = new IdentityHashMap<>();
+
+        private int node(int... operands) {
+            if (size + operands.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(size + operands.length, code.length * 2));
+            }
+            int index = size;
+            System.arraycopy(operands, 0, code, size, operands.length);
+            size += operands.length;
+            return index;
+        }
+
+        private int constant(Object value) {
+            constants.add(value);
+            return constants.size() - 1;
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            int value = expr.value.accept(this);
+            return node(ASSIGN, constant(expr.name), expr.line, expr.slot, value);
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            int left = expr.left.accept(this);
+            int right = expr.right.accept(this);
+            return node(BINARY, expr.operator.ordinal(), expr.line, left, right);
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return node(GROUPING, expr.expression.accept(this));
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            return node(LITERAL, constant(expr.value));
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            int right = expr.right.accept(this);
+            return node(UNARY, expr.operator.ordinal(), expr.line, right);
+        }
+
+        @Override
+        public Integer visitTernaryExpr(Expr.Ternary expr) {
+            int condition = expr.condition.accept(this);
+            int left = expr.left.accept(this);
+            int right = expr.right.accept(this);
+            return node(TERNARY, condition, left, right);
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            if (expr.function != null) {
+                // The constant of the declaration, which comes before every reference to it
+                return node(LITERAL, functions.get(expr.function));
+            }
+            return node(VARIABLE, constant(expr.name), expr.line, expr.slot);
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            int[] operands = new int[4 + expr.arguments.size()];
+            operands[0] = CALL;
+            operands[1] = expr.line;
+            operands[2] = expr.callee.accept(this);
+            operands[3] = expr.arguments.size();
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                operands[4 + i] = expr.arguments.get(i).accept(this);
+            }
+            return node(operands);
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            int[] operands = new int[4 + stmt.statements.size()];
+            operands[0] = BLOCK;
+            operands[1] = stmt.firstSlot;
+            operands[2] = stmt.declarations;
+            operands[3] = stmt.statements.size();
+            for (int i = 0; i < stmt.statements.size(); i++) {
+                operands[4 + i] = stmt.statements.get(i).accept(this);
+            }
+            return node(operands);
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            return node(EXPRESSION, stmt.expression.accept(this));
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            return node(PRINT, stmt.expression.accept(this));
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            int initializer = stmt.initializer == null ? -1 : stmt.initializer.accept(this);
+            return node(VAR, constant(stmt.name), stmt.slot, initializer);
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            int condition = stmt.condition.accept(this);
+            int body = stmt.body.accept(this);
+            return node(WHILE, condition, body);
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt) {
+            // Reserved before the body, which may refer to the function
+            int constant = constant(null);
+            functions.put(stmt, constant);
+            int body = stmt.body.accept(this);
+            constants.set(constant, new Function(stmt.name, stmt.params.size(), stmt.frameSize, body));
+            return node(FUNCTION, constant, stmt.slot);
+        }
+
+        @Override
+        public Integer visitReturnStmt(Stmt.Return stmt) {
+            return node(RETURN, stmt.value == null ? -1 : stmt.value.accept(this));
+        }
+    }
+}
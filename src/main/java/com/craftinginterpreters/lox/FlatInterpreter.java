@@ -0,0 +1,194 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+import static com.craftinginterpreters.lox.FlatAst.*;
+
+/**
+ * Executes a {@link FlatAst} by walking its arrays by index.
+ * Operators behave exactly as in {@link Interpreter}, whose helpers it shares;
+ * globals live in an {@link Environment} and block-local variables on a value stack,
+ * in the frame of the function call they are in.
+ */
+class FlatInterpreter {
+    private static final TokenType[] OPERATORS = TokenType.values();
+
+    private final Environment globals = new Environment();
+    private final Printer printer = new Printer();
+    private Object[] stack = new Object[64];
+    // Base of the slots of the code being executed, and the first slot above every active block
+    private int frame = 0;
+    private int top = 0;
+    // The value of the return statement that has just run
+    private Object returnValue = null;
+
+    private int[] code;
+    private Object[] constants;
+
+    FlatInterpreter() {
+        for (LoxNative function : Interpreter.BUILTINS) {
+            globals.define(function.name, function);
+        }
+    }
+
+    void interpret(FlatAst program) {
+        code = program.code;
+        constants = program.constants;
+        try {
+            for (int root : program.roots) {
+                execute(root);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    /**
+     * @return true if a return statement ran, which ends every statement up to the call
+     */
+    private boolean execute(int node) {
+        switch (code[node]) {
+            case EXPRESSION -> evaluate(code[node + 1]);
+            case PRINT -> printer.print(evaluate(code[node + 1]));
+            case VAR -> {
+                int initializer = code[node + 3];
+                Object value = initializer < 0 ? null : evaluate(initializer);
+                int slot = code[node + 2];
+                if (slot >= 0) {
+                    stack[frame + slot] = value;
+                } else {
+                    globals.define((String) constants[code[node + 1]], value);
+                }
+            }
+            case BLOCK -> {
+                return executeBlock(node);
+            }
+            case WHILE -> {
+                while (Interpreter.isTruthy(evaluate(code[node + 1]))) {
+                    if (execute(code[node + 2])) return true;
+                }
+            }
+            case FUNCTION -> {
+                Object function = constants[code[node + 1]];
+                int slot = code[node + 2];
+                if (slot >= 0) {
+                    stack[frame + slot] = function;
+                } else {
+                    globals.define(((Function) function).name(), function);
+                }
+            }
+            case RETURN -> {
+                int value = code[node + 1];
+                returnValue = value < 0 ? null : evaluate(value);
+                return true;
+            }
+            default -> throw new IllegalStateException("Not a statement: " + code[node]);
+        }
+        return false;
+    }
+
+    private boolean executeBlock(int node) {
+        int start = frame + code[node + 1];
+        int end = start + code[node + 2];
+        int count = code[node + 3];
+        ensureCapacity(end);
+        int oldTop = top;
+        top = Math.max(top, end);
+        try {
+            for (int i = 0; i < count; i++) {
+                if (execute(code[node + 4 + i])) return true;
+            }
+            return false;
+        } finally {
+            Arrays.fill(stack, start, end, null);
+            top = oldTop;
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+        }
+    }
+
+    /**
+     * Evaluates the arguments into the slots above every active block, which become
+     * the first slots of the frame the body runs in.
+     */
+    private Object call(int node) {
+        Object callee = evaluate(code[node + 2]);
+        int count = code[node + 3];
+        int base = top;
+        try {
+            for (int i = 0; i < count; i++) {
+                Object argument = evaluate(code[node + 4 + i]);
+                ensureCapacity(top + 1);
+                stack[top++] = argument;
+            }
+            int line = code[node + 1];
+            if (callee instanceof LoxNative function) {
+                return function.call(Arrays.copyOfRange(stack, base, top), line);
+            }
+            if (!(callee instanceof Function function)) {
+                throw new RuntimeError(line, "Can only call functions and classes.");
+            }
+            if (count != function.arity()) {
+                throw new RuntimeError(line, "Expected " + function.arity() + " arguments but got " + count + ".");
+            }
+            ensureCapacity(base + function.frameSize());
+            int callerFrame = frame;
+            frame = base;
+            try {
+                executeBlock(function.body());
+            } catch (StackOverflowError error) {
+                throw new RuntimeError(line, "Stack overflow.");
+            } finally {
+                frame = callerFrame;
+            }
+            Object value = returnValue;
+            returnValue = null;
+            return value;
+        } finally {
+            Arrays.fill(stack, base, top, null);
+            top = base;
+        }
+    }
+
+    private Object evaluate(int node) {
+        switch (code[node]) {
+            case LITERAL:
+                return constants[code[node + 1]];
+            case VARIABLE: {
+                int slot = code[node + 3];
+                return slot >= 0 ? stack[frame + slot] : globals.get((String) constants[code[node + 1]], code[node + 2]);
+            }
+            case ASSIGN: {
+                Object value = evaluate(code[node + 4]);
+                int slot = code[node + 3];
+                if (slot >= 0) {
+                    stack[frame + slot] = value;
+                } else {
+                    globals.assign((String) constants[code[node + 1]], code[node + 2], value);
+                }
+                return value;
+            }
+            case BINARY: {
+                Object left = evaluate(code[node + 3]);
+                Object right = evaluate(code[node + 4]);
+                return Interpreter.binary(OPERATORS[code[node + 1]], code[node + 2], left, right);
+            }
+            case UNARY:
+                return Interpreter.unary(OPERATORS[code[node + 1]], code[node + 2], evaluate(code[node + 3]));
+            case GROUPING:
+                return evaluate(code[node + 1]);
+            case TERNARY: {
+                boolean condition = Interpreter.isTruthy(evaluate(code[node + 1]));
+                return evaluate(code[node + (condition ? 2 : 3)]);
+            }
+            case CALL:
+                return call(node);
+            default:
+                throw new IllegalStateException("Not an expression: " + code[node]);
+        }
+    }
+}
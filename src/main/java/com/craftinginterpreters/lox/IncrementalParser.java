@@ -0,0 +1,353 @@
+package com.craftinginterpreters.lox;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static com.craftinginterpreters.lox.TokenType.EOF;
+
+/**
+ * Keeps the tokens and top-level statements of a source that is edited a piece at a time.
+ * An edit is relexed from the last token that starts before it up to the first token
+ * that starts at the same place in the unchanged text as before, and only the top-level
+ * statements around the relexed tokens are reparsed. Every other token and statement,
+ * with all of its subtrees, is reused.
+ * <p>
+ * An edit that adds or removes lines does not rewrite what comes after it either. The
+ * line of each token is kept in a table that an edit shifts lazily, and a stored token
+ * whose own line is out of date is only replaced when it is read. Likewise a top-level
+ * statement that has moved to another line is only reparsed, so that its nodes record
+ * their new lines, when it is read. The text and the token and statement lists are
+ * spliced with bulk copies.
+ */
+final class IncrementalParser {
+    // How far past the end of a token the scanner may look to decide where it ends
+    private static final int LOOKAHEAD = 2;
+    // Characters after an edit that are scanned at first
+    private static final int WINDOW = 256;
+
+    private final StringBuilder source = new StringBuilder();
+    // Ends with EOF; the line of a token is the one in tokenLines, see token
+    private final List<Token> tokens = new ArrayList<>();
+    // Offset and line at which each token starts, in step with tokens
+    private final Positions offsets = new Positions();
+    private final Positions lines = new Positions();
+    // The line each token records, which for a string that spans lines is its last one
+    private final Positions tokenLines = new Positions();
+    // The tokens with their lines brought up to date as they are read
+    private final List<Token> view = new AbstractList<>() {
+        @Override
+        public Token get(int index) {
+            return token(index);
+        }
+
+        @Override
+        public int size() {
+            return tokens.size();
+        }
+    };
+    private final List<Stmt> statements = new ArrayList<>();
+    // Index of the first token of each top-level statement, in step with statements
+    private final Positions starts = new Positions();
+    // The line each top-level statement started on when it was parsed, in step with statements
+    private final Positions parsedLines = new Positions();
+    // The statements with their lines brought up to date as they are read
+    private final List<Stmt> statementView = new AbstractList<>() {
+        @Override
+        public Stmt get(int index) {
+            return statement(index);
+        }
+
+        @Override
+        public int size() {
+            return statements.size();
+        }
+    };
+
+    /**
+     * Scans and parses a whole source.
+     *
+     * @param source the initial source
+     */
+    IncrementalParser(String source) {
+        tokens.add(new Token(EOF, "", null, 1));
+        offsets.splice(0, 0, new int[] {0}, 1, 0);
+        lines.splice(0, 0, new int[] {1}, 1, 0);
+        tokenLines.splice(0, 0, new int[] {1}, 1, 0);
+        edit(0, 0, source);
+    }
+
+    String source() {
+        return source.toString();
+    }
+
+    List<Token> tokens() {
+        return view;
+    }
+
+    List<Stmt> statements() {
+        return statementView;
+    }
+
+    private Token token(int index) {
+        Token token = tokens.get(index);
+        int line = tokenLines.get(index);
+        if (token.line != line) {
+            token = new Token(token.type, token.lexeme, token.literal, line);
+            tokens.set(index, token);
+        }
+        return token;
+    }
+
+    private Stmt statement(int index) {
+        Stmt statement = statements.get(index);
+        int start = starts.get(index);
+        int line = lines.get(start);
+        // A statement with a syntax error stays null wherever it moves
+        if (statement != null && parsedLines.get(index) != line) {
+            statement = new Parser(view).parseDeclaration(start);
+            statements.set(index, statement);
+            parsedLines.set(index, line);
+        }
+        return statement;
+    }
+
+    /**
+     * Replaces part of the source and brings the tokens and statements up to date.
+     * Syntax errors in the reparsed statements are reported as usual and leave
+     * {@code null} statements.
+     *
+     * @param offset where the edit starts
+     * @param removed the number of characters removed at that offset
+     * @param inserted the text inserted in their place
+     * @return the statements of the edited source
+     */
+    List<Stmt> edit(int offset, int removed, String inserted) {
+        Objects.checkFromIndexSize(offset, removed, source.length());
+        source.replace(offset, offset + removed, inserted);
+        int delta = inserted.length() - removed;
+
+        // Relex from the last token that starts before the edit, since the edit may extend
+        // it, or earlier if the scanner looked into the edited text to end a token
+        int first = offsets.search(offset) - 1;
+        while (first > 0 && offsets.get(first - 1) + tokens.get(first - 1).lexeme.length() + LOOKAHEAD > offset) {
+            first--;
+        }
+        int from = first < 0 ? 0 : offsets.get(first);
+        int fromLine = first < 0 ? 1 : lines.get(first);
+        first = Math.max(first, 0);
+
+        List<Token> relexed = new ArrayList<>();
+        int[] relexedOffsets = new int[8];
+        int[] relexedLines = new int[8];
+        // First old token that is kept; the EOF token at the latest
+        int kept;
+        int lineDelta;
+        Scanner scanner;
+        // Only a window of the text is copied out for the scanner, widened whenever a
+        // token, string or comment may continue past its end
+        scan:
+        for (int window = WINDOW; ; window *= 2) {
+            int end = (int) Math.min(source.length(), (long) offset + inserted.length() + window);
+            boolean partial = end < source.length();
+            scanner = new Scanner(source.substring(from, end), 0, fromLine, partial);
+            relexed.clear();
+            kept = first;
+            while (true) {
+                Token token = scanner.nextToken();
+                int at = from + scanner.tokenOffset();
+                if (partial && (token.type == EOF || at + token.lexeme.length() + LOOKAHEAD > end)) {
+                    continue scan;
+                }
+                if (at >= offset + inserted.length()) {
+                    // Past the edit the text is unchanged, so from an old token boundary on
+                    // the old tokens are what scanning would produce
+                    int oldAt = at - delta;
+                    while (offsets.get(kept) < oldAt) {
+                        kept++;
+                    }
+                    if (offsets.get(kept) == oldAt && oldAt >= offset + removed) {
+                        lineDelta = scanner.tokenLine() - lines.get(kept);
+                        break scan;
+                    }
+                }
+
+                if (relexed.size() == relexedOffsets.length) {
+                    relexedOffsets = Arrays.copyOf(relexedOffsets, relexed.size() * 2);
+                    relexedLines = Arrays.copyOf(relexedLines, relexed.size() * 2);
+                }
+                relexedOffsets[relexed.size()] = at;
+                relexedLines[relexed.size()] = scanner.tokenLine();
+                relexed.add(token);
+            }
+        }
+        scanner.reportErrors();
+
+        // Relexed tokens before the edit usually come out the same
+        int same = 0;
+        while (same < relexed.size() && first + same < kept
+                && relexedOffsets[same] == offsets.get(first + same)
+                && relexedLines[same] == lines.get(first + same)
+                && sameToken(relexed.get(same), tokens.get(first + same))) {
+            same++;
+        }
+        if (same > 0) {
+            relexed.subList(0, same).clear();
+            relexedOffsets = Arrays.copyOfRange(relexedOffsets, same, same + relexed.size());
+            relexedLines = Arrays.copyOfRange(relexedLines, same, same + relexed.size());
+            first += same;
+        }
+
+        offsets.splice(first, kept, relexedOffsets, relexed.size(), delta);
+        lines.splice(first, kept, relexedLines, relexed.size(), lineDelta);
+        int[] relexedTokenLines = new int[relexed.size()];
+        for (int i = 0; i < relexedTokenLines.length; i++) {
+            relexedTokenLines[i] = relexed.get(i).line;
+        }
+        tokenLines.splice(first, kept, relexedTokenLines, relexedTokenLines.length, lineDelta);
+        replace(tokens, first, kept, relexed);
+
+        reparse(first, first + relexed.size(), relexed.size() - (kept - first));
+        return statements();
+    }
+
+    /**
+     * Reparses the top-level statements that overlap the relexed tokens.
+     *
+     * @param first the index of the first relexed token
+     * @param end the index after the last relexed token
+     * @param shift how much the indexes of the tokens after them have moved
+     */
+    private void reparse(int first, int end, int shift) {
+        // The statement that contains the first relexed token
+        int from = starts.search(first + 1) - 1;
+        // Error recovery looks at the token after a statement that failed to parse
+        if (from > 0 && starts.get(from) == first && statements.get(from - 1) == null) {
+            from--;
+        }
+        int position = from < 0 ? 0 : starts.get(from);
+        from = Math.max(from, 0);
+
+        Parser parser = new Parser(view);
+        List<Stmt> reparsed = new ArrayList<>();
+        int[] reparsedStarts = new int[8];
+        int[] reparsedLines = new int[8];
+        int statementCount = statements.size();
+        // First old statement that is kept
+        int kept = from;
+        while (true) {
+            if (position >= end) {
+                int oldPosition = position - shift;
+                while (kept < statementCount && starts.get(kept) < oldPosition) {
+                    kept++;
+                }
+                if (kept < statementCount && starts.get(kept) == oldPosition) break;
+            }
+            if (tokens.get(position).type == EOF) {
+                kept = statementCount;
+                break;
+            }
+
+            if (reparsed.size() == reparsedStarts.length) {
+                reparsedStarts = Arrays.copyOf(reparsedStarts, reparsed.size() * 2);
+                reparsedLines = Arrays.copyOf(reparsedLines, reparsed.size() * 2);
+            }
+            reparsedStarts[reparsed.size()] = position;
+            reparsedLines[reparsed.size()] = lines.get(position);
+            reparsed.add(parser.parseDeclaration(position));
+            position = parser.position();
+        }
+
+        starts.splice(from, kept, reparsedStarts, reparsed.size(), shift);
+        parsedLines.splice(from, kept, reparsedLines, reparsed.size(), 0);
+        replace(statements, from, kept, reparsed);
+    }
+
+    /**
+     * Replaces {@code list[from, to)} with {@code replacement}, moving the elements
+     * after them only if the number of elements changes.
+     */
+    private static <T> void replace(List<T> list, int from, int to, List<T> replacement) {
+        int common = Math.min(to - from, replacement.size());
+        for (int i = 0; i < common; i++) {
+            list.set(from + i, replacement.get(i));
+        }
+        if (common < to - from) {
+            list.subList(from + common, to).clear();
+        } else if (common < replacement.size()) {
+            list.addAll(from + common, replacement.subList(common, replacement.size()));
+        }
+    }
+
+    // Lines are compared in the line table
+    private static boolean sameToken(Token a, Token b) {
+        return a.type == b.type && a.lexeme.equals(b.lexeme);
+    }
+
+    /**
+     * An ascending list of ints, such as token offsets, that an edit moves from some
+     * index on. Like the gap of a gap buffer, that move is kept pending and applied
+     * only to the elements between one edit and the next, so typing in one place
+     * does not touch every position after it.
+     */
+    private static final class Positions {
+        private int[] values = new int[16];
+        private int size = 0;
+        // values[i] + shift is the real value for every i >= shiftFrom
+        private int shiftFrom = 0;
+        private int shift = 0;
+
+        int get(int index) {
+            return index >= shiftFrom ? values[index] + shift : values[index];
+        }
+
+        void set(int index, int value) {
+            values[index] = index >= shiftFrom ? value - shift : value;
+        }
+
+        /**
+         * @return the number of elements less than {@code value}
+         */
+        int search(int value) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (get(middle) < value) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Replaces the elements {@code [from, to)} with the first {@code count}
+         * elements of {@code replacement}, and adds {@code delta} to the elements after them.
+         */
+        void splice(int from, int to, int[] replacement, int count, int delta) {
+            // Make the pending shift start right after the replaced elements
+            for (; shiftFrom < to; shiftFrom++) {
+                values[shiftFrom] += shift;
+            }
+            for (; shiftFrom > to; shiftFrom--) {
+                values[shiftFrom - 1] -= shift;
+            }
+
+            int newSize = size - (to - from) + count;
+            if (newSize > values.length) {
+                values = Arrays.copyOf(values, Math.max(newSize, values.length * 2));
+            }
+            if (count != to - from) {
+                System.arraycopy(values, to, values, from + count, size - to);
+            }
+            System.arraycopy(replacement, 0, values, from, count);
+            size = newSize;
+            shiftFrom = from + count;
+            shift += delta;
+        }
+    }
+}
@@ -1,105 +1,826 @@
 package com.craftinginterpreters.lox;
 
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private Environment environment = new Environment();
+    // Expressions nested deeper than this are evaluated with an explicit stack
+    private static final int MAX_RECURSION_DEPTH = 200;
+    // Calls nested deeper than this are a stack overflow. Past MAX_DIRECT_CALLS they take
+    // no Java stack, so this only keeps runaway recursion from filling the heap
+    static final int MAX_CALL_DEPTH = 100_000;
+    // Calls nested deeper than this on the Java stack are made on the block stack instead
+    private static final int MAX_DIRECT_CALLS = 200;
+    // Returned by evaluateNodes for an expression that waits for a call to return
+    private static final Object SUSPENDED = new Object();
+    // Iterations after which a loop is compiled, see backEdge
+    static final int COMPILE_THRESHOLD = 1_000;
+    // Bound once, as they hold nothing of an interpreter
+    static final List<LoxNative> BUILTINS = LoxNative.bindAll(MethodHandles.lookup(), Builtins.class);
 
+    final Environment globals = new Environment();
+    private Environment environment = globals;
+    // Block-local variables live here, addressed by the slots assigned by the Resolver;
+    // replaced by a larger array when it fills up
+    Object[] stack = new Object[64];
+    // Base of the slots of the code being executed: 0 at the top level, and the first
+    // argument in a function call
+    private int frame = 0;
+    // First slot that is not in use by any active block or call
+    private int stackTop = 0;
+    final Printer printer = new Printer();
+    // Runs the loops that have been compiled, on the same globals and value stack
+    private final RegisterVm vm = new RegisterVm(this);
+    int compileThreshold = COMPILE_THRESHOLD;
+
+    // Statement lists being executed, innermost last. Blocks are entered by pushing
+    // a frame here rather than by recursing, so their nesting is limited only by the heap.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<Stmt>[] blockStatements = new List[16];
+    // Index of the next statement to execute in each list
+    private int[] blockNext = new int[16];
+    // Range of value stack slots owned by each block, and the stack top to restore
+    private int[] blockStart = new int[16];
+    private int[] blockEnd = new int[16];
+    private int[] blockOldTop = new int[16];
+    // Environment to restore on exit, or null when the block did not create one
+    private Environment[] blockEnvironment = new Environment[16];
+    // The loop whose body the list is, which runs it again while its condition holds
+    private Stmt.While[] blockLoop = new Stmt.While[16];
+    private int blockCount = 0;
+    // The number of blocks up to the body of the function being called, which a return
+    // pops back down to
+    private int callBase = 0;
+    // The value of the return statement that has just run, until its call picks it up
+    private Object returnValue = null;
+    // For the body of a function, which is the frame of its call, the frame and call
+    // base of the caller; -1 for any other block
+    private int[] blockFrame = new int[16];
+    private int[] blockCallBase = new int[16];
+    // The statement whose expression made the call and goes on once it returns, or null
+    // when the call runs to completion, and the first node of that expression
+    private Stmt[] blockCaller = new Stmt[16];
+    private int[] blockNodes = new int[16];
+    // The number of calls on the block stack
+    private int callDepth = 0;
+
+    // Expressions evaluated with explicit stacks, innermost last, how far each has got,
+    // and the values of evaluated operands that have not been consumed yet. An expression
+    // waiting for a call keeps its nodes and operands here until the call returns.
+    private Expr[] nodes = new Expr[64];
+    private int[] steps = new int[64];
+    private int nodeCount = 0;
+    private Object[] operands = new Object[64];
+    private int operandCount = 0;
+
+    // Number of evaluate calls currently on the Java stack
+    private int depth = 0;
+    // Number of calls currently running to completion on the Java stack
+    private int directCalls = 0;
+    // Statements left before a sliced run pauses; effectively unlimited otherwise
+    private long budget = Long.MAX_VALUE;
+    // Whether the program runs in slices: the vm cannot pause, and a call can only pause
+    // when it runs on the block stack
+    private boolean sliced = false;
+
+    public Interpreter() {
+        for (LoxNative function : BUILTINS) {
+            globals.define(function.name, function);
+        }
+    }
+
+    /**
+     * Defines every public static method a class declares as a global function of the
+     * same name, which calls it through a method handle bound here.
+     *
+     * @param lookup a lookup that can access the methods
+     * @throws IllegalArgumentException if a method takes or returns a type Lox cannot
+     *         pass, or two have the same name
+     */
+    public void defineNatives(MethodHandles.Lookup lookup, Class<?> host) {
+        for (LoxNative function : LoxNative.bindAll(lookup, host)) {
+            globals.define(function.name, function);
+        }
+    }
 
     void interpret(List<Stmt> statements) {
+        depth = 0;
         try {
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            int base = blockCount;
+            pushBlock(statements, 0, 0, null);
+            run(base);
         } catch (RuntimeError error) {
+            abandonExpressions();
             Lox.runtimeError(error);
+        } catch (Parser.ParseError error) {
+            // A lazily parsed block had syntax errors, which the parser has reported
+            abandonExpressions();
+        }
+    }
+
+    /**
+     * Starts a program that runs in slices instead of all at once, in the session of
+     * the current thread. Nothing is executed until the returned continuation is resumed.
+     *
+     * @param statements the program to run
+     * @param slice the number of statements each resume executes before pausing
+     * @return the continuation that runs the program
+     */
+    Continuation start(List<Stmt> statements, int slice) {
+        if (slice <= 0) {
+            throw new IllegalArgumentException("Slice must be positive: " + slice);
+        }
+        if (blockCount != 0) {
+            throw new IllegalStateException("Interpreter is already running a program.");
+        }
+        pushBlock(statements, 0, 0, null);
+        return new Continuation(this, slice, Lox.session());
+    }
+
+    /**
+     * Executes the started program until it finishes or {@code slice} statements
+     * have run. Everything needed to continue is kept on the block stack, so the
+     * next call may come from any thread, which {@link Continuation} gives the
+     * program's session first.
+     *
+     * @return true when the program has finished, normally or with a runtime error
+     */
+    boolean resume(int slice) {
+        depth = 0;
+        budget = slice;
+        sliced = true;
+        try {
+            return run(0);
+        } catch (RuntimeError error) {
+            abandonExpressions();
+            Lox.runtimeError(error);
+            return true;
+        } catch (Parser.ParseError error) {
+            abandonExpressions();
+            return true;
+        } finally {
+            budget = Long.MAX_VALUE;
+            sliced = false;
+        }
+    }
+
+    /**
+     * Drops the expressions a failed program was evaluating. Its blocks and calls
+     * have been popped already.
+     */
+    private void abandonExpressions() {
+        Arrays.fill(nodes, 0, nodeCount, null);
+        Arrays.fill(operands, 0, operandCount, null);
+        nodeCount = 0;
+        operandCount = 0;
+    }
+
+    /**
+     * Executes statements until the block stack is back down to {@code base} frames,
+     * or until the budget runs out. In a sliced run a statement whose expression calls
+     * a function waits on the block stack while the body runs, so the run can pause
+     * inside calls. Otherwise nothing pauses, and calls are made directly from Java,
+     * which is faster, until they are nested too deep, see {@link #onBlockStack()}.
+     * Leaving by an exception clears the slots and restores the environment of
+     * every block that was exited, and the caller's frame of every call.
+     *
+     * @return true when finished, false when paused before the next statement
+     */
+    private boolean run(int base) {
+        try {
+            while (blockCount > base) {
+                int top = blockCount - 1;
+                List<Stmt> statements = blockStatements[top];
+                if (blockNext[top] == statements.size()) {
+                    if (blockCaller[top] != null) {
+                        returnToCaller();
+                        continue;
+                    }
+                    if (blockLoop[top] == null) {
+                        popBlock();
+                        continue;
+                    }
+                    // Evaluating the condition again counts as a statement
+                    if (--budget < 0) {
+                        return false;
+                    }
+                    backEdge(blockLoop[top]);
+                    continue;
+                }
+                if (--budget < 0) {
+                    return false;
+                }
+
+                Stmt stmt = statements.get(blockNext[top]++);
+                switch (stmt.kind) {
+                    case Stmt.BLOCK -> enterBlock((Stmt.Block) stmt);
+                    case Stmt.WHILE -> enterLoop((Stmt.While) stmt);
+                    default -> {
+                        Expr expression = onBlockStack() ? expressionOf(stmt) : null;
+                        if (expression != null && calls(expression)) {
+                            pushNode(expression);
+                            proceed(stmt, nodeCount - 1);
+                        } else {
+                            execute(stmt);
+                        }
+                    }
+                }
+            }
+            return true;
+        } catch (Throwable error) {
+            while (blockCount > base) {
+                popBlock();
+            }
+            throw error;
+        }
+    }
+
+    /**
+     * @return whether a call in the expression of the next statement waits on the block
+     *         stack: in a sliced run, so that it can pause, and once the calls made directly
+     *         are nested {@link #MAX_DIRECT_CALLS} deep, so that recursion is limited by
+     *         the heap rather than the Java stack
+     */
+    private boolean onBlockStack() {
+        return sliced || directCalls >= MAX_DIRECT_CALLS;
+    }
+
+    /**
+     * @return the expression a statement other than a block or loop evaluates, or null
+     */
+    private static Expr expressionOf(Stmt stmt) {
+        return switch (stmt.kind) {
+            case Stmt.EXPRESSION -> ((Stmt.Expression) stmt).expression;
+            case Stmt.PRINT -> ((Stmt.Print) stmt).expression;
+            case Stmt.VAR -> ((Stmt.Var) stmt).initializer;
+            case Stmt.RETURN -> ((Stmt.Return) stmt).value;
+            default -> null;
+        };
+    }
+
+    /**
+     * Goes on evaluating the expression of a statement, from its first node at
+     * {@code base}, and finishes the statement with its value unless it waits for a call.
+     */
+    private void proceed(Stmt stmt, int base) {
+        Object value = evaluateNodes(stmt, base);
+        if (value == SUSPENDED) return;
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION -> {
+            }
+            case Stmt.PRINT -> printer.print(value);
+            case Stmt.VAR -> define((Stmt.Var) stmt, value);
+            case Stmt.RETURN -> returnFromCall(value);
+            case Stmt.WHILE -> loopCondition((Stmt.While) stmt, isTruthy(value));
+            default -> throw new IllegalStateException("Unknown statement kind " + stmt.kind);
+        }
+    }
+
+    /**
+     * Pops the body of a call that has run or returned, and goes on with the
+     * expression that made the call, which gets the value returned.
+     */
+    private void returnToCaller() {
+        int top = blockCount - 1;
+        Stmt caller = blockCaller[top];
+        int base = blockNodes[top];
+        popBlock();
+        pushOperand(returnValue);
+        returnValue = null;
+        proceed(caller, base);
+    }
+
+    /**
+     * Enters a block. A resolved block only reserves its slots on the value stack;
+     * one the Resolver has not seen gets a fresh {@link Environment} instead.
+     */
+    private void enterBlock(Stmt.Block block) {
+        if (block.statements instanceof LazyStatements body) {
+            // Parsing and resolving the body settles how many slots it needs
+            body.load();
+        }
+        if (block.declarations < 0) {
+            Environment enclosing = environment;
+            environment = new Environment(enclosing);
+            pushBlock(block.statements, 0, 0, enclosing);
+            return;
+        }
+
+        int start = frame + block.firstSlot;
+        int end = start + block.declarations;
+        ensureCapacity(end);
+        pushBlock(block.statements, start, end, null);
+        // Slots of an enclosing block's later declarations may already be reserved
+        stackTop = Math.max(stackTop, end);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+        }
+    }
+
+    /**
+     * Enters a loop by running its first iteration, if its condition holds, as a block
+     * whose only statement is the body. A loop that has been compiled runs on the vm
+     * instead, unless the program runs in slices, as the vm cannot pause.
+     */
+    private void enterLoop(Stmt.While loop) {
+        if (loop.compiled != null && !sliced) {
+            vm.execute(loop.compiled, frame);
+            return;
+        }
+        evaluateCondition(loop);
+    }
+
+    /**
+     * Decides whether a loop whose body has just run runs it again. Once a loop has
+     * taken {@link #compileThreshold} back edges it is compiled, and the vm takes over
+     * from the next iteration on, reading the locals from the value stack and writing
+     * them back once the loop is done: an on-stack replacement of the loop.
+     */
+    private void backEdge(Stmt.While loop) {
+        if (++loop.backEdges >= compileThreshold && !sliced) {
+            if (loop.compiled == null) {
+                compile(loop);
+            }
+            if (loop.compiled != null) {
+                vm.execute(loop.compiled, frame);
+                popBlock();
+                return;
+            }
+            // Tried again after as many back edges
+            loop.backEdges = 0;
+        }
+        evaluateCondition(loop);
+    }
+
+    private void evaluateCondition(Stmt.While loop) {
+        if (onBlockStack() && calls(loop.condition)) {
+            pushNode(loop.condition);
+            proceed(loop, nodeCount - 1);
+        } else {
+            loopCondition(loop, isTruthy(evaluate(loop.condition)));
         }
     }
 
+    /**
+     * Runs the body of a loop whose condition holds, for the first time or again, and
+     * leaves a loop whose condition no longer holds.
+     */
+    private void loopCondition(Stmt.While loop, boolean holds) {
+        int top = blockCount - 1;
+        if (top >= 0 && blockLoop[top] == loop) {
+            // A back edge, with the frame of the body still on top
+            if (holds) {
+                blockNext[top] = 0;
+            } else {
+                popBlock();
+            }
+        } else if (holds) {
+            pushBlock(List.of(loop.body), 0, 0, null);
+            blockLoop[blockCount - 1] = loop;
+        }
+    }
+
+    /**
+     * Compiles a loop through the optimized SSA form, if the Resolver has assigned its
+     * locals to slots, every block in it has been parsed and it does not return. The
+     * locals that hold numbers now are assumed to hold them whenever it starts.
+     */
+    private void compile(Stmt.While loop) {
+        if (loop.slots < 0) return;
+        Ir program = Ir.lowerLoop(loop);
+        if (program == null) return;
+        IrOptimizer.optimize(program);
+        loop.compiled = RegisterCode.compile(program, slot -> stack[frame + slot] instanceof Double);
+    }
+
+    private void pushBlock(List<Stmt> statements, int start, int end, Environment enclosing) {
+        if (blockCount == blockStatements.length) {
+            int capacity = blockCount * 2;
+            blockStatements = Arrays.copyOf(blockStatements, capacity);
+            blockNext = Arrays.copyOf(blockNext, capacity);
+            blockStart = Arrays.copyOf(blockStart, capacity);
+            blockEnd = Arrays.copyOf(blockEnd, capacity);
+            blockOldTop = Arrays.copyOf(blockOldTop, capacity);
+            blockEnvironment = Arrays.copyOf(blockEnvironment, capacity);
+            blockLoop = Arrays.copyOf(blockLoop, capacity);
+            blockFrame = Arrays.copyOf(blockFrame, capacity);
+            blockCallBase = Arrays.copyOf(blockCallBase, capacity);
+            blockCaller = Arrays.copyOf(blockCaller, capacity);
+            blockNodes = Arrays.copyOf(blockNodes, capacity);
+        }
+        blockStatements[blockCount] = statements;
+        blockNext[blockCount] = 0;
+        blockStart[blockCount] = start;
+        blockEnd[blockCount] = end;
+        blockOldTop[blockCount] = stackTop;
+        blockEnvironment[blockCount] = enclosing;
+        blockLoop[blockCount] = null;
+        blockFrame[blockCount] = -1;
+        blockCount++;
+    }
+
+    /**
+     * Leaves the innermost block, clearing its slots so that the stack does not
+     * keep dead values reachable. Leaving the body of a call goes back to the
+     * frame of the caller.
+     */
+    private void popBlock() {
+        int top = --blockCount;
+        Arrays.fill(stack, blockStart[top], blockEnd[top], null);
+        stackTop = blockOldTop[top];
+        if (blockEnvironment[top] != null) {
+            environment = blockEnvironment[top];
+        }
+        if (blockFrame[top] >= 0) {
+            frame = blockFrame[top];
+            callBase = blockCallBase[top];
+            callDepth--;
+            blockCaller[top] = null;
+        }
+        blockStatements[top] = null;
+        blockEnvironment[top] = null;
+        blockLoop[top] = null;
+    }
+
     private void execute(Stmt stmt) {
-        stmt.accept(this);
+        Stmt.dispatch(this, stmt);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
         if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
+            return NumberFormatter.toString((double)object);
         }
         return object.toString();
     }
 
+    /**
+     * Appends a value as print shows it, inside an array or map being printed. One that
+     * contains itself appears as [...] or {...} where it recurs.
+     *
+     * @param printing the arrays and maps being printed, by identity
+     */
+    static void stringify(StringBuilder builder, Object object, Set<Object> printing) {
+        if (object instanceof LoxArray array) {
+            array.appendTo(builder, printing);
+        } else if (object instanceof LoxMap map) {
+            map.appendTo(builder, printing);
+        } else {
+            builder.append(stringify(object));
+        }
+    }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
+        // Concatenated strings compare by their text
+        if (a instanceof Rope) a = a.toString();
+        if (b instanceof Rope) b = b.toString();
         return a.equals(b);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(int line, Object operand) {
         if (operand instanceof Double) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
+        throw new RuntimeError(line, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(int line, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
-        throw new RuntimeError(operator, "Operands must be numbers.");
+        throw new RuntimeError(line, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
     private Object evaluate(Expr expr) {
-        return expr.accept(this);
+        if (depth >= MAX_RECURSION_DEPTH) {
+            return evaluateIteratively(expr);
+        }
+        depth++;
+        try {
+            return Expr.dispatch(this, expr);
+        } finally {
+            depth--;
+        }
+    }
+
+    /**
+     * Evaluates an expression with explicit stacks instead of the Java call stack.
+     * Only expressions nested deeper than {@link #MAX_RECURSION_DEPTH} get here, so
+     * ordinary code keeps the faster recursive path.
+     */
+    private Object evaluateIteratively(Expr root) {
+        pushNode(root);
+        return evaluateNodes(null, nodeCount - 1);
+    }
+
+    /**
+     * @return whether evaluating an expression may call a function, as the Parser
+     *         records it on each node with operands
+     */
+    static boolean calls(Expr expr) {
+        return switch (expr.kind) {
+            case Expr.CALL -> true;
+            case Expr.ASSIGN -> ((Expr.Assign) expr).calls;
+            case Expr.BINARY -> ((Expr.Binary) expr).calls;
+            case Expr.GROUPING -> ((Expr.Grouping) expr).calls;
+            case Expr.UNARY -> ((Expr.Unary) expr).calls;
+            case Expr.TERNARY -> ((Expr.Ternary) expr).calls;
+            default -> false;
+        };
+    }
+
+    /**
+     * Evaluates the expression whose root is the node at {@code base}, and whatever
+     * nodes above it are still being evaluated. An operand that cannot call a function
+     * is evaluated recursively in one step, unless the Java stack is already deep.
+     * <p>
+     * A call of a Lox function on behalf of a statement pushes the frame of the call
+     * and returns {@link #SUSPENDED}, leaving the nodes where they are: the run of the
+     * block stack goes on in the body, and on with the expression once it returns.
+     * Without a statement, the call runs to completion first.
+     *
+     * @param stmt the statement the expression belongs to, or null
+     * @return the value of the expression, or {@link #SUSPENDED}
+     */
+    private Object evaluateNodes(Stmt stmt, int base) {
+        while (nodeCount > base) {
+            int top = nodeCount - 1;
+            Expr expr = nodes[top];
+            int step = steps[top]++;
+            Expr operand = null;
+            switch (expr.kind) {
+                case Expr.LITERAL -> pushOperand(((Expr.Literal) expr).value);
+                case Expr.VARIABLE -> pushOperand(lookUp((Expr.Variable) expr));
+                case Expr.GROUPING -> {
+                    Expr.Grouping grouping = (Expr.Grouping) expr;
+                    if (step == 0 && !evaluateDirectly(grouping.expression)) operand = grouping.expression;
+                }
+                case Expr.UNARY -> {
+                    Expr.Unary unary = (Expr.Unary) expr;
+                    if (step == 0 && !evaluateDirectly(unary.right)) {
+                        operand = unary.right;
+                    } else {
+                        operands[operandCount - 1] = unary(unary.operator, unary.line, operands[operandCount - 1]);
+                    }
+                }
+                case Expr.BINARY -> {
+                    Expr.Binary binary = (Expr.Binary) expr;
+                    if (step == 0 && !evaluateDirectly(binary.left)) {
+                        operand = binary.left;
+                    } else if (step <= 1 && !evaluateDirectly(binary.right)) {
+                        steps[top] = 2;
+                        operand = binary.right;
+                    } else {
+                        Object right = operands[--operandCount];
+                        operands[operandCount] = null;
+                        operands[operandCount - 1] = binary(binary.operator, binary.line, operands[operandCount - 1], right);
+                    }
+                }
+                case Expr.ASSIGN -> {
+                    Expr.Assign assign = (Expr.Assign) expr;
+                    if (step == 0 && !evaluateDirectly(assign.value)) {
+                        operand = assign.value;
+                    } else {
+                        assign(assign, operands[operandCount - 1]);
+                    }
+                }
+                case Expr.TERNARY -> {
+                    Expr.Ternary ternary = (Expr.Ternary) expr;
+                    if (step == 0 && !evaluateDirectly(ternary.condition)) {
+                        operand = ternary.condition;
+                    } else {
+                        // The chosen branch takes the ternary's place
+                        boolean condition = isTruthy(operands[--operandCount]);
+                        operands[operandCount] = null;
+                        nodes[--nodeCount] = null;
+                        if (!evaluateDirectly(condition ? ternary.left : ternary.right)) {
+                            pushNode(condition ? ternary.left : ternary.right);
+                        }
+                        continue;
+                    }
+                }
+                case Expr.CALL -> {
+                    Expr.Call call = (Expr.Call) expr;
+                    int count = call.arguments.size();
+                    // The step is the operand to evaluate next: the callee, then each argument
+                    while (step <= count && operand == null) {
+                        Expr next = step == 0 ? call.callee : call.arguments.get(step - 1);
+                        step++;
+                        if (!evaluateDirectly(next)) operand = next;
+                    }
+                    steps[top] = step;
+                    if (operand != null) break;
+
+                    if (operands[operandCount - count - 1] instanceof LoxNative function) {
+                        Object[] arguments = Arrays.copyOfRange(operands, operandCount - count, operandCount);
+                        Arrays.fill(operands, operandCount - count, operandCount, null);
+                        operandCount -= count;
+                        operands[operandCount - 1] = function.call(arguments, call.line);
+                    } else if (stmt == null) {
+                        Object callee = operands[operandCount - count - 1];
+                        int arguments = stackTop;
+                        try {
+                            moveArguments(count);
+                            pushOperand(callToCompletion(callee, arguments, count, call.line));
+                        } finally {
+                            release(arguments);
+                        }
+                    } else {
+                        // Done once the call returns, which pushes the value
+                        LoxFunction function = function(operands[operandCount - count - 1], count, call.line);
+                        nodes[--nodeCount] = null;
+                        int arguments = stackTop;
+                        moveArguments(count);
+                        enterCall(function, arguments, stmt, base);
+                        return SUSPENDED;
+                    }
+                }
+                default -> throw new IllegalStateException("Unknown expression kind " + expr.kind);
+            }
+
+            if (operand != null) {
+                pushNode(operand);
+            } else {
+                nodes[--nodeCount] = null;
+            }
+        }
+        Object value = operands[--operandCount];
+        operands[operandCount] = null;
+        return value;
+    }
+
+    /**
+     * Pushes the value of an operand that cannot call a function, evaluated recursively
+     * unless the Java stack is already deep.
+     *
+     * @return false if the operand is left to evaluateNodes
+     */
+    private boolean evaluateDirectly(Expr operand) {
+        switch (operand.kind) {
+            case Expr.LITERAL -> pushOperand(((Expr.Literal) operand).value);
+            case Expr.VARIABLE -> pushOperand(lookUp((Expr.Variable) operand));
+            default -> {
+                if (depth >= MAX_RECURSION_DEPTH || calls(operand)) return false;
+                pushOperand(evaluate(operand));
+            }
+        }
+        return true;
+    }
+
+    private void pushNode(Expr expr) {
+        if (nodeCount == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodeCount * 2);
+            steps = Arrays.copyOf(steps, nodeCount * 2);
+        }
+        nodes[nodeCount] = expr;
+        steps[nodeCount] = 0;
+        nodeCount++;
+    }
+
+    private void pushOperand(Object value) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
+        }
+        operands[operandCount++] = value;
+    }
+
+    private Object lookUp(Expr.Variable expr) {
+        if (expr.slot >= 0) {
+            return stack[frame + expr.slot];
+        }
+        if (expr.function != null) {
+            // A function of an enclosing block, whose value is its declaration's
+            return LoxFunction.of(expr.function);
+        }
+        return environment.get(expr.name, expr.line);
+    }
+
+    private void assign(Expr.Assign expr, Object value) {
+        if (expr.slot >= 0) {
+            stack[frame + expr.slot] = value;
+        } else {
+            environment.assign(expr.name, expr.line, value);
+        }
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        assign(expr, value);
         return value;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (expr.operandTypes == TypeInference.NUMBER) {
+            double left = evaluateNumber(expr.left);
+            double right = evaluateNumber(expr.right);
+            switch (expr.operator) {
+                case MINUS: return left - right;
+                case SLASH: return left / right;
+                case STAR: return left * right;
+                case PLUS: return left + right;
+                case GREATER: return left > right;
+                case GREATER_EQUAL: return left >= right;
+                case LESS: return left < right;
+                case LESS_EQUAL: return left <= right;
+                default: return binary(expr.operator, expr.line, left, right);
+            }
+        }
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
+        return binary(expr.operator, expr.line, left, right);
+    }
+
+    /**
+     * Evaluates an expression that {@link TypeInference} has proven to be a number.
+     * Arithmetic on proven numbers is done on unboxed doubles without operand checks,
+     * so only the value at the top of such a subtree is boxed.
+     */
+    private double evaluateNumber(Expr expr) {
+        if (depth >= MAX_RECURSION_DEPTH) {
+            return (double) evaluateIteratively(expr);
+        }
+        depth++;
+        try {
+            switch (expr.kind) {
+                case Expr.BINARY -> {
+                    Expr.Binary binary = (Expr.Binary) expr;
+                    if (binary.operandTypes == TypeInference.NUMBER) {
+                        switch (binary.operator) {
+                            case MINUS: return evaluateNumber(binary.left) - evaluateNumber(binary.right);
+                            case SLASH: return evaluateNumber(binary.left) / evaluateNumber(binary.right);
+                            case STAR: return evaluateNumber(binary.left) * evaluateNumber(binary.right);
+                            case PLUS: return evaluateNumber(binary.left) + evaluateNumber(binary.right);
+                            default: break;
+                        }
+                    }
+                }
+                case Expr.UNARY -> {
+                    Expr.Unary unary = (Expr.Unary) expr;
+                    if (unary.operator == TokenType.MINUS && unary.operandTypes == TypeInference.NUMBER) {
+                        return -evaluateNumber(unary.right);
+                    }
+                }
+                case Expr.GROUPING -> {
+                    return evaluateNumber(((Expr.Grouping) expr).expression);
+                }
+                case Expr.LITERAL -> {
+                    return (double) ((Expr.Literal) expr).value;
+                }
+                default -> {
+                }
+            }
+            return (double) Expr.dispatch(this, expr);
+        } finally {
+            depth--;
+        }
+    }
+
+    /**
+     * Applies a binary operator to already evaluated operands.
+     * Shared by every execution engine so that they agree on semantics.
+     */
+    static Object binary(TokenType operator, int line, Object left, Object right) {
+        switch (operator) {
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(line, left, right);
                 return (double)left - (double)right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(line, left, right);
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(line, left, right);
                 return (double)left * (double)right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left + (double)right;
                 }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    return Rope.concat((CharSequence)left, (CharSequence)right);
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(line, "Operands must be two numbers or two strings.");
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(line, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(line, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(line, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(line, left, right);
                 return (double)left <= (double)right;
             case BANG_EQUAL:
                 return !isEqual(left, right);
@@ -111,8 +832,32 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-       executeBlock(stmt.statements, new Environment(environment));
-       return null;
+        // Only reached when a block is dispatched directly, which always runs to completion
+        long remaining = budget;
+        budget = Long.MAX_VALUE;
+        try {
+            int base = blockCount;
+            enterBlock(stmt);
+            run(base);
+        } finally {
+            budget = remaining;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        // Like a block, only reached when dispatched directly
+        long remaining = budget;
+        budget = Long.MAX_VALUE;
+        try {
+            int base = blockCount;
+            enterLoop(stmt);
+            run(base);
+        } finally {
+            budget = remaining;
+        }
+        return null;
     }
 
     @Override
@@ -121,6 +866,200 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        LoxFunction function = LoxFunction.of(stmt);
+        if (stmt.slot >= 0) {
+            stack[frame + stmt.slot] = function;
+        } else {
+            environment.define(stmt.name, function);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        returnFromCall(stmt.value == null ? null : evaluate(stmt.value));
+        return null;
+    }
+
+    private void returnFromCall(Object value) {
+        returnValue = value;
+        // Leaves every block inside the body, and the rest of the body's statements
+        while (blockCount > callBase) {
+            popBlock();
+        }
+        if (callBase > 0) {
+            blockNext[callBase - 1] = blockStatements[callBase - 1].size();
+        }
+    }
+
+    /**
+     * Reached for a call in an expression evaluated recursively, which is every call
+     * unless the program runs in slices. It cannot wait on the block stack, so the
+     * call runs to completion.
+     */
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        if (callee instanceof LoxNative function) {
+            // The method takes its arguments as an array, so they need no slots
+            Object[] arguments = new Object[expr.arguments.size()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = evaluate(expr.arguments.get(i));
+            }
+            return function.call(arguments, expr.line);
+        }
+        int base = stackTop;
+        try {
+            for (Expr argument : expr.arguments) {
+                push(evaluate(argument));
+            }
+            return callToCompletion(callee, base, expr.arguments.size(), expr.line);
+        } finally {
+            release(base);
+        }
+    }
+
+    /**
+     * Calls a function with arguments that have already been evaluated, for the vm.
+     * A native function gets them as they are.
+     */
+    Object call(Object callee, Object[] arguments, int line) {
+        if (callee instanceof LoxNative function) {
+            return function.call(arguments, line);
+        }
+        int base = stackTop;
+        try {
+            for (Object argument : arguments) {
+                push(argument);
+            }
+            return callToCompletion(callee, base, arguments.length, line);
+        } finally {
+            release(base);
+        }
+    }
+
+    private void push(Object value) {
+        ensureCapacity(stackTop + 1);
+        stack[stackTop++] = value;
+    }
+
+    /**
+     * Moves the top {@code count} operands, the arguments of a call, onto the value
+     * stack, and drops the callee below them.
+     */
+    private void moveArguments(int count) {
+        ensureCapacity(stackTop + count);
+        // Few enough that a loop beats arraycopy
+        for (int i = count; i > 0; i--) {
+            stack[stackTop++] = operands[operandCount - i];
+            operands[operandCount - i] = null;
+        }
+        operandCount -= count;
+        operands[--operandCount] = null;
+    }
+
+    /**
+     * Clears the arguments of a call that has returned, or failed.
+     */
+    private void release(int base) {
+        Arrays.fill(stack, base, stackTop, null);
+        stackTop = base;
+    }
+
+    /**
+     * Calls a function and runs it to completion, as it is called from Java code that
+     * waits for it.
+     *
+     * @param arguments the slot of the first argument, the last being just below the stack top
+     * @return the value returned, or nil
+     */
+    private Object callToCompletion(Object callee, int arguments, int count, int line) {
+        LoxFunction function = function(callee, count, line);
+        long remaining = budget;
+        int base = blockCount;
+        budget = Long.MAX_VALUE;
+        directCalls++;
+        try {
+            enterCall(function, arguments, null, 0);
+            run(base);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(line, "Stack overflow.");
+        } finally {
+            budget = remaining;
+            directCalls--;
+        }
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    /**
+     * @return the function a call with {@code count} arguments calls
+     * @throws RuntimeError if the callee is not a function, takes another number of
+     *         arguments, or the calls are nested too deep
+     */
+    private LoxFunction function(Object callee, int count, int line) {
+        if (!(callee instanceof LoxFunction function)) {
+            throw new RuntimeError(line, "Can only call functions and classes.");
+        }
+        if (count != function.arity()) {
+            throw new RuntimeError(line, "Expected " + function.arity() + " arguments but got " + count + ".");
+        }
+        if (callDepth == MAX_CALL_DEPTH) {
+            throw new RuntimeError(line, "Stack overflow.");
+        }
+        return function;
+    }
+
+    /**
+     * Calls a function whose arguments are the slots from {@code base} up to the stack
+     * top, above every active block. The body is pushed on the block stack as the frame
+     * of the call, which remembers the caller's, and the arguments become the first
+     * slots of the new frame; the body's locals follow them, at the slots the Resolver
+     * assigned. A return statement leaves the body with its value in
+     * {@link #returnValue}, so returning involves no exception.
+     *
+     * @param caller the statement to go on with once the call returns, or null
+     * @param nodes the first node of the expression that made the call
+     */
+    private void enterCall(LoxFunction function, int base, Stmt caller, int nodes) {
+        Stmt.Function declaration = function.declaration;
+        Stmt.Block body = declaration.body;
+        if (body.statements instanceof LazyStatements statements) {
+            statements.load();
+        }
+        int end = stackTop;
+        Environment callerEnvironment = environment;
+        if (declaration.frameSize < 0) {
+            // Not resolved, so the parameters are variables like those of the body
+            environment = new Environment(globals);
+            for (int i = 0; i < end - base; i++) {
+                environment.define(declaration.params.get(i), stack[base + i]);
+            }
+        } else if (body.declarations < 0) {
+            environment = new Environment(globals);
+        } else {
+            environment = globals;
+            end = Math.max(end, base + body.firstSlot + body.declarations);
+        }
+
+        ensureCapacity(end);
+        // The arguments belong to the frame from now on, which clears them when popped
+        stackTop = base;
+        pushBlock(body.statements, base, end, callerEnvironment);
+        int top = blockCount - 1;
+        blockFrame[top] = frame;
+        blockCallBase[top] = callBase;
+        blockCaller[top] = caller;
+        blockNodes[top] = nodes;
+        callDepth++;
+        stackTop = end;
+        frame = base;
+        callBase = blockCount;
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
@@ -134,7 +1073,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        printer.print(value);
         return null;
     }
 
@@ -145,10 +1084,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator == TokenType.MINUS && expr.operandTypes == TypeInference.NUMBER) {
+            return -evaluateNumber(expr.right);
+        }
         Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
+        return unary(expr.operator, expr.line, right);
+    }
+
+    /**
+     * Applies a unary operator to an already evaluated operand.
+     */
+    static Object unary(TokenType operator, int line, Object right) {
+        switch (operator) {
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(line, right);
                 return -(double)right;
             case BANG:
                 return !isTruthy(right);
@@ -163,26 +1112,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-
-        environment.define(stmt.name.lexeme, value);
+        define(stmt, value);
         return null;
     }
 
-    @Override
-    public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
-    }
-
-    private void executeBlock(List<Stmt> statements, Environment environment) {
-        Environment oldEnvironment = this.environment;
-        try {
-            this.environment = environment;
-            for (var statement : statements) {
-                execute(statement);
-            }
-        } finally {
-            this.environment = oldEnvironment;
+    private void define(Stmt.Var stmt, Object value) {
+        if (stmt.slot >= 0) {
+            stack[frame + stmt.slot] = value;
+        } else {
+            environment.define(stmt.name, value);
         }
     }
 
+    @Override
+    public Object visitVariableExpr(Expr.Variable expr) {
+        return lookUp(expr);
+    }
 }
@@ -0,0 +1,570 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A program lowered from the AST into a control flow graph of basic blocks in SSA
+ * form, for {@link IrOptimizer} to improve and any execution engine to run.
+ * <p>
+ * Every instruction defines at most one value, which is assigned exactly once.
+ * Block-local variables do not exist as such: each definition of a slot is a value,
+ * and where the branches of a ternary have assigned it differently, a phi at the
+ * start of the block they join in selects the right one. The header of a loop starts
+ * with a phi for every local, selecting its value before the loop or at the end of
+ * the body. Globals may be undefined and are shared with other programs, so they are
+ * read and written by instructions, and so are the slots of the interpreter's value
+ * stack when a loop is compiled on its own, see {@link #lowerLoop}. A function
+ * declaration defines a constant, the function, and the body is left to the
+ * {@link Interpreter}, which runs every call.
+ * <p>
+ * Instructions:
+ * <pre>
+ *   CONSTANT       value
+ *   COPY           operand           (name is the local variable it defines)
+ *   PHI            operand...        (one per predecessor, in the same order)
+ *   UNARY          operator line operand
+ *   BINARY         operator line left right
+ *   GET_GLOBAL     name line
+ *   LOAD_SLOT      value             (value is the slot)
+ *   CALL           line callee argument...
+ *   SET_GLOBAL     name line operand
+ *   DEFINE_GLOBAL  name operand
+ *   STORE_SLOT     value operand
+ *   PRINT          operand
+ * </pre>
+ * A block ends the program when it has no successors, jumps when it has one, and
+ * branches on its condition, to the first if it is truthy, when it has two.
+ */
+final class Ir {
+    static final int CONSTANT = 0;
+    static final int COPY = 1;
+    static final int PHI = 2;
+    static final int UNARY = 3;
+    static final int BINARY = 4;
+    static final int GET_GLOBAL = 5;
+    static final int LOAD_SLOT = 6;
+    static final int CALL = 7;
+    // Instructions from here on define no value
+    static final int SET_GLOBAL = 8;
+    static final int DEFINE_GLOBAL = 9;
+    static final int STORE_SLOT = 10;
+    static final int PRINT = 11;
+
+    static final class Instruction {
+        final int op;
+        // Index of the value in a frame of valueCount() values
+        final int id;
+        final TokenType operator;
+        final int line;
+        final String name;
+        final Object value;
+        Instruction[] operands;
+        // Set when a pass has replaced this instruction by another that computes the same value
+        Instruction replacement;
+
+        private Instruction(int op, int id, TokenType operator, int line, String name, Object value,
+                            Instruction[] operands) {
+            this.op = op;
+            this.id = id;
+            this.operator = operator;
+            this.line = line;
+            this.name = name;
+            this.value = value;
+            this.operands = operands;
+        }
+
+        /**
+         * Whether this is the result of an operator, which is a value only and has no effect
+         * besides a possible runtime error.
+         */
+        boolean isOperator() {
+            return op == UNARY || op == BINARY;
+        }
+    }
+
+    static final class Block {
+        final int id;
+        // Phis first
+        final List<Instruction> instructions = new ArrayList<>();
+        final List<Block> predecessors = new ArrayList<>();
+        final List<Block> successors = new ArrayList<>();
+        // Only set for a branch
+        Instruction condition;
+
+        private Block(int id) {
+            this.id = id;
+        }
+    }
+
+    // The entry block first
+    final List<Block> blocks = new ArrayList<>();
+    private int valueCount = 0;
+    private int blockCount = 0;
+
+    private Ir() {
+    }
+
+    Block entry() {
+        return blocks.get(0);
+    }
+
+    /**
+     * @return the number of values ever defined, an upper bound of every instruction id
+     */
+    int valueCount() {
+        return valueCount;
+    }
+
+    /**
+     * @return the number of blocks ever created, an upper bound of every block id
+     */
+    int blockCount() {
+        return blockCount;
+    }
+
+    Block newBlock() {
+        Block block = new Block(blockCount++);
+        blocks.add(block);
+        return block;
+    }
+
+    /**
+     * Creates an instruction without adding it to a block.
+     */
+    Instruction instruction(int op, TokenType operator, int line, String name, Object value,
+                            Instruction... operands) {
+        return new Instruction(op, valueCount++, operator, line, name, value, operands);
+    }
+
+    Instruction constant(Object value) {
+        return instruction(CONSTANT, null, 0, null, value);
+    }
+
+    static void jump(Block from, Block to) {
+        from.successors.add(to);
+        to.predecessors.add(from);
+    }
+
+    static void branch(Block from, Instruction condition, Block ifTrue, Block ifFalse) {
+        from.condition = condition;
+        jump(from, ifTrue);
+        jump(from, ifFalse);
+    }
+
+    /**
+     * Follows the replacements made by optimization passes.
+     */
+    static Instruction resolve(Instruction instruction) {
+        while (instruction.replacement != null) {
+            instruction = instruction.replacement;
+        }
+        return instruction;
+    }
+
+    /**
+     * Lowers a resolved program. Blocks that were parsed lazily are loaded.
+     *
+     * @param statements the output of {@link Parser#parse()}, free of parse errors
+     *                   and annotated by the {@link Resolver}
+     * @return the program in SSA form, not optimized
+     */
+    static Ir lower(List<Stmt> statements) {
+        Lowering lowering = new Lowering();
+        lowering.lower(statements);
+        return lowering.ir;
+    }
+
+    /**
+     * Lowers a resolved loop on its own, for the interpreter to hand over to it in the
+     * middle of running the loop. The program starts by evaluating the condition; the
+     * locals declared outside the loop are loaded from their slots before, and stored
+     * back once the loop is done.
+     *
+     * @param loop a loop annotated by the {@link Resolver}
+     * @return the loop in SSA form, not optimized, or null if a block in it has not
+     *         been parsed yet, as lowering it would report its syntax errors too early,
+     *         or if it returns from the function it is in
+     */
+    static Ir lowerLoop(Stmt.While loop) {
+        if (!canLower(loop)) return null;
+        Lowering lowering = new Lowering();
+        Instruction[] loaded = new Instruction[loop.slots];
+        for (int slot = 0; slot < loop.slots; slot++) {
+            loaded[slot] = lowering.load(slot);
+        }
+        lowering.lower(List.of(loop));
+        for (int slot = 0; slot < loop.slots; slot++) {
+            if (lowering.locals[slot] != loaded[slot]) {
+                lowering.emit(lowering.ir.instruction(STORE_SLOT, null, 0, null, slot, lowering.locals[slot]));
+            }
+        }
+        return lowering.ir;
+    }
+
+    /**
+     * @return whether every lazily parsed block in a statement has been parsed, and no
+     *         return statement is in it outside the functions it declares
+     */
+    private static boolean canLower(Stmt root) {
+        ArrayDeque<Stmt> work = new ArrayDeque<>();
+        work.push(root);
+        while (!work.isEmpty()) {
+            Stmt stmt = work.pop();
+            if (stmt instanceof Stmt.Return) return false;
+            if (stmt instanceof Stmt.Block block) {
+                if (block.statements instanceof LazyStatements body && !body.isLoaded()) return false;
+                for (Stmt statement : block.statements) {
+                    work.push(statement);
+                }
+            } else if (stmt instanceof Stmt.While loop) {
+                work.push(loop.body);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A ternary whose branches are being lowered.
+     */
+    private static final class Branch {
+        final Block ifFalse;
+        // The definitions of the locals before the branches, then at the end of the left one
+        Instruction[] locals;
+        Block leftEnd;
+
+        Branch(Block ifFalse, Instruction[] locals) {
+            this.ifFalse = ifFalse;
+            this.locals = locals;
+        }
+    }
+
+    /**
+     * A loop whose body is being lowered.
+     *
+     * @param phis   the phi of each local in the header, by slot
+     * @param locals the definitions of the locals when the loop exits
+     */
+    private record Loop(Block header, Instruction[] phis, Block exit, Instruction[] locals) {}
+
+    /**
+     * Emits instructions into the current block, keeping the current definition of every
+     * local variable by slot. Like the Resolver, it walks the AST with explicit stacks.
+     */
+    private static final class Lowering {
+        final Ir ir = new Ir();
+        Block current = ir.newBlock();
+        Instruction[] locals = new Instruction[16];
+
+        void lower(List<Stmt> statements) {
+            ArrayDeque<Object> work = new ArrayDeque<>();
+            pushStatements(work, statements);
+
+            while (!work.isEmpty()) {
+                Object item = work.pop();
+                if (item instanceof Loop loop) {
+                    // The end of the body jumps back to the header
+                    jump(current, loop.header());
+                    for (int slot = 0; slot < loop.phis().length; slot++) {
+                        if (loop.phis()[slot] != null) {
+                            loop.phis()[slot].operands[1] = locals[slot];
+                        }
+                    }
+                    current = loop.exit();
+                    locals = loop.locals();
+                    continue;
+                }
+
+                Stmt stmt = (Stmt) item;
+                switch (stmt.kind) {
+                    case Stmt.BLOCK -> pushStatements(work, ((Stmt.Block) stmt).statements);
+                    case Stmt.EXPRESSION -> lower(((Stmt.Expression) stmt).expression);
+                    case Stmt.PRINT -> emit(PRINT, null, 0, null, lower(((Stmt.Print) stmt).expression));
+                    case Stmt.VAR -> {
+                        Stmt.Var var = (Stmt.Var) stmt;
+                        Instruction value = var.initializer == null
+                                ? emit(ir.constant(null))
+                                : lower(var.initializer);
+                        if (var.slot >= 0) {
+                            define(var.slot, var.name, value);
+                        } else {
+                            emit(DEFINE_GLOBAL, null, 0, var.name, value);
+                        }
+                    }
+                    case Stmt.FUNCTION -> {
+                        Stmt.Function function = (Stmt.Function) stmt;
+                        Instruction value = emit(ir.constant(LoxFunction.of(function)));
+                        if (function.slot >= 0) {
+                            define(function.slot, function.name, value);
+                        } else {
+                            emit(DEFINE_GLOBAL, null, 0, function.name, value);
+                        }
+                    }
+                    case Stmt.WHILE -> {
+                        Stmt.While loop = (Stmt.While) stmt;
+                        Block header = ir.newBlock();
+                        jump(current, header);
+                        current = header;
+                        // The operands for the back edge are filled in once the body is lowered
+                        Instruction[] phis = new Instruction[locals.length];
+                        for (int slot = 0; slot < locals.length; slot++) {
+                            if (locals[slot] != null) {
+                                phis[slot] = emit(PHI, null, 0, null, locals[slot], null);
+                                locals[slot] = phis[slot];
+                            }
+                        }
+                        Instruction condition = lower(loop.condition);
+                        Block body = ir.newBlock();
+                        Block exit = ir.newBlock();
+                        branch(current, condition, body, exit);
+                        work.push(new Loop(header, phis, exit, locals.clone()));
+                        work.push(loop.body);
+                        current = body;
+                    }
+                    default -> throw new IllegalStateException("Unknown statement kind " + stmt.kind);
+                }
+            }
+        }
+
+        private static void pushStatements(ArrayDeque<Object> work, List<Stmt> statements) {
+            // Pushed in reverse, so they are popped in program order
+            for (int i = statements.size() - 1; i >= 0; i--) {
+                work.push(statements.get(i));
+            }
+        }
+
+        private Instruction emit(Instruction instruction) {
+            current.instructions.add(instruction);
+            return instruction;
+        }
+
+        private Instruction emit(int op, TokenType operator, int line, String name, Instruction... operands) {
+            return emit(ir.instruction(op, operator, line, name, null, operands));
+        }
+
+        private Instruction load(int slot) {
+            if (slot >= locals.length) {
+                locals = Arrays.copyOf(locals, Math.max(slot + 1, locals.length * 2));
+            }
+            locals[slot] = emit(ir.instruction(LOAD_SLOT, null, 0, null, slot));
+            return locals[slot];
+        }
+
+        private Instruction define(int slot, String name, Instruction value) {
+            if (slot >= locals.length) {
+                locals = Arrays.copyOf(locals, Math.max(slot + 1, locals.length * 2));
+            }
+            locals[slot] = emit(COPY, null, 0, name, value);
+            return locals[slot];
+        }
+
+        /**
+         * Lowers an expression in evaluation order.
+         *
+         * @return the instruction that defines its value
+         */
+        private Instruction lower(Expr root) {
+            // Nodes still being lowered, innermost last, and how far each has got
+            Expr[] nodes = new Expr[16];
+            int[] steps = new int[16];
+            int nodeCount = 0;
+            // Values of lowered operands that have not been consumed yet
+            Instruction[] values = new Instruction[16];
+            int valueCount = 0;
+            ArrayDeque<Branch> branches = new ArrayDeque<>();
+
+            nodes[nodeCount++] = root;
+            while (nodeCount > 0) {
+                if (nodeCount + 1 >= nodes.length) {
+                    nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                    steps = Arrays.copyOf(steps, steps.length * 2);
+                }
+                if (valueCount + 1 >= values.length) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+
+                int top = nodeCount - 1;
+                Expr expr = nodes[top];
+                int step = steps[top]++;
+                Expr operand = null;
+                switch (expr.kind) {
+                    case Expr.LITERAL -> values[valueCount++] = emit(ir.constant(((Expr.Literal) expr).value));
+                    case Expr.VARIABLE -> {
+                        Expr.Variable variable = (Expr.Variable) expr;
+                        if (variable.slot >= 0) {
+                            values[valueCount++] = locals[variable.slot];
+                        } else if (variable.function != null) {
+                            values[valueCount++] = emit(ir.constant(LoxFunction.of(variable.function)));
+                        } else {
+                            values[valueCount++] = emit(GET_GLOBAL, null, variable.line, variable.name);
+                        }
+                    }
+                    case Expr.GROUPING -> {
+                        if (step == 0) operand = ((Expr.Grouping) expr).expression;
+                    }
+                    case Expr.UNARY -> {
+                        Expr.Unary unary = (Expr.Unary) expr;
+                        if (step == 0) {
+                            operand = unary.right;
+                        } else {
+                            values[valueCount - 1] = emit(UNARY, unary.operator, unary.line, null, values[valueCount - 1]);
+                        }
+                    }
+                    case Expr.BINARY -> {
+                        Expr.Binary binary = (Expr.Binary) expr;
+                        if (step == 0) {
+                            operand = binary.left;
+                        } else if (step == 1) {
+                            operand = binary.right;
+                        } else {
+                            Instruction right = values[--valueCount];
+                            Instruction left = values[valueCount - 1];
+                            values[valueCount - 1] = emit(BINARY, binary.operator, binary.line, null, left, right);
+                        }
+                    }
+                    case Expr.ASSIGN -> {
+                        Expr.Assign assign = (Expr.Assign) expr;
+                        if (step == 0) {
+                            operand = assign.value;
+                        } else if (assign.slot >= 0) {
+                            values[valueCount - 1] = define(assign.slot, assign.name, values[valueCount - 1]);
+                        } else {
+                            emit(SET_GLOBAL, null, assign.line, assign.name, values[valueCount - 1]);
+                        }
+                    }
+                    case Expr.TERNARY -> {
+                        Expr.Ternary ternary = (Expr.Ternary) expr;
+                        if (step == 0) {
+                            operand = ternary.condition;
+                        } else if (step == 1) {
+                            Block ifTrue = ir.newBlock();
+                            Block ifFalse = ir.newBlock();
+                            branch(current, values[--valueCount], ifTrue, ifFalse);
+                            branches.push(new Branch(ifFalse, locals.clone()));
+                            current = ifTrue;
+                            operand = ternary.left;
+                        } else if (step == 2) {
+                            Branch branch = branches.peek();
+                            Instruction[] left = locals;
+                            locals = branch.locals;
+                            branch.locals = left;
+                            branch.leftEnd = current;
+                            current = branch.ifFalse;
+                            operand = ternary.right;
+                        } else {
+                            Branch branch = branches.pop();
+                            Block join = ir.newBlock();
+                            jump(branch.leftEnd, join);
+                            jump(current, join);
+                            current = join;
+                            for (int slot = 0; slot < locals.length; slot++) {
+                                locals[slot] = join(branch.locals[slot], locals[slot]);
+                            }
+                            Instruction right = values[--valueCount];
+                            values[valueCount - 1] = join(values[valueCount - 1], right);
+                        }
+                    }
+                    case Expr.CALL -> {
+                        Expr.Call call = (Expr.Call) expr;
+                        int count = call.arguments.size();
+                        if (step == 0) {
+                            operand = call.callee;
+                        } else if (step <= count) {
+                            operand = call.arguments.get(step - 1);
+                        } else {
+                            // The callee and the arguments, in order
+                            Instruction[] operands = Arrays.copyOfRange(values, valueCount - count - 1, valueCount);
+                            valueCount -= count;
+                            values[valueCount - 1] = emit(CALL, null, call.line, null, operands);
+                        }
+                    }
+                    default -> throw new IllegalStateException("Unknown expression kind " + expr.kind);
+                }
+
+                if (operand != null) {
+                    nodes[nodeCount] = operand;
+                    steps[nodeCount] = 0;
+                    nodeCount++;
+                } else {
+                    nodes[--nodeCount] = null;
+                }
+            }
+            return values[0];
+        }
+
+        /**
+         * @return the value that is {@code left} after the left branch and {@code right} after the right one
+         */
+        private Instruction join(Instruction left, Instruction right) {
+            if (left == right) return left;
+            return emit(PHI, null, 0, null, left, right);
+        }
+    }
+
+    /**
+     * Lists the program one instruction per line, numbering blocks and values in order.
+     */
+    @Override
+    public String toString() {
+        Map<Instruction, Integer> numbers = new HashMap<>();
+        for (Block block : blocks) {
+            for (Instruction instruction : block.instructions) {
+                if (instruction.op < SET_GLOBAL) {
+                    numbers.put(instruction, numbers.size());
+                }
+            }
+        }
+        Map<Block, Integer> blockNumbers = new HashMap<>();
+        for (Block block : blocks) {
+            blockNumbers.put(block, blockNumbers.size());
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (Block block : blocks) {
+            builder.append("block").append(blockNumbers.get(block)).append(":\n");
+            for (Instruction instruction : block.instructions) {
+                builder.append("  ");
+                if (instruction.op < SET_GLOBAL) {
+                    builder.append('v').append(numbers.get(instruction)).append(" = ");
+                }
+                builder.append(switch (instruction.op) {
+                    case CONSTANT -> instruction.value instanceof CharSequence
+                            ? "\"" + instruction.value + "\""
+                            : Interpreter.stringify(instruction.value);
+                    case COPY -> "copy " + operands(instruction, numbers) + " (" + instruction.name + ")";
+                    case PHI -> "phi " + operands(instruction, numbers);
+                    case UNARY, BINARY -> AstPrinter.symbol(instruction.operator) + " " + operands(instruction, numbers);
+                    case GET_GLOBAL -> "get " + instruction.name;
+                    case LOAD_SLOT -> "load " + instruction.value;
+                    case CALL -> "call " + operands(instruction, numbers);
+                    case SET_GLOBAL -> "set " + instruction.name + " " + operands(instruction, numbers);
+                    case DEFINE_GLOBAL -> "define " + instruction.name + " " + operands(instruction, numbers);
+                    case STORE_SLOT -> "store " + instruction.value + " " + operands(instruction, numbers);
+                    case PRINT -> "print " + operands(instruction, numbers);
+                    default -> throw new IllegalStateException("Unknown instruction " + instruction.op);
+                }).append('\n');
+            }
+            if (block.successors.size() == 1) {
+                builder.append("  jump block").append(blockNumbers.get(block.successors.get(0))).append('\n');
+            } else if (block.successors.size() == 2) {
+                builder.append("  branch v").append(numbers.get(block.condition))
+                        .append(" block").append(blockNumbers.get(block.successors.get(0)))
+                        .append(" block").append(blockNumbers.get(block.successors.get(1))).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String operands(Instruction instruction, Map<Instruction, Integer> numbers) {
+        StringBuilder builder = new StringBuilder();
+        for (Instruction operand : instruction.operands) {
+            if (builder.length() > 0) builder.append(' ');
+            builder.append('v').append(numbers.get(operand));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+import static com.craftinginterpreters.lox.Ir.*;
+
+/**
+ * Executes a program in {@link Ir} form, holding every value in a frame indexed by
+ * instruction id. Operators behave exactly as in {@link Interpreter}, whose helpers
+ * it shares; globals live in an {@link Environment}. Functions are called on an
+ * Interpreter that shares the globals.
+ */
+class IrInterpreter {
+    private final Interpreter interpreter = new Interpreter();
+    private final Environment globals = interpreter.globals;
+    private final Printer printer = interpreter.printer;
+
+    void interpret(Ir program) {
+        Object[] values = new Object[program.valueCount()];
+        try {
+            Block previous = null;
+            Block block = program.entry();
+            while (block != null) {
+                List<Instruction> instructions = block.instructions;
+                int first = enter(block, previous, values);
+                for (int i = first; i < instructions.size(); i++) {
+                    execute(instructions.get(i), values);
+                }
+
+                previous = block;
+                block = switch (block.successors.size()) {
+                    case 0 -> null;
+                    case 1 -> block.successors.get(0);
+                    default -> block.successors.get(Interpreter.isTruthy(values[block.condition.id]) ? 0 : 1);
+                };
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    /**
+     * Assigns the phis of a block from the edge it was entered by. They all read
+     * their operands before any of them is assigned, as if at once.
+     *
+     * @return the index of the first instruction after the phis
+     */
+    private static int enter(Block block, Block previous, Object[] values) {
+        List<Instruction> instructions = block.instructions;
+        int count = 0;
+        while (count < instructions.size() && instructions.get(count).op == PHI) {
+            count++;
+        }
+        if (count == 0) return 0;
+
+        int edge = block.predecessors.indexOf(previous);
+        Object[] incoming = new Object[count];
+        for (int i = 0; i < count; i++) {
+            incoming[i] = values[instructions.get(i).operands[edge].id];
+        }
+        for (int i = 0; i < count; i++) {
+            values[instructions.get(i).id] = incoming[i];
+        }
+        return count;
+    }
+
+    private void execute(Instruction instruction, Object[] values) {
+        Instruction[] operands = instruction.operands;
+        switch (instruction.op) {
+            case CONSTANT -> values[instruction.id] = instruction.value;
+            case COPY -> values[instruction.id] = values[operands[0].id];
+            case UNARY -> values[instruction.id] =
+                    Interpreter.unary(instruction.operator, instruction.line, values[operands[0].id]);
+            case BINARY -> values[instruction.id] = Interpreter.binary(instruction.operator, instruction.line,
+                    values[operands[0].id], values[operands[1].id]);
+            case GET_GLOBAL -> values[instruction.id] = globals.get(instruction.name, instruction.line);
+            case SET_GLOBAL -> globals.assign(instruction.name, instruction.line, values[operands[0].id]);
+            case DEFINE_GLOBAL -> globals.define(instruction.name, values[operands[0].id]);
+            case PRINT -> printer.print(values[operands[0].id]);
+            case CALL -> {
+                Object[] arguments = new Object[operands.length - 1];
+                for (int i = 0; i < arguments.length; i++) {
+                    arguments[i] = values[operands[i + 1].id];
+                }
+                values[instruction.id] = interpreter.call(values[operands[0].id], arguments, instruction.line);
+            }
+            default -> throw new IllegalStateException("Not executable here: " + instruction.op);
+        }
+    }
+}
@@ -0,0 +1,595 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.craftinginterpreters.lox.Ir.*;
+
+/**
+ * Optimization passes over a program in {@link Ir} form. They only remove work whose
+ * absence cannot be observed: the optimized program prints the same output, leaves
+ * the globals in the same state and fails with the same runtime error on the same
+ * line as the original.
+ * <ul>
+ *   <li>Constant propagation folds operators on constants, forwards values stored to
+ *       or read from globals to later reads of them, and drops the side of a branch
+ *       on a constant that is never taken.</li>
+ *   <li>Copy propagation replaces copies, and phis that select a single value, by
+ *       that value.</li>
+ *   <li>Common subexpression elimination reuses the value of an operator applied to
+ *       the same operands in a dominating block. If the operator fails, it fails at
+ *       the first one, which always runs before.</li>
+ *   <li>Dead store elimination drops stores to globals that are overwritten before
+ *       anything can observe them, stores of a slot's own value back to it, and
+ *       values that are never used and cannot fail.</li>
+ * </ul>
+ * Like the Resolver, the passes use explicit stacks instead of recursion.
+ */
+final class IrOptimizer {
+    private final Ir program;
+
+    IrOptimizer(Ir program) {
+        this.program = program;
+    }
+
+    /**
+     * Runs every pass until none of them changes the program any more.
+     */
+    static void optimize(Ir program) {
+        IrOptimizer optimizer = new IrOptimizer(program);
+        boolean changed = true;
+        while (changed) {
+            changed = optimizer.propagateConstants();
+            changed |= optimizer.propagateCopies();
+            changed |= optimizer.eliminateCommonSubexpressions();
+            changed |= optimizer.eliminateDeadStores();
+        }
+    }
+
+    /**
+     * @return true if the program changed
+     */
+    boolean propagateConstants() {
+        boolean changed = false;
+        // The value each global is known to hold at the end of each analyzed block
+        Map<Block, Map<String, Instruction>> globalsAtEnd = new HashMap<>();
+        for (Block block : reversePostorder()) {
+            Map<String, Instruction> globals = globalsAtEntry(block, globalsAtEnd);
+            List<Instruction> instructions = block.instructions;
+            for (int i = 0; i < instructions.size(); i++) {
+                Instruction instruction = instructions.get(i);
+                resolveOperands(instruction);
+                switch (instruction.op) {
+                    case UNARY, BINARY -> {
+                        Instruction folded = fold(instruction);
+                        if (folded != null) {
+                            instructions.set(i, folded);
+                            instruction.replacement = folded;
+                            changed = true;
+                        }
+                    }
+                    case GET_GLOBAL -> {
+                        Instruction known = globals.get(instruction.name);
+                        if (known != null) {
+                            instruction.replacement = known;
+                            changed = true;
+                        } else {
+                            globals.put(instruction.name, instruction);
+                        }
+                    }
+                    case SET_GLOBAL, DEFINE_GLOBAL -> globals.put(instruction.name, instruction.operands[0]);
+                    // The function may assign any global
+                    case CALL -> globals.clear();
+                    default -> {
+                    }
+                }
+            }
+
+            if (block.condition != null) {
+                block.condition = resolve(block.condition);
+                if (block.condition.op == CONSTANT) {
+                    boolean taken = Interpreter.isTruthy(block.condition.value);
+                    removeEdge(block, block.successors.get(taken ? 1 : 0));
+                    block.condition = null;
+                    changed = true;
+                }
+            }
+            globalsAtEnd.put(block, globals);
+        }
+
+        if (changed) {
+            removeUnreachableBlocks();
+            mergeBlocks();
+            rewrite();
+        }
+        return changed;
+    }
+
+    /**
+     * What is known about the globals at the start of a block: what all its predecessors
+     * agree on at their end, and nothing if one of them has not been analyzed yet.
+     */
+    private static Map<String, Instruction> globalsAtEntry(Block block, Map<Block, Map<String, Instruction>> atEnd) {
+        Map<String, Instruction> globals = null;
+        for (Block predecessor : block.predecessors) {
+            Map<String, Instruction> known = atEnd.get(predecessor);
+            if (known == null) return new HashMap<>();
+            if (globals == null) {
+                globals = new HashMap<>(known);
+            } else {
+                globals.entrySet().retainAll(known.entrySet());
+            }
+        }
+        return globals == null ? new HashMap<>() : globals;
+    }
+
+    /**
+     * @return a constant holding the value of an operator on constants, or null if it
+     *         has other operands or fails, and so is left to fail when it runs
+     */
+    private Instruction fold(Instruction instruction) {
+        for (Instruction operand : instruction.operands) {
+            if (operand.op != CONSTANT) return null;
+        }
+        Object value;
+        try {
+            value = instruction.op == UNARY
+                    ? Interpreter.unary(instruction.operator, instruction.line, instruction.operands[0].value)
+                    : Interpreter.binary(instruction.operator, instruction.line,
+                            instruction.operands[0].value, instruction.operands[1].value);
+        } catch (RuntimeError error) {
+            return null;
+        }
+        return program.constant(value);
+    }
+
+    /**
+     * @return true if the program changed
+     */
+    boolean propagateCopies() {
+        boolean changed = false;
+        boolean found = true;
+        // Replacing one phi may leave another selecting a single value
+        while (found) {
+            found = false;
+            for (Block block : program.blocks) {
+                for (Instruction instruction : block.instructions) {
+                    if (instruction.replacement != null) continue;
+                    Instruction value = switch (instruction.op) {
+                        case COPY -> resolve(instruction.operands[0]);
+                        case PHI -> onlyOperand(instruction);
+                        default -> null;
+                    };
+                    if (value != null) {
+                        instruction.replacement = value;
+                        found = true;
+                    }
+                }
+            }
+            changed |= found;
+        }
+
+        if (changed) {
+            rewrite();
+        }
+        return changed;
+    }
+
+    /**
+     * @return the one value a phi selects besides itself, or null if there are several
+     */
+    private static Instruction onlyOperand(Instruction phi) {
+        Instruction only = null;
+        for (Instruction operand : phi.operands) {
+            operand = resolve(operand);
+            if (operand == phi || operand == only) continue;
+            if (only != null) return null;
+            only = operand;
+        }
+        return only;
+    }
+
+    /**
+     * Identifies the value of a constant or operator by what it is computed from.
+     */
+    private record Key(int op, TokenType operator, Object value, Instruction left, Instruction right) {
+        Key(Instruction instruction) {
+            this(instruction.op, instruction.operator, instruction.value,
+                    instruction.operands.length > 0 ? instruction.operands[0] : null,
+                    instruction.operands.length > 1 ? instruction.operands[1] : null);
+        }
+    }
+
+    /**
+     * @return true if the program changed
+     */
+    boolean eliminateCommonSubexpressions() {
+        List<Block> order = reversePostorder();
+        Block[] dominators = dominators(order);
+        Map<Block, List<Block>> dominated = new HashMap<>();
+        for (Block block : order.subList(1, order.size())) {
+            dominated.computeIfAbsent(dominators[block.id], dominator -> new ArrayList<>()).add(block);
+        }
+
+        boolean changed = false;
+        // Values computed in the blocks that dominate the current one
+        Map<Key, Instruction> available = new HashMap<>();
+        // Blocks of the dominator tree to visit, and the keys to forget once a subtree is done
+        ArrayDeque<Object> work = new ArrayDeque<>();
+        work.push(program.entry());
+        while (!work.isEmpty()) {
+            Object item = work.pop();
+            if (item instanceof List<?> added) {
+                added.forEach(available::remove);
+                continue;
+            }
+
+            Block block = (Block) item;
+            List<Key> added = new ArrayList<>();
+            for (Instruction instruction : block.instructions) {
+                resolveOperands(instruction);
+                if (instruction.op != CONSTANT && !instruction.isOperator()) continue;
+                Key key = new Key(instruction);
+                Instruction existing = available.get(key);
+                if (existing != null) {
+                    instruction.replacement = existing;
+                    changed = true;
+                } else {
+                    available.put(key, instruction);
+                    added.add(key);
+                }
+            }
+            work.push(added);
+            for (Block child : dominated.getOrDefault(block, List.of())) {
+                work.push(child);
+            }
+        }
+
+        if (changed) {
+            rewrite();
+        }
+        return changed;
+    }
+
+    /**
+     * Finds the immediate dominator of every block with the algorithm of Cooper, Harvey
+     * and Kennedy.
+     *
+     * @param order the reachable blocks in reverse postorder
+     * @return the immediate dominators by block id; the entry block dominates itself
+     */
+    private Block[] dominators(List<Block> order) {
+        int[] position = new int[program.blockCount()];
+        for (int i = 0; i < order.size(); i++) {
+            position[order.get(i).id] = i;
+        }
+        Block[] dominators = new Block[program.blockCount()];
+        Block entry = order.get(0);
+        dominators[entry.id] = entry;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block block : order.subList(1, order.size())) {
+                Block dominator = null;
+                for (Block predecessor : block.predecessors) {
+                    if (dominators[predecessor.id] == null) continue;
+                    dominator = dominator == null ? predecessor : intersect(predecessor, dominator, dominators, position);
+                }
+                if (dominators[block.id] != dominator) {
+                    dominators[block.id] = dominator;
+                    changed = true;
+                }
+            }
+        }
+        return dominators;
+    }
+
+    private static Block intersect(Block a, Block b, Block[] dominators, int[] position) {
+        while (a != b) {
+            while (position[a.id] > position[b.id]) a = dominators[a.id];
+            while (position[b.id] > position[a.id]) b = dominators[b.id];
+        }
+        return a;
+    }
+
+    /**
+     * A store to a global that nothing has observed yet.
+     *
+     * @param defined whether the global was known to be defined before it, so that it cannot fail
+     */
+    private record Store(Instruction instruction, boolean defined) {
+    }
+
+    /**
+     * @return true if the program changed
+     */
+    boolean eliminateDeadStores() {
+        List<Block> order = reversePostorder();
+        int[] types = types(order);
+        Set<Instruction> dead = new HashSet<>();
+
+        // Globals known to be defined at the end of each analyzed block
+        Map<Block, Set<String>> definedAtEnd = new HashMap<>();
+        for (Block block : order) {
+            Set<String> defined = definedAtEntry(block, definedAtEnd);
+            // The last store to each global, until something may observe it; a runtime
+            // error observes them all, as the globals outlive the program
+            Map<String, Store> unobserved = new HashMap<>();
+            for (Instruction instruction : block.instructions) {
+                switch (instruction.op) {
+                    case GET_GLOBAL -> {
+                        if (defined.add(instruction.name)) {
+                            unobserved.clear();
+                        } else {
+                            unobserved.remove(instruction.name);
+                        }
+                    }
+                    case SET_GLOBAL, DEFINE_GLOBAL -> {
+                        boolean wasDefined = !defined.add(instruction.name);
+                        if (instruction.op == SET_GLOBAL && !wasDefined) {
+                            unobserved.clear();
+                        }
+                        Store previous = unobserved.get(instruction.name);
+                        // Dropping it must not change whether this one fails
+                        if (previous != null && (previous.defined()
+                                || previous.instruction().op == DEFINE_GLOBAL && instruction.op == DEFINE_GLOBAL)) {
+                            dead.add(previous.instruction());
+                            wasDefined = previous.defined();
+                        }
+                        unobserved.put(instruction.name, new Store(instruction, wasDefined));
+                    }
+                    case UNARY, BINARY -> {
+                        if (canFail(instruction, types)) {
+                            unobserved.clear();
+                        }
+                    }
+                    // The function may read any global, or fail
+                    case CALL -> unobserved.clear();
+                    case STORE_SLOT -> {
+                        Instruction value = instruction.operands[0];
+                        if (value.op == LOAD_SLOT && value.value.equals(instruction.value)) {
+                            dead.add(instruction);
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+            definedAtEnd.put(block, defined);
+        }
+
+        // Values never used, then the operands only they used, and so on
+        int[] uses = new int[program.valueCount()];
+        for (Block block : order) {
+            for (Instruction instruction : block.instructions) {
+                if (dead.contains(instruction)) continue;
+                for (Instruction operand : instruction.operands) {
+                    uses[operand.id]++;
+                }
+            }
+            if (block.condition != null) {
+                uses[block.condition.id]++;
+            }
+        }
+        ArrayDeque<Instruction> unused = new ArrayDeque<>();
+        for (Block block : order) {
+            for (Instruction instruction : block.instructions) {
+                if (uses[instruction.id] == 0 && isRemovable(instruction, types) && !dead.contains(instruction)) {
+                    unused.push(instruction);
+                }
+            }
+        }
+        while (!unused.isEmpty()) {
+            Instruction instruction = unused.pop();
+            dead.add(instruction);
+            for (Instruction operand : instruction.operands) {
+                if (--uses[operand.id] == 0 && isRemovable(operand, types)) {
+                    unused.push(operand);
+                }
+            }
+        }
+
+        if (dead.isEmpty()) return false;
+        for (Block block : order) {
+            block.instructions.removeIf(dead::contains);
+        }
+        return true;
+    }
+
+    /**
+     * What all the predecessors of a block know to be defined at their end, and nothing
+     * if one of them has not been analyzed yet.
+     */
+    private static Set<String> definedAtEntry(Block block, Map<Block, Set<String>> atEnd) {
+        Set<String> defined = null;
+        for (Block predecessor : block.predecessors) {
+            Set<String> known = atEnd.get(predecessor);
+            if (known == null) return new HashSet<>();
+            if (defined == null) {
+                defined = new HashSet<>(known);
+            } else {
+                defined.retainAll(known);
+            }
+        }
+        return defined == null ? new HashSet<>() : defined;
+    }
+
+    /**
+     * Computes the {@link TypeInference} types each value can have.
+     *
+     * @param order the reachable blocks in reverse postorder
+     * @return the types by instruction id
+     */
+    private int[] types(List<Block> order) {
+        int[] types = new int[program.valueCount()];
+        for (Block block : order) {
+            for (Instruction instruction : block.instructions) {
+                Instruction[] operands = instruction.operands;
+                types[instruction.id] = switch (instruction.op) {
+                    case CONSTANT -> TypeInference.typeOf(instruction.value);
+                    case COPY -> types[operands[0].id];
+                    case PHI -> {
+                        int type = 0;
+                        for (Instruction operand : operands) {
+                            // Not analyzed yet when it comes in over a back edge
+                            type |= types[operand.id] == 0 ? TypeInference.ANY : types[operand.id];
+                        }
+                        yield type;
+                    }
+                    case UNARY -> instruction.operator == TokenType.MINUS ? TypeInference.NUMBER : TypeInference.BOOLEAN;
+                    case BINARY -> TypeInference.binary(instruction.operator, types[operands[0].id], types[operands[1].id]);
+                    default -> TypeInference.ANY;
+                };
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Whether an operator may throw a runtime error, given the types of its operands.
+     */
+    private static boolean canFail(Instruction instruction, int[] types) {
+        int left = types[instruction.operands[0].id];
+        int right = types[instruction.operands[instruction.operands.length - 1].id];
+        return switch (instruction.operator) {
+            case BANG, BANG_EQUAL, EQUAL_EQUAL -> false;
+            case PLUS -> !(left == TypeInference.NUMBER && right == TypeInference.NUMBER
+                    || left == TypeInference.STRING && right == TypeInference.STRING);
+            default -> left != TypeInference.NUMBER || right != TypeInference.NUMBER;
+        };
+    }
+
+    private static boolean isRemovable(Instruction instruction, int[] types) {
+        return switch (instruction.op) {
+            case CONSTANT, COPY, PHI, LOAD_SLOT -> true;
+            case UNARY, BINARY -> !canFail(instruction, types);
+            default -> false;
+        };
+    }
+
+    /**
+     * @return the blocks reachable from the entry, each before its successors
+     *         except along back edges
+     */
+    private List<Block> reversePostorder() {
+        List<Block> postorder = new ArrayList<>();
+        boolean[] visited = new boolean[program.blockCount()];
+        // The path being explored, and the next successor to explore from each block on it
+        Block[] path = new Block[16];
+        int[] next = new int[16];
+        int length = 0;
+
+        path[length++] = program.entry();
+        visited[program.entry().id] = true;
+        while (length > 0) {
+            Block block = path[length - 1];
+            if (next[length - 1] == block.successors.size()) {
+                postorder.add(block);
+                length--;
+                continue;
+            }
+            Block successor = block.successors.get(next[length - 1]++);
+            if (visited[successor.id]) continue;
+            visited[successor.id] = true;
+            if (length == path.length) {
+                path = Arrays.copyOf(path, length * 2);
+                next = Arrays.copyOf(next, length * 2);
+            }
+            path[length] = successor;
+            next[length] = 0;
+            length++;
+        }
+        Collections.reverse(postorder);
+        return postorder;
+    }
+
+    /**
+     * Removes the edge from a block to one of its successors, and the operands of the
+     * successor's phis that came in over it.
+     */
+    private static void removeEdge(Block from, Block to) {
+        from.successors.remove(to);
+        int index = to.predecessors.indexOf(from);
+        to.predecessors.remove(index);
+        for (Instruction instruction : to.instructions) {
+            if (instruction.op != PHI) break;
+            Instruction[] operands = new Instruction[instruction.operands.length - 1];
+            System.arraycopy(instruction.operands, 0, operands, 0, index);
+            System.arraycopy(instruction.operands, index + 1, operands, index, operands.length - index);
+            instruction.operands = operands;
+        }
+    }
+
+    private void removeUnreachableBlocks() {
+        Set<Block> reachable = new HashSet<>(reversePostorder());
+        for (Block block : program.blocks) {
+            if (reachable.contains(block)) continue;
+            for (Block successor : List.copyOf(block.successors)) {
+                if (reachable.contains(successor)) {
+                    removeEdge(block, successor);
+                }
+            }
+        }
+        program.blocks.retainAll(reachable);
+    }
+
+    /**
+     * Appends each block that is only entered from the block before it to that block.
+     */
+    private void mergeBlocks() {
+        Set<Block> merged = new HashSet<>();
+        for (Block block : program.blocks) {
+            if (merged.contains(block)) continue;
+            while (block.successors.size() == 1) {
+                Block next = block.successors.get(0);
+                if (next.predecessors.size() != 1 || next == program.entry() || next == block) break;
+
+                for (Instruction instruction : next.instructions) {
+                    if (instruction.op == PHI) {
+                        instruction.replacement = instruction.operands[0];
+                    } else {
+                        block.instructions.add(instruction);
+                    }
+                }
+                block.successors.clear();
+                block.successors.addAll(next.successors);
+                block.condition = next.condition;
+                for (Block successor : next.successors) {
+                    successor.predecessors.set(successor.predecessors.indexOf(next), block);
+                }
+                merged.add(next);
+            }
+        }
+        program.blocks.removeAll(merged);
+    }
+
+    /**
+     * Drops replaced instructions and makes every use refer to their replacements.
+     */
+    private void rewrite() {
+        for (Block block : program.blocks) {
+            block.instructions.removeIf(instruction -> instruction.replacement != null);
+            for (Instruction instruction : block.instructions) {
+                resolveOperands(instruction);
+            }
+            if (block.condition != null) {
+                block.condition = resolve(block.condition);
+            }
+        }
+    }
+
+    private static void resolveOperands(Instruction instruction) {
+        Instruction[] operands = instruction.operands;
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = resolve(operands[i]);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.craftinginterpreters.lox;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * The statements of a block that a lazy {@link Parser} skipped over.
+ * Only the position of the block in the token list is kept until the statements
+ * are first used; they are then parsed, and resolved against the scope the
+ * {@link Resolver} recorded for the block, so that a block that never runs costs
+ * nothing but brace matching. Types are inferred for them from scratch.
+ */
+final class LazyStatements extends AbstractList<Stmt> {
+    private final List<Token> tokens;
+    // Index of the block's opening brace
+    private final int start;
+    private final boolean shareSubtrees;
+    // Whether the block is in the body of a function, so that it may return
+    private final boolean inFunction;
+
+    // Set when the Resolver reaches the block before it is loaded
+    private Stmt.Block block;
+    private Resolver.Scope scope;
+
+    private List<Stmt> statements;
+    private boolean failed = false;
+    // Set once the statements are resolved; a cached program can run on several threads at once
+    private volatile boolean ready = false;
+
+    LazyStatements(List<Token> tokens, int start, boolean shareSubtrees, boolean inFunction) {
+        this.tokens = tokens;
+        this.start = start;
+        this.shareSubtrees = shareSubtrees;
+        this.inFunction = inFunction;
+    }
+
+    boolean isLoaded() {
+        return statements != null;
+    }
+
+    /**
+     * Records what the body needs to be resolved once it is loaded.
+     *
+     * @param block the block whose statements these are, with its first slot assigned
+     * @param scope the local variables visible in the block
+     */
+    void defer(Stmt.Block block, Resolver.Scope scope) {
+        this.block = block;
+        this.scope = scope;
+    }
+
+    /**
+     * Parses the statements, and resolves them and infers their types if the block
+     * was deferred by the Resolver.
+     *
+     * @throws Parser.ParseError if the body has syntax errors, or uses a local it cannot;
+     *         they are reported the first time only
+     */
+    void load() {
+        if (ready) return;
+        synchronized (this) {
+            // Also reached from the Resolver while this thread resolves them
+            if (statements != null) return;
+            if (failed) throw new Parser.ParseError();
+
+            List<Stmt> parsed;
+            try {
+                parsed = new Parser(tokens, shareSubtrees, true).parseBlock(start, inFunction);
+            } catch (Parser.ParseError error) {
+                failed = true;
+                throw error;
+            }
+            statements = parsed;
+
+            if (block != null) {
+                try {
+                    new Resolver().resolveDeferred(block, scope);
+                } catch (Parser.ParseError error) {
+                    statements = null;
+                    failed = true;
+                    throw error;
+                }
+                new TypeInference().infer(List.of(block));
+                block = null;
+                scope = null;
+            }
+            ready = true;
+        }
+    }
+
+    @Override
+    public Stmt get(int index) {
+        load();
+        return statements.get(index);
+    }
+
+    @Override
+    public int size() {
+        load();
+        return statements.size();
+    }
+}
@@ -3,41 +3,99 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Main class for the Lox interpreter.
  * Handles running scripts from files or in interactive mode.
  */
 public class Lox {
-    // Changed from private to package-private to allow access from tests
-    static boolean hadError;
-    static boolean hadRuntimeError = false;
-    // Changed from final to non-final to allow reassignment during reset
-    static Interpreter interpreter = new Interpreter();
+    // Each thread runs programs in a session of its own
+    private static final ThreadLocal<Session> session = ThreadLocal.withInitial(Session::new);
+    // Kept across resets, so that a daemon reuses the programs it has already compiled
+    static final ProgramCache programs = new ProgramCache(256, 64L << 20);
+
+    static final String USAGE = "Usage: jlox [--lazy-blocks] [--vm] [script]\n       jlox --daemon";
     
+    /**
+     * @return the session of the current thread
+     */
+    static Session session() {
+        return session.get();
+    }
+
     /**
      * Resets the Lox interpreter to a fresh state.
      * This includes resetting error flags and creating a new interpreter instance.
      */
     public static void reset() {
-        hadError = false;
-        hadRuntimeError = false;
-        // Create a new interpreter instance instead of using reflection
-        interpreter = new Interpreter();
+        session.set(new Session());
+    }
+
+    /**
+     * Starts a fresh session on the current thread that writes to the given streams.
+     *
+     * @param out where print statements go
+     * @param err where errors go
+     * @param directory the directory relative paths are resolved against
+     */
+    static void reset(PrintStream out, PrintStream err, Path directory) {
+        session.set(new Session(out, err, directory));
+    }
+
+    /**
+     * Makes a session the current thread's, for running a program that belongs to it.
+     *
+     * @return the session the thread had, to be put back the same way afterwards
+     */
+    static Session useSession(Session next) {
+        Session previous = session.get();
+        session.set(next);
+        return previous;
+    }
+
+    /**
+     * Drops the session of the current thread, so that a thread that is kept for
+     * other work does not hold on to it.
+     */
+    static void endSession() {
+        session.remove();
     }
 
     public static void main(String[] args) throws IOException {
-        switch (args.length) {
-            case 0 -> runPrompt();
-            case 1 -> runFile(args[0]);
-            default -> {
-                System.out.println("Usage: jlox [script]");
-                System.exit(64);
+        if (args.length == 1 && args[0].equals("--daemon")) {
+            LoxDaemon.serve(LoxClient.socketPath());
+            return;
+        }
+
+        List<String> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--lazy-blocks")) {
+                session().lazyBlocks = true;
+            } else if (arg.equals("--vm")) {
+                session().registerVm = true;
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                scripts.add(arg);
             }
         }
+
+        switch (scripts.size()) {
+            case 0 -> runPrompt();
+            case 1 -> runFile(scripts.get(0));
+            default -> usage();
+        }
+    }
+
+    private static void usage() {
+        System.out.println(USAGE);
+        System.exit(64);
     }
 
     /**
@@ -48,12 +106,25 @@ public class Lox {
      */
     public static void runFile(String path) throws IOException {
         var bytes = Files.readAllBytes(Path.of(path));
-        run(new String(bytes, StandardCharsets.UTF_8));
-
-        if (hadError) {
-            System.exit(65);
+        int status = runScript(new String(bytes, StandardCharsets.UTF_8));
+        if (status != 0) {
+            System.exit(status);
         }
-        if (hadRuntimeError) System.exit(70);
+    }
+
+    /**
+     * Runs a whole script.
+     *
+     * @param source the source code to run
+     * @return the exit status: 65 after a syntax error, 70 after a runtime error, 0 otherwise
+     */
+    static int runScript(String source) {
+        run(source);
+
+        Session current = session();
+        if (current.hadError) return 65;
+        if (current.hadRuntimeError) return 70;
+        return 0;
     }
 
     /**
@@ -71,7 +142,7 @@ public class Lox {
                 if (line == null) break;
 
                 run(line);
-                hadError = false;
+                session().hadError = false;
             }
         }
     }
@@ -82,14 +153,53 @@ public class Lox {
      * @param source the source code to run
      */
     private static void run(String source) {
-        var scanner = new Scanner(source);
-        var tokens = scanner.scanTokens();
-        var parser = new Parser(tokens);
-        var statements = parser.parse();
+        Session current = session();
+        boolean lazyBlocks = current.lazyBlocks;
+        var statements = programs.get(source, lazyBlocks);
+        if (statements == null) {
+            var scanner = new Scanner(source);
+            var tokens = scanner.scanTokens();
+            var parser = new Parser(tokens, false, lazyBlocks);
+            statements = parser.parse();
+
+            if (current.hadError) return;
 
-        if (hadError) return;
+            var resolver = new Resolver();
+            resolver.resolve(statements);
 
-        interpreter.interpret(statements);
+            if (current.hadError) return;
+            new TypeInference().infer(statements);
+            programs.put(source, lazyBlocks, statements, tokens.size());
+        }
+
+        if (current.registerVm) {
+            runOnVm(current.vm, statements);
+        } else {
+            current.interpreter.interpret(statements);
+        }
+        if (current.hadError) {
+            // A lazily parsed block reported a syntax error, which it only does once
+            programs.remove(source, lazyBlocks);
+        }
+    }
+
+    /**
+     * Compiles a resolved program to register code and runs it on the vm. Blocks that
+     * are parsed lazily are all parsed before anything runs.
+     *
+     * @param vm the vm to run it on
+     * @param statements the program to run
+     */
+    private static void runOnVm(RegisterVm vm, List<Stmt> statements) {
+        Ir program;
+        try {
+            program = Ir.lower(statements);
+        } catch (Parser.ParseError error) {
+            // Reported by the parser
+            return;
+        }
+        IrOptimizer.optimize(program);
+        vm.interpret(RegisterCode.compile(program));
     }
 
     /**
@@ -114,12 +224,14 @@ public class Lox {
      * @param message the error message
      */
     public static void report(int line, String where, String message) {
-        System.err.printf("[line %d] Error%s: %s%n", line, where, message);
-        hadError = true;
+        Session current = session();
+        current.err().printf("[line %d] Error%s: %s%n", line, where, message);
+        current.hadError = true;
     }
 
     public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+        Session current = session();
+        current.err().println(error.getMessage() + "\n[line " + error.line + "]");
+        current.hadRuntimeError = true;
     }
 }
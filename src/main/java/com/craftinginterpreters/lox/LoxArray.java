@@ -0,0 +1,151 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A growable array, made by the {@link Builtins} {@code numbers} and {@code array}.
+ * An array of numbers keeps them in a {@code double[]}, at 8 bytes each, and boxes an
+ * element only when it is read; any other array keeps its values in an {@code Object[]}.
+ * Indexes are checked against the length, not the capacity.
+ */
+abstract class LoxArray {
+    int length;
+
+    /**
+     * @throws LoxNative.Failure if the index is out of bounds
+     */
+    abstract Object get(int index);
+
+    /**
+     * @throws LoxNative.Failure if the index is out of bounds, or the value cannot be stored
+     */
+    abstract void set(int index, Object value);
+
+    /**
+     * Appends a value, growing the storage when it is full.
+     *
+     * @throws LoxNative.Failure if the value cannot be stored
+     */
+    abstract void add(Object value);
+
+    final void checkIndex(int index) {
+        if (index < 0 || index >= length) {
+            throw new LoxNative.Failure("Index " + index + " is out of bounds for length " + length + ".");
+        }
+    }
+
+    /**
+     * @throws LoxNative.Failure if a value is not an integer
+     */
+    static int index(Object value) {
+        if (value instanceof Double number && number == (int) (double) number) return (int) (double) number;
+        throw new LoxNative.Failure("Array index must be an integer.");
+    }
+
+    static void checkSize(int size) {
+        if (size < 0) {
+            throw new LoxNative.Failure("Array size must not be negative.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return builder.toString();
+    }
+
+    /**
+     * Appends the elements, or [...] if this array is already being printed.
+     *
+     * @param printing the arrays and maps being printed, by identity
+     */
+    void appendTo(StringBuilder builder, Set<Object> printing) {
+        if (!printing.add(this)) {
+            builder.append("[...]");
+            return;
+        }
+        builder.append('[');
+        for (int i = 0; i < length; i++) {
+            if (i > 0) builder.append(", ");
+            Interpreter.stringify(builder, get(i), printing);
+        }
+        builder.append(']');
+        printing.remove(this);
+    }
+
+    /**
+     * An array that holds only numbers, unboxed.
+     */
+    static final class Numbers extends LoxArray {
+        double[] values;
+
+        Numbers(int size) {
+            checkSize(size);
+            values = new double[Math.max(size, 8)];
+            length = size;
+        }
+
+        @Override
+        Object get(int index) {
+            checkIndex(index);
+            return values[index];
+        }
+
+        @Override
+        void set(int index, Object value) {
+            checkIndex(index);
+            values[index] = toDouble(value);
+        }
+
+        @Override
+        void add(Object value) {
+            double number = toDouble(value);
+            if (length == values.length) {
+                values = Arrays.copyOf(values, length * 2);
+            }
+            values[length++] = number;
+        }
+
+        private static double toDouble(Object value) {
+            if (value instanceof Double number) return number;
+            throw new LoxNative.Failure("Can only store numbers in an array of numbers.");
+        }
+    }
+
+    /**
+     * An array that holds any values.
+     */
+    static final class Values extends LoxArray {
+        Object[] values;
+
+        Values(int size) {
+            checkSize(size);
+            values = new Object[Math.max(size, 8)];
+            length = size;
+        }
+
+        @Override
+        Object get(int index) {
+            checkIndex(index);
+            return values[index];
+        }
+
+        @Override
+        void set(int index, Object value) {
+            checkIndex(index);
+            values[index] = value;
+        }
+
+        @Override
+        void add(Object value) {
+            if (length == values.length) {
+                values = Arrays.copyOf(values, length * 2);
+            }
+            values[length++] = value;
+        }
+    }
+}
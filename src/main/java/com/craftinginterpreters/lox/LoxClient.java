@@ -0,0 +1,108 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Thin client for a {@link LoxDaemon}: it runs a script in the daemon's warm JVM
+ * and exits with the script's status. It takes the same arguments as {@link Lox};
+ * without a script, the program is read from standard input.
+ * <p>
+ * The client only needs this class, so it starts without loading the interpreter.
+ * The socket is {@code $JLOX_SOCKET}, or {@code jlox-<user>.sock} in the temporary directory.
+ */
+public class LoxClient {
+    // Stream tags of the frames a daemon sends back
+    static final int STDOUT = 1;
+    static final int STDERR = 2;
+    static final int EXIT = 3;
+
+    public static void main(String[] args) {
+        Path socket = socketPath();
+        int status;
+        try {
+            status = run(socket, args, System.getProperty("user.dir"), System.in, System.out, System.err);
+        } catch (IOException e) {
+            System.err.println("jlox: cannot reach the daemon at " + socket + ": " + e.getMessage());
+            status = 69;
+        }
+        System.out.flush();
+        System.exit(status);
+    }
+
+    static Path socketPath() {
+        String path = System.getenv("JLOX_SOCKET");
+        if (path != null) return Path.of(path);
+        return Path.of(System.getProperty("java.io.tmpdir"), "jlox-" + System.getProperty("user.name") + ".sock");
+    }
+
+    /**
+     * Sends one request to a daemon and copies its output.
+     * A request is the working directory, the arguments, and standard input when
+     * there is no script; the response is a series of tagged frames ending with the
+     * exit status.
+     *
+     * @param socket the daemon's socket
+     * @param args the arguments for {@link Lox}
+     * @param directory the directory relative script paths are resolved against
+     * @param stdin the program to run when the arguments name no script
+     * @param stdout where the script's output goes
+     * @param stderr where the script's errors go
+     * @return the script's exit status
+     * @throws IOException if the daemon cannot be reached or hangs up early
+     */
+    static int run(Path socket, String[] args, String directory, InputStream stdin,
+                   OutputStream stdout, OutputStream stderr) throws IOException {
+        boolean script = false;
+        for (String arg : args) {
+            script |= !arg.startsWith("--");
+        }
+        // Read before connecting, so that a slow writer does not hold a connection open
+        byte[] input = script ? null : stdin.readAllBytes();
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeUTF(directory);
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            if (input == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(input.length);
+                out.write(input);
+            }
+            out.flush();
+
+            var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                int stream = in.read();
+                switch (stream) {
+                    case STDOUT, STDERR -> {
+                        byte[] bytes = in.readNBytes(in.readInt());
+                        (stream == STDOUT ? stdout : stderr).write(bytes);
+                    }
+                    case EXIT -> {
+                        return in.readInt();
+                    }
+                    case -1 -> throw new EOFException("daemon closed the connection");
+                    default -> throw new IOException("unknown frame " + stream);
+                }
+            }
+        }
+    }
+}
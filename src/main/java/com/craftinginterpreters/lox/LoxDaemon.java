@@ -0,0 +1,284 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs scripts for {@link LoxClient}s in a JVM that stays up, so that they start
+ * without paying for JVM startup and run on code the JIT has already compiled.
+ * <p>
+ * Each connection is served by a worker thread of its own, which runs the request
+ * in a fresh {@link Session} that writes to the connection and resolves relative
+ * paths against the client's working directory, so that a slow script
+ * or a client that stops talking does not hold up the others. A client has
+ * {@link #READ_TIMEOUT_MILLIS} to send its request before it is hung up on.
+ */
+final class LoxDaemon implements Closeable {
+    static final long READ_TIMEOUT_MILLIS = 10_000;
+
+    private final Path socket;
+    private final ServerSocketChannel server;
+    private final long readTimeoutMillis;
+    private final ExecutorService workers = Executors.newCachedThreadPool(daemonThreads("jlox-worker"));
+    // Hangs up on clients that take too long to send their request
+    private final ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, daemonThreads("jlox-deadline"));
+
+    /**
+     * Binds the daemon's socket. A socket file left behind by a daemon that is
+     * no longer running is replaced.
+     *
+     * @param socket the path to listen on
+     * @throws IOException if the socket cannot be bound, or another daemon is listening on it
+     */
+    LoxDaemon(Path socket) throws IOException {
+        this(socket, READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param socket the path to listen on
+     * @param readTimeoutMillis how long a client has to send its request
+     * @throws IOException if the socket cannot be bound, or another daemon is listening on it
+     */
+    LoxDaemon(Path socket, long readTimeoutMillis) throws IOException {
+        this.socket = socket;
+        this.readTimeoutMillis = readTimeoutMillis;
+        deadlines.setKeepAliveTime(1, TimeUnit.SECONDS);
+        deadlines.allowCoreThreadTimeOut(true);
+        deadlines.setRemoveOnCancelPolicy(true);
+        if (Files.exists(socket)) {
+            if (isListening(socket)) {
+                throw new IOException("a daemon is already listening on " + socket);
+            }
+            Files.delete(socket);
+        }
+
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        try {
+            // Scripts can read the user's files, so only the user may connect
+            Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the directory's permissions apply
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static boolean isListening(Path socket) {
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Serves requests on a socket until the process is stopped.
+     *
+     * @param socket the path to listen on
+     * @throws IOException if the socket cannot be bound
+     */
+    static void serve(Path socket) throws IOException {
+        try (LoxDaemon daemon = new LoxDaemon(socket)) {
+            System.err.println("jlox: listening on " + socket);
+            daemon.run();
+        }
+    }
+
+    /**
+     * Accepts requests and hands them to workers until the daemon is closed.
+     */
+    void run() throws IOException {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            try {
+                workers.execute(() -> serve(channel));
+            } catch (RejectedExecutionException e) {
+                // Closed while accepting
+                channel.close();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        workers.shutdown();
+        Files.deleteIfExists(socket);
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            handle(channel);
+        } catch (IOException e) {
+            // The client went away or timed out; the others are not affected
+        } finally {
+            Lox.endSession();
+        }
+    }
+
+    private void handle(SocketChannel channel) throws IOException {
+        var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        // Closing the channel fails the read that is waiting on it
+        ScheduledFuture<?> deadline = deadlines.schedule(() -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }, readTimeoutMillis, TimeUnit.MILLISECONDS);
+        String directory;
+        String[] args;
+        byte[] input;
+        try {
+            directory = in.readUTF();
+            args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            int length = in.readInt();
+            input = length < 0 ? null : in.readNBytes(length);
+        } finally {
+            deadline.cancel(false);
+        }
+
+        var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameStream(out, LoxClient.STDOUT, null)),
+                false, StandardCharsets.UTF_8);
+        PrintStream stderr = new PrintStream(new FrameStream(out, LoxClient.STDERR, stdout),
+                true, StandardCharsets.UTF_8);
+
+        Lox.reset(stdout, stderr, Path.of(directory));
+        int status = run(args, input);
+        stdout.flush();
+        stderr.flush();
+        if (stdout.checkError() || stderr.checkError()) {
+            throw new IOException("lost the connection to the client");
+        }
+
+        out.write(LoxClient.EXIT);
+        out.writeInt(status);
+        out.flush();
+    }
+
+    /**
+     * Runs one request in the session of the current thread, with the same arguments
+     * and exit statuses as {@link Lox#main}.
+     */
+    private static int run(String[] args, byte[] input) {
+        Session session = Lox.session();
+        List<String> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--lazy-blocks")) {
+                session.lazyBlocks = true;
+            } else if (arg.equals("--vm")) {
+                session.registerVm = true;
+            } else if (arg.startsWith("--")) {
+                session.out().println(Lox.USAGE);
+                return 64;
+            } else {
+                scripts.add(arg);
+            }
+        }
+        if (scripts.size() > 1 || (scripts.isEmpty() && input == null)) {
+            session.out().println(Lox.USAGE);
+            return 64;
+        }
+
+        String source;
+        if (scripts.isEmpty()) {
+            source = new String(input, StandardCharsets.UTF_8);
+        } else {
+            Path path = session.resolve(scripts.get(0));
+            try {
+                source = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                session.err().println("jlox: cannot read " + path);
+                return 66;
+            }
+        }
+
+        try {
+            return Lox.runScript(source);
+        } catch (RuntimeException | StackOverflowError e) {
+            // A bug in the interpreter must not take the daemon down with it
+            session.err().println("jlox: internal error: " + e);
+            return 70;
+        }
+    }
+
+    /**
+     * Sends everything written to it as frames of one of the client's output streams.
+     */
+    private static final class FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int stream;
+        // Flushed first, so output written before this reaches the client before it
+        private final PrintStream before;
+
+        FrameStream(DataOutputStream out, int stream, PrintStream before) {
+            this.out = out;
+            this.stream = stream;
+            this.before = before;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return;
+            if (before != null) {
+                before.flush();
+            }
+            out.write(stream);
+            out.writeInt(length);
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
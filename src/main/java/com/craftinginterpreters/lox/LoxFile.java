@@ -0,0 +1,206 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file opened for reading by the {@link Builtins} {@code open}, read through a
+ * memory-mapped window that slides along it, so files of any size can be read.
+ * <p>
+ * Lines and records are not copied when they are read. A piece that is all ASCII,
+ * which the scan for its end finds out at no cost, becomes a {@link Rope} over the
+ * mapped bytes, and is decoded the first time its text is used; a piece that is
+ * only counted, measured or skipped never becomes a {@code String}. Other pieces
+ * are decoded as UTF-8 when they are read.
+ */
+final class LoxFile {
+    // The largest window mapped at once, which bounds the length of a line
+    static final int WINDOW_SIZE = 1 << 28;
+
+    private final String path;
+    private final int windowSize;
+    private FileChannel channel;
+    private final long size;
+    // The next byte to read
+    private long position = 0;
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    // Whether the bytes the last scan passed over are all ASCII
+    private boolean ascii;
+
+    /**
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    LoxFile(String path, int windowSize) throws IOException {
+        this.path = path;
+        this.windowSize = windowSize;
+        this.channel = FileChannel.open(Lox.session().resolve(path), StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    /**
+     * Reads the text up to the next line feed, which is dropped along with a carriage
+     * return before it.
+     *
+     * @return the line, or null at the end of the file
+     * @throws LoxNative.Failure if the line does not fit in a window
+     */
+    CharSequence readLine() {
+        if (available() == 0) return null;
+        int start = (int) (position - windowStart);
+        int end = scanLine(start);
+        if (end < 0 && windowEnd() < size) {
+            if (start == 0) {
+                throw new LoxNative.Failure("Line is longer than " + windowSize + " bytes.");
+            }
+            // The line continues past the window, so map one that starts with it
+            remap(position);
+            start = 0;
+            end = scanLine(start);
+            if (end < 0 && windowEnd() < size) {
+                throw new LoxNative.Failure("Line is longer than " + windowSize + " bytes.");
+            }
+        }
+        int lineEnd = end < 0 ? window.limit() : end;
+        position = windowStart + (end < 0 ? lineEnd : end + 1);
+        if (lineEnd > start && window.get(lineEnd - 1) == '\r') lineEnd--;
+        return text(start, lineEnd);
+    }
+
+    /**
+     * Reads the next record of a fixed number of bytes; the last one may be shorter.
+     *
+     * @return the record, or null at the end of the file
+     * @throws LoxNative.Failure if the size is not positive, or does not fit in a window
+     */
+    CharSequence readRecord(int length) {
+        if (length <= 0 || length > windowSize) {
+            throw new LoxNative.Failure("Record size must be between 1 and " + windowSize + ".");
+        }
+        if (available() == 0) return null;
+        length = (int) Math.min(length, size - position);
+        if (position + length > windowEnd()) remap(position);
+        int start = (int) (position - windowStart);
+        ascii = true;
+        for (int i = start; i < start + length; i++) {
+            if (window.get(i) < 0) {
+                ascii = false;
+                break;
+            }
+        }
+        position += length;
+        return text(start, start + length);
+    }
+
+    void close() {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            // Nothing was written, so nothing is lost
+        }
+        channel = null;
+        window = null;
+    }
+
+    /**
+     * Maps the window that holds the next byte, if it is not mapped.
+     *
+     * @return the number of bytes left in the file
+     */
+    private long available() {
+        if (channel == null) {
+            throw new LoxNative.Failure("File " + path + " is closed.");
+        }
+        if (position < size && (window == null || position >= windowEnd())) {
+            remap(position);
+        }
+        return size - position;
+    }
+
+    private long windowEnd() {
+        return window == null ? 0 : windowStart + window.limit();
+    }
+
+    private void remap(long start) {
+        try {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+            windowStart = start;
+        } catch (IOException e) {
+            throw new LoxNative.Failure("Could not read file " + path + ".");
+        }
+    }
+
+    /**
+     * @return the index in the window of the next line feed, or -1 if there is none
+     */
+    private int scanLine(int start) {
+        int limit = window.limit();
+        // Bytes of multi-byte characters are all negative
+        int high = 0;
+        for (int i = start; i < limit; i++) {
+            byte b = window.get(i);
+            if (b == '\n') {
+                ascii = high >= 0;
+                return i;
+            }
+            high |= b;
+        }
+        ascii = high >= 0;
+        return -1;
+    }
+
+    private CharSequence text(int start, int end) {
+        if (start == end) return "";
+        if (ascii) {
+            return Rope.lazy(new MappedText(window, start, end - start));
+        }
+        byte[] bytes = new byte[end - start];
+        window.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "<file " + path + ">";
+    }
+
+    /**
+     * ASCII text still in a mapped window, one char per byte.
+     */
+    private static final class MappedText implements CharSequence {
+        private final MappedByteBuffer window;
+        private final int offset;
+        private final int length;
+
+        MappedText(MappedByteBuffer window, int offset, int length) {
+            this.window = window;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) window.get(offset + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new MappedText(window, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            window.get(offset, bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
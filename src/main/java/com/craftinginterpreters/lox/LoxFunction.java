@@ -0,0 +1,37 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A function declared in Lox. A function sees only its parameters, its own locals and
+ * the globals, so it captures nothing from where it is declared, and one value per
+ * declaration describes it completely; see {@link #of}.
+ * <p>
+ * A call gets a frame on the value stack of the {@link Interpreter}: the arguments
+ * are evaluated straight into its first slots, and the Resolver has assigned the
+ * locals of the body the slots after them.
+ */
+final class LoxFunction {
+    final Stmt.Function declaration;
+
+    private LoxFunction(Stmt.Function declaration) {
+        this.declaration = declaration;
+    }
+
+    /**
+     * @return the function a declaration defines, the same each time it is executed
+     */
+    static LoxFunction of(Stmt.Function declaration) {
+        if (declaration.function == null) {
+            declaration.function = new LoxFunction(declaration);
+        }
+        return declaration.function;
+    }
+
+    int arity() {
+        return declaration.params.size();
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + declaration.name + ">";
+    }
+}
@@ -0,0 +1,269 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A hash map from Lox values to Lox values, made by the {@link Builtins} {@code map}.
+ * <p>
+ * The table is open-addressed with linear probing, and kept in parallel arrays: a
+ * number key is stored as the bits of its {@code double} in a {@code long[]}, so it
+ * is never boxed, and a string key as a flat {@link String}. Each kind of key has a
+ * probe loop of its own. Keys are equal exactly when {@link Interpreter#isEqual}
+ * says they are: a concatenated string and a literal with the same text are the
+ * same key. Removing a key shifts the entries after it back
+ * instead of leaving a tombstone.
+ */
+final class LoxMap {
+    private static final byte EMPTY = 0;
+    private static final byte NUMBER = 1;
+    private static final byte STRING = 2;
+    private static final byte OTHER = 3;
+
+    // The kind of key each entry has, or EMPTY
+    private byte[] kinds = new byte[8];
+    private int[] hashes = new int[8];
+    // Number keys, as Double.doubleToLongBits, which makes every NaN the same key
+    private long[] numbers = new long[8];
+    // String and other keys
+    private Object[] keys = new Object[8];
+    private Object[] values = new Object[8];
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the value of a key, or nil when it has none
+     */
+    Object get(Object key) {
+        int index = find(key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    /**
+     * Looks up a number key without boxing it.
+     */
+    Object get(double key) {
+        long bits = Double.doubleToLongBits(key);
+        int index = findNumber(bits, hashNumber(bits));
+        return index >= 0 ? values[index] : null;
+    }
+
+    boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    void put(Object key, Object value) {
+        if (key instanceof Double number) {
+            put((double) number, value);
+            return;
+        }
+        byte kind;
+        int hash;
+        int index;
+        if (Rope.isString(key)) {
+            key = key.toString();
+            kind = STRING;
+            hash = mix(key.hashCode());
+            index = findString((String) key, hash);
+        } else {
+            kind = OTHER;
+            hash = key == null ? 0 : mix(key.hashCode());
+            index = findOther(key, hash);
+        }
+        if (index >= 0) {
+            values[index] = value;
+            return;
+        }
+        index = insertionPoint(~index, hash);
+        kinds[index] = kind;
+        hashes[index] = hash;
+        keys[index] = key;
+        values[index] = value;
+    }
+
+    /**
+     * Stores a number key without boxing it.
+     */
+    void put(double key, Object value) {
+        long bits = Double.doubleToLongBits(key);
+        int hash = hashNumber(bits);
+        int index = findNumber(bits, hash);
+        if (index >= 0) {
+            values[index] = value;
+            return;
+        }
+        index = insertionPoint(~index, hash);
+        kinds[index] = NUMBER;
+        hashes[index] = hash;
+        numbers[index] = bits;
+        values[index] = value;
+    }
+
+    /**
+     * @return whether the map had the key
+     */
+    boolean remove(Object key) {
+        int index = find(key);
+        if (index < 0) return false;
+
+        // Move each entry after the hole into it, unless the hole is before the slot
+        // the entry hashes to, so that every entry stays reachable from that slot
+        int mask = kinds.length - 1;
+        int hole = index;
+        for (int i = (index + 1) & mask; kinds[i] != EMPTY; i = (i + 1) & mask) {
+            if (((i - hashes[i]) & mask) >= ((i - hole) & mask)) {
+                kinds[hole] = kinds[i];
+                hashes[hole] = hashes[i];
+                numbers[hole] = numbers[i];
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        kinds[hole] = EMPTY;
+        keys[hole] = null;
+        values[hole] = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * @return the keys, in no particular order
+     */
+    LoxArray keys() {
+        LoxArray.Values result = new LoxArray.Values(0);
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] != EMPTY) result.add(key(i));
+        }
+        return result;
+    }
+
+    private Object key(int index) {
+        return kinds[index] == NUMBER ? (Object) Double.longBitsToDouble(numbers[index]) : keys[index];
+    }
+
+    /**
+     * @return the index of the key's entry, or the complement of the empty slot its
+     *         probe ended at
+     */
+    private int find(Object key) {
+        if (key instanceof Double number) {
+            long bits = Double.doubleToLongBits(number);
+            return findNumber(bits, hashNumber(bits));
+        }
+        if (Rope.isString(key)) {
+            String string = key.toString();
+            return findString(string, mix(string.hashCode()));
+        }
+        return findOther(key, key == null ? 0 : mix(key.hashCode()));
+    }
+
+    private int findNumber(long bits, int hash) {
+        int mask = kinds.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            byte kind = kinds[i];
+            if (kind == EMPTY) return ~i;
+            if (kind == NUMBER && numbers[i] == bits) return i;
+        }
+    }
+
+    private int findString(String key, int hash) {
+        int mask = kinds.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            byte kind = kinds[i];
+            if (kind == EMPTY) return ~i;
+            if (kind == STRING && hashes[i] == hash && key.equals(keys[i])) return i;
+        }
+    }
+
+    private int findOther(Object key, int hash) {
+        int mask = kinds.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            byte kind = kinds[i];
+            if (kind == EMPTY) return ~i;
+            if (kind == OTHER && hashes[i] == hash && Interpreter.isEqual(key, keys[i])) return i;
+        }
+    }
+
+    /**
+     * Makes room for a new entry, keeping the table at most half full.
+     *
+     * @param empty the empty slot a probe for the key ended at
+     * @return the slot to put the entry in
+     */
+    private int insertionPoint(int empty, int hash) {
+        size++;
+        if (size * 2 <= kinds.length) return empty;
+
+        byte[] oldKinds = kinds;
+        int[] oldHashes = hashes;
+        long[] oldNumbers = numbers;
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        int capacity = oldKinds.length * 2;
+        kinds = new byte[capacity];
+        hashes = new int[capacity];
+        numbers = new long[capacity];
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKinds.length; j++) {
+            if (oldKinds[j] == EMPTY) continue;
+            int i = oldHashes[j] & mask;
+            while (kinds[i] != EMPTY) i = (i + 1) & mask;
+            kinds[i] = oldKinds[j];
+            hashes[i] = oldHashes[j];
+            numbers[i] = oldNumbers[j];
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+        int i = hash & mask;
+        while (kinds[i] != EMPTY) i = (i + 1) & mask;
+        return i;
+    }
+
+    private static int hashNumber(long bits) {
+        return mix((int) (bits ^ (bits >>> 32)));
+    }
+
+    // Spreads the bits of a hash code, since the low bits alone choose the slot
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return builder.toString();
+    }
+
+    /**
+     * Appends the entries, or {...} if this map is already being printed.
+     *
+     * @param printing the arrays and maps being printed, by identity
+     */
+    void appendTo(StringBuilder builder, Set<Object> printing) {
+        if (!printing.add(this)) {
+            builder.append("{...}");
+            return;
+        }
+        builder.append('{');
+        boolean first = true;
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] == EMPTY) continue;
+            if (!first) builder.append(", ");
+            first = false;
+            Interpreter.stringify(builder, key(i), printing);
+            builder.append(": ");
+            Interpreter.stringify(builder, values[i], printing);
+        }
+        builder.append('}');
+        printing.remove(this);
+    }
+}
@@ -0,0 +1,215 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A function implemented by a static Java method, which Lox calls like any other.
+ * <p>
+ * The method is bound once, when it is registered: every parameter gets an adapter
+ * that checks and converts the Lox value passed for it, a whole-number result is
+ * widened to the {@code double} every Lox number is, and the whole is spread over an
+ * argument array. A
+ * call is then a single {@code invokeExact} of that handle, with no reflection and
+ * no lookup by name or type.
+ * <p>
+ * Parameters may be {@code double}, {@code int}, {@code boolean}, {@code String},
+ * {@code CharSequence}, which does not flatten a concatenated string, {@link LoxArray},
+ * {@link LoxMap}, {@link LoxFile}, or {@code Object}, which takes any Lox value as it is. The method may return those, {@code long} or
+ * {@code void}, which returns nil; other objects are passed to Lox as they are. A
+ * method reports an error in Lox's terms by throwing a {@link Failure}.
+ */
+final class LoxNative {
+    // Converts a Lox value to each parameter type other than Object
+    private static final Map<Class<?>, MethodHandle> ARGUMENTS;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            ARGUMENTS = Map.of(
+                    double.class, lookup.findStatic(LoxNative.class, "toDouble",
+                            MethodType.methodType(double.class, Object.class)),
+                    int.class, lookup.findStatic(LoxNative.class, "toInt",
+                            MethodType.methodType(int.class, Object.class)),
+                    boolean.class, lookup.findStatic(LoxNative.class, "toBoolean",
+                            MethodType.methodType(boolean.class, Object.class)),
+                    String.class, lookup.findStatic(LoxNative.class, "toJavaString",
+                            MethodType.methodType(String.class, Object.class)),
+                    CharSequence.class, lookup.findStatic(LoxNative.class, "toCharSequence",
+                            MethodType.methodType(CharSequence.class, Object.class)),
+                    LoxArray.class, lookup.findStatic(LoxNative.class, "toArray",
+                            MethodType.methodType(LoxArray.class, Object.class)),
+                    LoxMap.class, lookup.findStatic(LoxNative.class, "toMap",
+                            MethodType.methodType(LoxMap.class, Object.class)),
+                    LoxFile.class, lookup.findStatic(LoxNative.class, "toFile",
+                            MethodType.methodType(LoxFile.class, Object.class)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final String name;
+    private final int arity;
+    // Of type (Object[])Object
+    private final MethodHandle invoker;
+
+    private LoxNative(String name, int arity, MethodHandle invoker) {
+        this.name = name;
+        this.arity = arity;
+        this.invoker = invoker;
+    }
+
+    /**
+     * Binds a static method.
+     *
+     * @param name the name the function has in Lox
+     * @param target a handle of the method
+     * @throws IllegalArgumentException if a parameter or the result has a type Lox cannot pass
+     */
+    static LoxNative of(String name, MethodHandle target) {
+        MethodType type = target.type();
+        int arity = type.parameterCount();
+        MethodHandle adapted = target.asFixedArity();
+        for (int i = 0; i < arity; i++) {
+            Class<?> parameter = type.parameterType(i);
+            if (parameter == Object.class) continue;
+            MethodHandle adapter = ARGUMENTS.get(parameter);
+            if (adapter == null) {
+                throw new IllegalArgumentException("Native function " + name + " takes a " + parameter.getName());
+            }
+            adapted = MethodHandles.filterArguments(adapted, i, adapter);
+        }
+
+        Class<?> result = type.returnType();
+        if (result == int.class || result == long.class) {
+            adapted = adapted.asType(adapted.type().changeReturnType(double.class));
+        } else if (result.isPrimitive() && result != void.class && result != double.class && result != boolean.class) {
+            throw new IllegalArgumentException("Native function " + name + " returns a " + result.getName());
+        }
+        // Boxes a double or boolean, and makes a void method return null
+        MethodHandle invoker = adapted.asType(MethodType.genericMethodType(arity))
+                .asSpreader(Object[].class, arity);
+        return new LoxNative(name, arity, invoker);
+    }
+
+    /**
+     * Binds every public static method a class declares, as a function of the same name.
+     *
+     * @param lookup a lookup that can access the methods
+     * @throws IllegalArgumentException if a method cannot be bound, or two have the same name
+     */
+    static List<LoxNative> bindAll(MethodHandles.Lookup lookup, Class<?> host) {
+        List<LoxNative> functions = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Method method : host.getDeclaredMethods()) {
+            int modifiers = method.getModifiers();
+            if (!Modifier.isPublic(modifiers) || !Modifier.isStatic(modifiers)) continue;
+            if (!names.add(method.getName())) {
+                throw new IllegalArgumentException("Native function " + method.getName() + " is overloaded");
+            }
+            try {
+                functions.add(of(method.getName(), lookup.unreflect(method)));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Cannot access " + method, e);
+            }
+        }
+        return functions;
+    }
+
+    int arity() {
+        return arity;
+    }
+
+    /**
+     * @param line the line of the call, for runtime errors
+     * @return the result as a Lox value
+     * @throws RuntimeError if the arguments do not fit the method, or it throws
+     */
+    Object call(Object[] arguments, int line) {
+        if (arguments.length != arity) {
+            throw new RuntimeError(line, "Expected " + arity + " arguments but got " + arguments.length + ".");
+        }
+        try {
+            return (Object) invoker.invokeExact(arguments);
+        } catch (ArgumentError error) {
+            throw new RuntimeError(line, "Argument to " + name + " must be " + error.getMessage() + ".");
+        } catch (Failure failure) {
+            throw new RuntimeError(line, failure.getMessage());
+        } catch (RuntimeError | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new RuntimeError(line, "Native function " + name + " failed: " + error);
+        }
+    }
+
+    /**
+     * An error a native function reports, as the runtime error of the call it fails.
+     */
+    static final class Failure extends RuntimeException {
+        Failure(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * An argument that does not convert to its parameter type; the message says what it should be.
+     */
+    private static final class ArgumentError extends RuntimeException {
+        ArgumentError(String expected) {
+            super(expected, null, false, false);
+        }
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof Double number) return number;
+        throw new ArgumentError("a number");
+    }
+
+    private static int toInt(Object value) {
+        if (value instanceof Double number && number == (int) (double) number) return (int) (double) number;
+        throw new ArgumentError("an integer");
+    }
+
+    private static boolean toBoolean(Object value) {
+        if (value instanceof Boolean bool) return bool;
+        throw new ArgumentError("a boolean");
+    }
+
+    private static String toJavaString(Object value) {
+        if (Rope.isString(value)) return value.toString();
+        throw new ArgumentError("a string");
+    }
+
+    private static CharSequence toCharSequence(Object value) {
+        if (Rope.isString(value)) return (CharSequence) value;
+        throw new ArgumentError("a string");
+    }
+
+    private static LoxArray toArray(Object value) {
+        if (value instanceof LoxArray array) return array;
+        throw new ArgumentError("an array");
+    }
+
+    private static LoxMap toMap(Object value) {
+        if (value instanceof LoxMap map) return map;
+        throw new ArgumentError("a map");
+    }
+
+    private static LoxFile toFile(Object value) {
+        if (value instanceof LoxFile file) return file;
+        throw new ArgumentError("a file");
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn " + name + ">";
+    }
+}
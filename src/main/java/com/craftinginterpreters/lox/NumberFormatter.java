@@ -0,0 +1,77 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formats Lox numbers the way {@code print} shows them: {@link Double#toString(double)}
+ * with a trailing {@code ".0"} removed.
+ * Digits are written straight into a caller-supplied byte buffer, so printing a number
+ * does not allocate intermediate strings.
+ */
+final class NumberFormatter {
+    /**
+     * Upper bound on the number of bytes {@link #format} writes for a single value.
+     */
+    static final int MAX_LENGTH = 32;
+
+    // Double.toString switches to computerized scientific notation at 10^7
+    private static final double PLAIN_LIMIT = 1e7;
+
+    private NumberFormatter() {
+    }
+
+    /**
+     * Writes the printed form of a number into the buffer.
+     *
+     * @param value the number to format
+     * @param buffer the destination, with at least {@link #MAX_LENGTH} bytes free after {@code offset}
+     * @param offset the position of the first byte to write
+     * @return the position just after the last byte written
+     */
+    static int format(double value, byte[] buffer, int offset) {
+        if (Math.abs(value) < PLAIN_LIMIT && value == (long) value) {
+            // Integral values print without a fractional part; keep the sign of -0
+            boolean negative = value < 0 || (value == 0 && 1 / value < 0);
+            return formatIntegral((long) Math.abs(value), negative, buffer, offset);
+        }
+
+        // Non-integral and large values never end in ".0", so the JDK text is used as is
+        String text = Double.toString(value);
+        for (int i = 0; i < text.length(); i++) {
+            buffer[offset++] = (byte) text.charAt(i);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the printed form of a number as a string.
+     *
+     * @param value the number to format
+     * @return the formatted number
+     */
+    static String toString(double value) {
+        byte[] buffer = new byte[MAX_LENGTH];
+        int length = format(value, buffer, 0);
+        return new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int formatIntegral(long magnitude, boolean negative, byte[] buffer, int offset) {
+        if (negative) {
+            buffer[offset++] = '-';
+        }
+
+        int digits = 1;
+        for (long rest = magnitude / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+
+        int end = offset + digits;
+        int position = end;
+        do {
+            buffer[--position] = (byte) ('0' + (magnitude % 10));
+            magnitude /= 10;
+        } while (magnitude != 0);
+
+        return end;
+    }
+}
@@ -1,16 +1,75 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
 public class Parser {
+    // Nesting beyond this is parsed with an explicit stack rather than recursion
+    private static final int MAX_RECURSION_DEPTH = 200;
+
     private final List<Token> tokens;
     private int current = 0;
+    private int depth = 0;
+    // What is open while parsing a declaration, innermost first: the statements of each
+    // block parsed so far, and each loop or function whose body comes next
+    private final ArrayDeque<Object> open = new ArrayDeque<>();
+    // Function bodies the parser is in, where `return` may appear
+    private int functions = 0;
+    // One string per distinct identifier, so the AST does not keep every lexeme alive
+    private final Map<String, String> names = new HashMap<>();
+
+    // Hash-consing of pure expressions, see Parser(List, boolean)
+    private final boolean shareSubtrees;
+    private final Map<Object, Expr.Literal> constants = new HashMap<>();
+    private final Map<Shape, Expr> expressions = new HashMap<>();
+    private final Set<Expr> canonical = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Skip over block bodies and parse them on first use, see Parser(List, boolean, boolean)
+    private final boolean lazyBlocks;
+    private int errors = 0;
 
     Parser(List<Token> tokens) {
+        this(tokens, false);
+    }
+
+    /**
+     * Creates a parser that can share structurally identical subtrees.
+     * With sharing on, equal literals become a single node, and variable reads and
+     * unary, binary and grouping expressions built only from such nodes are hash-consed,
+     * so a repeated subexpression is stored once however often it appears.
+     *
+     * @param tokens the tokens to parse
+     * @param shareSubtrees whether to hash-cons pure expressions
+     */
+    Parser(List<Token> tokens, boolean shareSubtrees) {
+        this(tokens, shareSubtrees, false);
+    }
+
+    /**
+     * Creates a parser that can defer parsing block bodies.
+     * With lazy blocks on, the parser only matches braces to find where a block
+     * ends; its statements are parsed the first time they are used, see
+     * {@link LazyStatements}. Syntax errors inside a block are then reported when
+     * it is first executed, in the same format as in eager mode.
+     *
+     * @param tokens the tokens to parse
+     * @param shareSubtrees whether to hash-cons pure expressions
+     * @param lazyBlocks whether to defer parsing block bodies
+     */
+    Parser(List<Token> tokens, boolean shareSubtrees, boolean lazyBlocks) {
         this.tokens = tokens;
+        this.shareSubtrees = shareSubtrees;
+        this.lazyBlocks = lazyBlocks;
     }
 
     List<Stmt> parse() {
@@ -22,14 +81,115 @@ public class Parser {
         return declarations;
     }
 
+    /**
+     * Parses the single top-level declaration that starts at a given token, for
+     * reparsing part of a program. {@link #position()} is then just past it.
+     *
+     * @param start the index of the declaration's first token
+     * @return the declaration, or null if it has a syntax error, which has been reported
+     */
+    Stmt parseDeclaration(int start) {
+        current = start;
+        return declaration();
+    }
+
+    /**
+     * @return the index of the next token to parse
+     */
+    int position() {
+        return current;
+    }
+
+    /**
+     * Parses the block that starts at a given token, for a lazily parsed block.
+     * Blocks nested in it are deferred again.
+     *
+     * @param start the index of the block's opening brace
+     * @param inFunction whether the block is in the body of a function
+     * @return the statements of the block
+     * @throws ParseError if the block has syntax errors, which have been reported
+     */
+    List<Stmt> parseBlock(int start, boolean inFunction) {
+        current = start + 1;
+        functions = inFunction ? 1 : 0;
+        open.push(new ArrayList<Stmt>());
+        Stmt block = declaration();
+        if (errors > 0) {
+            throw new ParseError();
+        }
+        return ((Stmt.Block) block).statements;
+    }
+
+    /**
+     * Parses one top-level declaration.
+     * Blocks, loops and functions are parsed without recursion: every open block keeps
+     * the statements parsed so far on an explicit stack, and every loop and function its
+     * header until its body has been parsed, so nesting is limited only by the heap.
+     * A statement that fails to parse becomes {@code null} in its enclosing block,
+     * and so does a loop or function whose header or body fails to parse.
+     */
+    @SuppressWarnings("unchecked")
     private Stmt declaration() {
-        try {
-            if (match(VAR)) return varDeclaration();
-            return statement();
-        } catch (ParseError e) {
-            synchronize();
-            return null;
+        while (true) {
+            Stmt stmt;
+            try {
+                if (open.peek() instanceof List<?> statements && (check(RIGHT_BRACE) || isAtEnd())) {
+                    open.pop();
+                    stmt = new Stmt.Block(endBlock((List<Stmt>) statements));
+                } else if (lazyBlocks && check(LEFT_BRACE) && (stmt = lazyBlock()) != null) {
+                    // Skipped to the end of the block
+                } else if (match(LEFT_BRACE)) {
+                    open.push(new ArrayList<Stmt>());
+                    continue;
+                } else if (open.peek() instanceof Loop && (check(VAR) || check(FUN))) {
+                    throw error(advance(), "Expect a statement as loop body.");
+                } else if (match(VAR)) {
+                    stmt = varDeclaration();
+                } else if (match(FUN)) {
+                    open.push(functionHeader());
+                    continue;
+                } else if (match(WHILE)) {
+                    open.push(whileHeader());
+                    continue;
+                } else if (match(FOR)) {
+                    open.push(forHeader());
+                    continue;
+                } else {
+                    stmt = statement();
+                }
+            } catch (ParseError e) {
+                synchronize();
+                stmt = null;
+            }
+
+            while (open.peek() instanceof Loop || open.peek() instanceof Function) {
+                Object header = open.pop();
+                stmt = header instanceof Loop loop ? loop(loop, stmt) : function((Function) header, stmt);
+            }
+            if (open.isEmpty()) return stmt;
+            ((List<Stmt>) open.peek()).add(stmt);
+        }
+    }
+
+    /**
+     * Skips over a block by matching braces, without parsing what is inside.
+     *
+     * @return the block with a deferred body, or null if the block is never closed;
+     *         it is then parsed eagerly so that the error is reported right away
+     */
+    private Stmt lazyBlock() {
+        int start = current;
+        int nesting = 0;
+        for (int i = start; tokens.get(i).type != EOF; i++) {
+            TokenType type = tokens.get(i).type;
+            if (type == LEFT_BRACE) {
+                nesting++;
+            } else if (type == RIGHT_BRACE && --nesting == 0) {
+                current = i + 1;
+                return new Stmt.Block(new LazyStatements(tokens, start, shareSubtrees, functions > 0));
+            }
         }
+        return null;
     }
 
     private Stmt.Var varDeclaration() {
@@ -39,21 +199,108 @@ public class Parser {
             initializer = expression();
         }
         consume(SEMICOLON, "`var` statement should end with `;`");
-        return new Stmt.Var(name, initializer);
+        // Later reads of this name may resolve to the new variable
+        forgetSharedReads();
+        return new Stmt.Var(name(name), initializer);
+    }
+
+    /**
+     * The header of a loop whose body is parsed next. A `for` loop is desugared into
+     * a `while` loop, in a block with its initializer if it has one.
+     *
+     * @param increment evaluated after the body, or null
+     */
+    private record Loop(Stmt initializer, Expr condition, Expr increment) {}
+
+    private Loop whileHeader() {
+        consume(LEFT_PAREN, "Expect '(' after 'while'.");
+        Expr condition = expression();
+        consume(RIGHT_PAREN, "Expect ')' after condition.");
+        return new Loop(null, condition, null);
+    }
+
+    private Loop forHeader() {
+        consume(LEFT_PAREN, "Expect '(' after 'for'.");
+        Stmt initializer;
+        if (match(SEMICOLON)) {
+            initializer = null;
+        } else if (match(VAR)) {
+            initializer = varDeclaration();
+        } else {
+            initializer = expressionStatement();
+        }
+
+        Expr condition = check(SEMICOLON) ? literal(true) : expression();
+        consume(SEMICOLON, "Expect ';' after loop condition.");
+        Expr increment = check(RIGHT_PAREN) ? null : expression();
+        consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+        return new Loop(initializer, condition, increment);
+    }
+
+    /**
+     * @return the loop with the given body, or null if the body failed to parse
+     */
+    private Stmt loop(Loop loop, Stmt body) {
+        if (body == null) return null;
+        if (loop.increment() != null) {
+            body = new Stmt.Block(List.of(body, new Stmt.Expression(loop.increment())));
+        }
+        Stmt stmt = new Stmt.While(loop.condition(), body);
+        if (loop.initializer() == null) return stmt;
+
+        // Reads after the loop no longer see a variable its initializer declared
+        forgetSharedReads();
+        return new Stmt.Block(List.of(loop.initializer(), stmt));
+    }
+
+    /**
+     * The header of a function whose body, a block, is parsed next.
+     */
+    private record Function(Token name, List<String> params) {}
+
+    private Function functionHeader() {
+        Token name = consume(IDENTIFIER, "Expect function name.");
+        consume(LEFT_PAREN, "Expect '(' after function name.");
+        List<String> params = new ArrayList<>();
+        if (!check(RIGHT_PAREN)) {
+            do {
+                if (params.size() >= 255) {
+                    error(peek(), "Can't have more than 255 parameters.");
+                }
+                params.add(name(consume(IDENTIFIER, "Expect parameter name.")));
+            } while (match(COMMA));
+        }
+        consume(RIGHT_PAREN, "Expect ')' after parameters.");
+        if (!check(LEFT_BRACE)) {
+            throw error(peek(), "Expect '{' before function body.");
+        }
+        // Reads in the body see the parameters, not what they shadow
+        forgetSharedReads();
+        functions++;
+        return new Function(name, params);
+    }
+
+    /**
+     * @return the function with the given body, or null if the body failed to parse
+     */
+    private Stmt function(Function function, Stmt body) {
+        functions--;
+        // Later reads of its name may resolve to the function
+        forgetSharedReads();
+        if (body == null) return null;
+        return new Stmt.Function(name(function.name()), function.params(), (Stmt.Block) body);
     }
 
     private Stmt statement() {
         if (match(PRINT)) return printStatement();
-        if (match(LEFT_BRACE)) return new Stmt.Block(block());
+        if (match(RETURN)) return returnStatement();
 
         return expressionStatement();
     }
 
-    private List<Stmt> block() {
-        List<Stmt> statements = new ArrayList<>();
-        while (!check(RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
-        }
+    private List<Stmt> endBlock(List<Stmt> statements) {
+        // Reads after the block no longer see the variables declared in it
+        forgetSharedReads();
         consume(RIGHT_BRACE, "Expect '}' after block.");
         return statements;
     }
@@ -70,127 +317,393 @@ public class Parser {
         return new Stmt.Print(value);
     }
 
+    private Stmt returnStatement() {
+        if (functions == 0) {
+            error(previous(), "Can't return from top-level code.");
+        }
+        Expr value = check(SEMICOLON) ? null : expression();
+        consume(SEMICOLON, "Expect ';' after return value.");
+        return new Stmt.Return(value);
+    }
+
     private Expr expression() {
-        return commaSequence();
+        return parsePrecedence(Precedence.COMMA);
         /*
         a1 ? bb1 ? bb2 : bb3 : (a2 ? b2 : (a3 ? b3 : c))
          */
     }
 
-    private Expr commaSequence() {
-        Expr expr = assignment();
-        while (match(COMMA)) {
-            Token operator = previous();
-            Expr right = assignment();
-            expr = new Expr.Binary(expr, operator, right);
+    /**
+     * Binding power of infix operators, from loosest to tightest.
+     */
+    private enum Precedence {
+        NONE, COMMA, ASSIGNMENT, TERNARY, EQUALITY, COMPARISON, TERM, FACTOR, UNARY, CALL;
+
+        private static final Precedence[] LEVELS = values();
+
+        Precedence higher() {
+            return LEVELS[ordinal() + 1];
         }
-        return expr;
     }
 
-    private Expr assignment() {
-        Expr expr = ternary();
-        if (match(EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
+    // Infix precedence of every token type, indexed by ordinal
+    private static final Precedence[] INFIX = new Precedence[TokenType.values().length];
+
+    static {
+        Arrays.fill(INFIX, Precedence.NONE);
+        INFIX[COMMA.ordinal()] = Precedence.COMMA;
+        INFIX[EQUAL.ordinal()] = Precedence.ASSIGNMENT;
+        INFIX[QUESTION.ordinal()] = Precedence.TERNARY;
+        INFIX[BANG_EQUAL.ordinal()] = Precedence.EQUALITY;
+        INFIX[EQUAL_EQUAL.ordinal()] = Precedence.EQUALITY;
+        INFIX[GREATER.ordinal()] = Precedence.COMPARISON;
+        INFIX[GREATER_EQUAL.ordinal()] = Precedence.COMPARISON;
+        INFIX[LESS.ordinal()] = Precedence.COMPARISON;
+        INFIX[LESS_EQUAL.ordinal()] = Precedence.COMPARISON;
+        INFIX[MINUS.ordinal()] = Precedence.TERM;
+        INFIX[PLUS.ordinal()] = Precedence.TERM;
+        INFIX[STAR.ordinal()] = Precedence.FACTOR;
+        INFIX[SLASH.ordinal()] = Precedence.FACTOR;
+        // A call is an infix operator whose right side is the argument list
+        INFIX[LEFT_PAREN.ordinal()] = Precedence.CALL;
+    }
+
+    /**
+     * Parses an expression whose infix operators all bind at least as tightly as
+     * the given precedence.
+     * Ordinary expressions are parsed recursively; past {@link #MAX_RECURSION_DEPTH}
+     * nested operands the rest of the expression is parsed with an explicit stack.
+     */
+    private Expr parsePrecedence(Precedence precedence) {
+        if (depth >= MAX_RECURSION_DEPTH) {
+            return parsePrecedenceIteratively(precedence);
+        }
+
+        depth++;
+        try {
+            Expr expr = unary();
+
+            while (true) {
+                // EOF maps to NONE, which is below every level we are called with
+                Precedence infix = INFIX[peek().type.ordinal()];
+                if (infix.ordinal() < precedence.ordinal()) break;
+
+                Token operator = advance();
+                expr = switch (operator.type) {
+                    // Right-associative: the value may itself be an assignment
+                    case EQUAL -> assignment(expr, operator, parsePrecedence(Precedence.ASSIGNMENT));
+                    case QUESTION -> ternary(expr);
+                    case LEFT_PAREN -> call(expr);
+                    default -> binary(expr, operator, parsePrecedence(infix.higher()));
+                };
             }
 
-            error(equals, "Invalid assignment target.");
+            return expr;
+        } finally {
+            depth--;
         }
+    }
 
-        return expr;
+    private Expr ternary(Expr condition) {
+        Expr left = parsePrecedence(Precedence.EQUALITY);
+        consume(COLON, "Expected ':' after true branch of ternary operator.");
+        Expr right = parsePrecedence(Precedence.TERNARY);
+        return ternary(condition, left, right);
+    }
+
+    private static Expr ternary(Expr condition, Expr left, Expr right) {
+        Expr.Ternary ternary = new Expr.Ternary(condition, left, right);
+        ternary.calls = Interpreter.calls(condition) || Interpreter.calls(left) || Interpreter.calls(right);
+        return ternary;
     }
 
-    private Expr ternary() {
-        Expr expr = equality();
-        if (match(QUESTION)) {
-            Expr left = equality();
-            consume(COLON, "Expected ':' after true branch of ternary operator.");
-            Expr right = ternary();
-            expr = new Expr.Ternary(expr, left, right);
+    private Expr call(Expr callee) {
+        List<Expr> arguments = new ArrayList<>();
+        if (!check(RIGHT_PAREN)) {
+            do {
+                checkArgumentCount(arguments);
+                // Commas separate the arguments rather than being operators
+                arguments.add(parsePrecedence(Precedence.ASSIGNMENT));
+            } while (match(COMMA));
         }
-        return expr;
+        return finishCall(callee, arguments);
     }
 
-    private Expr equality() {
-        Expr expr = comparison();
-        
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+    private void checkArgumentCount(List<Expr> arguments) {
+        if (arguments.size() >= 255) {
+            error(peek(), "Can't have more than 255 arguments.");
         }
-        return expr;
     }
 
-    private Expr comparison() {
-        Expr expr = term();
-        
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr finishCall(Expr callee, List<Expr> arguments) {
+        Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        return new Expr.Call(callee, paren.line, arguments);
+    }
+
+    private Expr unary() {
+        switch (peek().type) {
+            case BANG, MINUS -> {
+                Token operator = advance();
+                Expr right = parsePrecedence(Precedence.UNARY);
+                return unary(operator, right);
+            }
+            case LEFT_PAREN -> {
+                advance();
+                Expr expr = expression();
+                consume(RIGHT_PAREN, "Expect ')' after expression.");
+                return grouping(expr);
+            }
+            default -> {
+                return primary();
+            }
         }
-        
-        return expr;
     }
 
-    private Expr term() {
-        Expr expr = factor();
-        
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+    /**
+     * What the iterative expression parser does once the operand it is working on is
+     * complete. Nested subexpressions push steps on an explicit stack instead of
+     * recursing, so their nesting depth is limited only by the heap.
+     */
+    private enum Step {
+        // Apply infix operators binding at least as tightly as `precedence`
+        OPERATORS,
+        // Wrap the operand into a unary expression
+        UNARY,
+        // Expect ')' and wrap the operand into a grouping
+        GROUPING,
+        // The operand is the right side of a binary expression
+        BINARY,
+        // The operand is the value assigned to `left`
+        ASSIGNMENT,
+        // The operand is the true branch of a ternary with condition `left`
+        TERNARY_MIDDLE,
+        // The operand is the false branch of a ternary
+        TERNARY_RIGHT,
+        // The operand is the next argument of a call to `left`
+        CALL
+    }
+
+    private record Pending(Step step, Precedence precedence, Token operator, Expr left, Expr middle,
+                           List<Expr> arguments) {
+        static Pending operators(Precedence precedence) {
+            return new Pending(Step.OPERATORS, precedence, null, null, null, null);
+        }
+
+        static Pending of(Step step, Token operator, Expr left) {
+            return new Pending(step, null, operator, left, null, null);
         }
-        
-        return expr;
     }
 
-    private Expr factor() {
-        Expr expr = unary();
-        
-        while (match(STAR, SLASH)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    /**
+     * Same as {@link #parsePrecedence}, but keeps pending work on an explicit stack
+     * instead of the Java call stack.
+     */
+    private Expr parsePrecedenceIteratively(Precedence precedence) {
+        ArrayDeque<Pending> pending = new ArrayDeque<>();
+        pending.push(Pending.operators(precedence));
+
+        operand:
+        while (true) {
+            Expr expr = prefix(pending);
+
+            while (true) {
+                Pending top = pending.peek();
+                if (top.step() == Step.OPERATORS) {
+                    // EOF maps to NONE, which is below every level we are called with
+                    Precedence infix = INFIX[peek().type.ordinal()];
+                    if (infix.ordinal() >= top.precedence().ordinal()) {
+                        Token operator = advance();
+                        switch (operator.type) {
+                            case EQUAL -> {
+                                // Right-associative: the value may itself be an assignment
+                                pending.push(Pending.of(Step.ASSIGNMENT, operator, expr));
+                                pending.push(Pending.operators(Precedence.ASSIGNMENT));
+                            }
+                            case QUESTION -> {
+                                pending.push(Pending.of(Step.TERNARY_MIDDLE, operator, expr));
+                                pending.push(Pending.operators(Precedence.EQUALITY));
+                            }
+                            case LEFT_PAREN -> {
+                                if (check(RIGHT_PAREN)) {
+                                    expr = finishCall(expr, new ArrayList<>());
+                                    continue;
+                                }
+                                pending.push(new Pending(Step.CALL, null, null, expr, null, new ArrayList<>()));
+                                pending.push(Pending.operators(Precedence.ASSIGNMENT));
+                            }
+                            default -> {
+                                pending.push(Pending.of(Step.BINARY, operator, expr));
+                                pending.push(Pending.operators(infix.higher()));
+                            }
+                        }
+                        continue operand;
+                    }
+
+                    pending.pop();
+                    if (pending.isEmpty()) return expr;
+                    continue;
+                }
+
+                pending.pop();
+                switch (top.step()) {
+                    case UNARY -> expr = unary(top.operator(), expr);
+                    case GROUPING -> {
+                        consume(RIGHT_PAREN, "Expect ')' after expression.");
+                        expr = grouping(expr);
+                    }
+                    case BINARY -> expr = binary(top.left(), top.operator(), expr);
+                    case ASSIGNMENT -> expr = assignment(top.left(), top.operator(), expr);
+                    case TERNARY_MIDDLE -> {
+                        consume(COLON, "Expected ':' after true branch of ternary operator.");
+                        pending.push(new Pending(Step.TERNARY_RIGHT, null, null, top.left(), expr, null));
+                        pending.push(Pending.operators(Precedence.TERNARY));
+                        continue operand;
+                    }
+                    case TERNARY_RIGHT -> expr = ternary(top.left(), top.middle(), expr);
+                    case CALL -> {
+                        top.arguments().add(expr);
+                        if (match(COMMA)) {
+                            checkArgumentCount(top.arguments());
+                            pending.push(top);
+                            pending.push(Pending.operators(Precedence.ASSIGNMENT));
+                            continue operand;
+                        }
+                        expr = finishCall(top.left(), top.arguments());
+                    }
+                    default -> throw new IllegalStateException("Unexpected step " + top.step());
+                }
+            }
         }
-        
-        return expr;
     }
 
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+    private Expr assignment(Expr target, Token equals, Expr value) {
+        if (target instanceof Expr.Variable variable) {
+            Expr.Assign assign = new Expr.Assign(variable.name, variable.line, value);
+            assign.calls = Interpreter.calls(value);
+            return assign;
+        }
+
+        error(equals, "Invalid assignment target.");
+        return target;
+    }
+
+    /**
+     * Consumes prefix operators and opening parentheses, leaving a step for each of
+     * them, and returns the primary expression that follows.
+     */
+    private Expr prefix(ArrayDeque<Pending> pending) {
+        while (true) {
+            switch (peek().type) {
+                case BANG, MINUS -> {
+                    Token operator = advance();
+                    pending.push(Pending.of(Step.UNARY, operator, null));
+                    pending.push(Pending.operators(Precedence.UNARY));
+                }
+                case LEFT_PAREN -> {
+                    advance();
+                    pending.push(Pending.of(Step.GROUPING, null, null));
+                    pending.push(Pending.operators(Precedence.COMMA));
+                }
+                default -> {
+                    return primary();
+                }
+            }
         }
-        
-        return primary();
     }
 
     private Expr primary() {
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(NIL)) return new Expr.Literal(null);
-        
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+        switch (peek().type) {
+            case FALSE -> {
+                advance();
+                return literal(false);
+            }
+            case TRUE -> {
+                advance();
+                return literal(true);
+            }
+            case NIL -> {
+                advance();
+                return literal(null);
+            }
+            case NUMBER, STRING -> {
+                return literal(advance().literal);
+            }
+            case IDENTIFIER -> {
+                return variable(advance());
+            }
         }
 
-        if (match(IDENTIFIER)) return new Expr.Variable(previous());
-        
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+        throw error(peek(), "Unexpected token in `primary`");
+    }
+
+    /**
+     * Structural key of a pure expression. Children are canonical nodes, so they are
+     * compared by identity; the line is part of the key because it is what runtime
+     * errors report.
+     */
+    private record Shape(Class<?> kind, Object operator, Expr left, Expr right, int line) {}
+
+    private Expr.Literal literal(Object value) {
+        if (!shareSubtrees) return new Expr.Literal(value);
+        // Literals raise no errors, so they are pooled across lines and never forgotten
+        Expr.Literal literal = constants.computeIfAbsent(value, Expr.Literal::new);
+        canonical.add(literal);
+        return literal;
+    }
+
+    private Expr variable(Token name) {
+        if (!shareSubtrees) return new Expr.Variable(name(name), name.line);
+        return share(new Shape(Expr.Variable.class, name.lexeme, null, null, name.line),
+                () -> new Expr.Variable(name(name), name.line));
+    }
+
+    private Expr unary(Token operator, Expr right) {
+        if (!shareSubtrees || !canonical.contains(right)) {
+            Expr.Unary unary = new Expr.Unary(operator.type, operator.line, right);
+            unary.calls = Interpreter.calls(right);
+            return unary;
         }
+        return share(new Shape(Expr.Unary.class, operator.type, right, null, operator.line),
+                () -> new Expr.Unary(operator.type, operator.line, right));
+    }
 
+    private Expr binary(Expr left, Token operator, Expr right) {
+        if (!shareSubtrees || !canonical.contains(left) || !canonical.contains(right)) {
+            Expr.Binary binary = new Expr.Binary(left, operator.type, operator.line, right);
+            binary.calls = Interpreter.calls(left) || Interpreter.calls(right);
+            return binary;
+        }
+        return share(new Shape(Expr.Binary.class, operator.type, left, right, operator.line),
+                () -> new Expr.Binary(left, operator.type, operator.line, right));
+    }
 
+    private Expr grouping(Expr expression) {
+        if (!shareSubtrees || !canonical.contains(expression)) {
+            Expr.Grouping grouping = new Expr.Grouping(expression);
+            grouping.calls = Interpreter.calls(expression);
+            return grouping;
+        }
+        return share(new Shape(Expr.Grouping.class, null, expression, null, 0),
+                () -> new Expr.Grouping(expression));
+    }
 
-        throw error(peek(), "Unexpected token in `primary`");
+    private Expr share(Shape shape, Supplier<Expr> create) {
+        Expr expr = expressions.computeIfAbsent(shape, key -> create.get());
+        canonical.add(expr);
+        return expr;
+    }
+
+    /**
+     * Stops sharing expressions that read variables.
+     * The Resolver annotates each read with the variable it refers to, so a shared read
+     * must not be reused once a declaration or the end of a block could change that.
+     */
+    private void forgetSharedReads() {
+        expressions.clear();
+    }
+
+    private String name(Token identifier) {
+        return names.computeIfAbsent(identifier.lexeme, lexeme -> lexeme);
     }
 
     private Token consume(TokenType type, String message) {
@@ -200,16 +713,15 @@ public class Parser {
     }
 
     private ParseError error(Token token, String message) {
+        errors++;
         Lox.error(token, message);
         return new ParseError();
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
         
         return false;
@@ -257,5 +769,5 @@ public class Parser {
         }
     }
 
-    private static class ParseError extends RuntimeException {}
+    static class ParseError extends RuntimeException {}
 }
@@ -0,0 +1,31 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the values of `print` statements to the output of the current {@link Session}.
+ * Numbers are formatted into a reused buffer so that printing them does not
+ * build intermediate strings.
+ */
+final class Printer {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.ISO_8859_1);
+
+    private final byte[] numberBuffer = new byte[NumberFormatter.MAX_LENGTH + LINE_SEPARATOR.length];
+
+    /**
+     * Prints a Lox value followed by a line separator.
+     *
+     * @param object the value to print
+     */
+    void print(Object object) {
+        PrintStream out = Lox.session().out();
+        if (object instanceof Double) {
+            int length = NumberFormatter.format((double)object, numberBuffer, 0);
+            System.arraycopy(LINE_SEPARATOR, 0, numberBuffer, length, LINE_SEPARATOR.length);
+            out.write(numberBuffer, 0, length + LINE_SEPARATOR.length);
+            return;
+        }
+        out.println(Interpreter.stringify(object));
+    }
+}
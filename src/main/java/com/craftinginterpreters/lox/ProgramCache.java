@@ -0,0 +1,109 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Parsed and resolved programs by source, so that a script that is run again, as
+ * happens with a {@link LoxDaemon}, skips the {@link Scanner}, {@link Parser} and
+ * {@link Resolver}. The least recently used programs are evicted once there are
+ * more than a maximum number of them or their approximate size grows too large.
+ * <p>
+ * The source itself is the key: its hash is cached by {@link String}, and comparing
+ * it in full rules out collisions.
+ */
+final class ProgramCache {
+    // Rough bytes taken by a token and its share of the tree built from it
+    private static final int TOKEN_WEIGHT = 96;
+
+    /**
+     * A snapshot of the cache's counters.
+     */
+    record Stats(long hits, long misses, long evictions, int entries, long weight) {
+    }
+
+    private record Key(String source, boolean lazyBlocks) {
+    }
+
+    private record Entry(List<Stmt> program, long weight) {
+    }
+
+    private final int maxEntries;
+    private final long maxWeight;
+    // In access order, so the first entry is the least recently used
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxEntries the most programs kept
+     * @param maxWeight the most approximate bytes kept
+     */
+    ProgramCache(int maxEntries, long maxWeight) {
+        if (maxEntries < 0 || maxWeight < 0) {
+            throw new IllegalArgumentException("Cache bounds must not be negative");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @param source the program's source
+     * @param lazyBlocks whether the program was parsed with lazy blocks
+     * @return the cached program, or {@code null} if it is not cached
+     */
+    synchronized List<Stmt> get(String source, boolean lazyBlocks) {
+        Entry entry = entries.get(new Key(source, lazyBlocks));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.program();
+    }
+
+    /**
+     * Caches a program that parsed and resolved without errors, evicting others as needed.
+     * A program too large for the cache on its own is not kept.
+     *
+     * @param source the program's source
+     * @param lazyBlocks whether the program was parsed with lazy blocks
+     * @param program the resolved statements
+     * @param tokens the number of tokens in the source
+     */
+    synchronized void put(String source, boolean lazyBlocks, List<Stmt> program, int tokens) {
+        long entryWeight = 2L * source.length() + (long) TOKEN_WEIGHT * tokens;
+        if (entryWeight > maxWeight || maxEntries == 0) return;
+
+        Entry old = entries.put(new Key(source, lazyBlocks), new Entry(program, entryWeight));
+        if (old != null) {
+            weight -= old.weight();
+        }
+        weight += entryWeight;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries || weight > maxWeight) {
+            weight -= eldest.next().weight();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops a program, for example because running it reported a syntax error in a
+     * lazily parsed block, which would not be reported again by a cached copy.
+     */
+    synchronized void remove(String source, boolean lazyBlocks) {
+        Entry entry = entries.remove(new Key(source, lazyBlocks));
+        if (entry != null) {
+            weight -= entry.weight();
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, entries.size(), weight);
+    }
+}
@@ -0,0 +1,454 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.Ir.Block;
+import com.craftinginterpreters.lox.Ir.Instruction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * Bytecode for {@link RegisterVm}, compiled from a program in {@link Ir} form.
+ * Every value of the program gets a virtual register of its own, so block-local
+ * variables live in registers and operators read and write registers directly,
+ * without pushing and popping operands. Constants are loaded into their registers
+ * before the program starts, and phis become moves at the end of the blocks that
+ * jump to theirs.
+ * <p>
+ * A value that is certainly a number, such as the result of {@code -} or of {@code +}
+ * with a number on either side, is known to be a {@link Double}. Where its operands are
+ * certainly numbers too, it is computed without boxing or checks into a register of
+ * {@link #numbers}, and it is boxed only where it is used as an object: stored, printed,
+ * passed or compared for equality. Counters and indexes, which are whole numbers, are
+ * held exactly that way up to 2^53, so they need no representation of their own.
+ * Registers are numbered the same in both files, and each is only ever used in one,
+ * except that a number constant is in both.
+ * <p>
+ * Instruction layouts in {@link #code}:
+ * <pre>
+ *   MOVE           target source
+ *   UNARY          target operator line operand
+ *   BINARY         target operator line left right
+ *   GET_GLOBAL     target name line
+ *   SET_GLOBAL     name line source
+ *   DEFINE_GLOBAL  name source
+ *   LOAD_SLOT      target slot
+ *   STORE_SLOT     slot source
+ *   PRINT          source
+ *   CALL           target line count callee argument...
+ *   JUMP           address
+ *   JUMP_IF_FALSE  condition address
+ *   HALT
+ *   MOVE_NUMBER    target source     (number registers)
+ *   BOX            target source     (from a number register)
+ *   UNBOX          target source     (into a number register, from one that holds a Double)
+ *   NEGATE         target operand    (number registers, as are those of the next four)
+ *   ADD            target left right
+ *   SUBTRACT       target left right
+ *   MULTIPLY       target left right
+ *   DIVIDE         target left right
+ *   COMPARE        target operator left right   (from number registers)
+ * </pre>
+ * Operators are stored as {@link TokenType} ordinals, and names as indexes into {@link #names}.
+ * Slots are those of the frame of the {@link Interpreter} that hands a loop over to the vm.
+ * Calls run the function on that Interpreter.
+ */
+final class RegisterCode {
+    static final int MOVE = 0;
+    static final int UNARY = 1;
+    static final int BINARY = 2;
+    static final int GET_GLOBAL = 3;
+    static final int SET_GLOBAL = 4;
+    static final int DEFINE_GLOBAL = 5;
+    static final int LOAD_SLOT = 6;
+    static final int STORE_SLOT = 7;
+    static final int PRINT = 8;
+    static final int CALL = 9;
+    static final int JUMP = 10;
+    static final int JUMP_IF_FALSE = 11;
+    static final int HALT = 12;
+    static final int MOVE_NUMBER = 13;
+    static final int BOX = 14;
+    static final int UNBOX = 15;
+    static final int NEGATE = 16;
+    static final int ADD = 17;
+    static final int SUBTRACT = 18;
+    static final int MULTIPLY = 19;
+    static final int DIVIDE = 20;
+    static final int COMPARE = 21;
+
+    final int[] code;
+    // What the registers hold when the program starts: constants, and null in all others
+    final Object[] registers;
+    // Likewise for the number registers, which hold the number constants
+    final double[] numbers;
+    final String[] names;
+    // The slots the code assumes to hold numbers when it starts, and the code that
+    // assumes nothing, which runs instead when one does not; null if there are none
+    final int[] numberSlots;
+    final RegisterCode general;
+
+    private RegisterCode(int[] code, Object[] registers, double[] numbers, String[] names,
+                         int[] numberSlots, RegisterCode general) {
+        this.code = code;
+        this.registers = registers;
+        this.numbers = numbers;
+        this.names = names;
+        this.numberSlots = numberSlots;
+        this.general = general;
+    }
+
+    /**
+     * Compiles a program, optimized or not. Blocks are laid out in the order of
+     * {@link Ir#blocks}, and a jump to the block laid out next is left out.
+     *
+     * @param program the program to compile
+     * @return its bytecode
+     */
+    static RegisterCode compile(Ir program) {
+        return compile(program, slot -> false);
+    }
+
+    /**
+     * Compiles a loop handed over by the interpreter, assuming that the slots it loads
+     * will hold what they hold now: the numbers among them are used unboxed.
+     *
+     * @param numberSlot whether a slot holds a number, as the loop is compiled
+     * @return its bytecode, which falls back to code that assumes nothing if a slot
+     *         no longer holds a number when it starts
+     */
+    static RegisterCode compile(Ir program, IntPredicate numberSlot) {
+        Compiler compiler = new Compiler(program, numberSlot);
+        compiler.compile();
+        int[] numberSlots = compiler.numberSlots.stream().mapToInt(Integer::intValue).toArray();
+        double[] numbers = new double[compiler.registers.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            if (compiler.registers.get(i) instanceof Double number) {
+                numbers[i] = number;
+            }
+        }
+        return new RegisterCode(
+                Arrays.copyOf(compiler.code, compiler.size),
+                compiler.registers.toArray(),
+                numbers,
+                compiler.names.toArray(new String[0]),
+                numberSlots,
+                numberSlots.length == 0 ? null : compile(program));
+    }
+
+    private static final class Compiler {
+        private final Ir program;
+        private int[] code = new int[256];
+        private int size = 0;
+        private final List<Object> registers = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> nameIndexes = new HashMap<>();
+        private final List<Integer> numberSlots = new ArrayList<>();
+        // By instruction id, -1 until the value is given a register
+        private final int[] registerOf;
+        // By instruction id, whether the value is certainly a number, and whether it is
+        // held in a number register
+        private final boolean[] number;
+        private final boolean[] unboxed;
+        // Where each block starts, by block id
+        private final int[] starts;
+        // Jump addresses to fill in once every block has been laid out: the index of the
+        // address in the code, then the id of the block it jumps to
+        private final List<int[]> fixups = new ArrayList<>();
+        // Breaks cycles of moves, -1 until one needs it
+        private int temporary = -1;
+
+        Compiler(Ir program, IntPredicate numberSlot) {
+            this.program = program;
+            registerOf = new int[program.valueCount()];
+            Arrays.fill(registerOf, -1);
+            starts = new int[program.blockCount()];
+            number = new boolean[program.valueCount()];
+            unboxed = new boolean[program.valueCount()];
+            inferNumbers(numberSlot);
+        }
+
+        /**
+         * Finds the values that are certainly numbers. Every value starts out as one, and
+         * those that may be something else are taken out until none is left, so that a
+         * loop counter, whose phi depends on itself, is found to be a number.
+         */
+        private void inferNumbers(IntPredicate numberSlot) {
+            Arrays.fill(number, true);
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Block block : program.blocks) {
+                    for (Instruction instruction : block.instructions) {
+                        if (instruction.op >= Ir.SET_GLOBAL || !number[instruction.id]) continue;
+                        if (!isNumber(instruction, numberSlot)) {
+                            number[instruction.id] = false;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+
+            for (Block block : program.blocks) {
+                for (Instruction instruction : block.instructions) {
+                    if (instruction.op >= Ir.SET_GLOBAL) continue;
+                    unboxed[instruction.id] = isUnboxed(instruction);
+                    if (instruction.op == Ir.LOAD_SLOT && number[instruction.id]) {
+                        numberSlots.add((Integer) instruction.value);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Whether a number is held in a number register. An operator computes one there
+         * only from operands that are numbers too; otherwise it boxes the result itself.
+         */
+        private boolean isUnboxed(Instruction instruction) {
+            if (!number[instruction.id]) return false;
+            Instruction[] operands = instruction.operands;
+            return switch (instruction.op) {
+                case Ir.CONSTANT, Ir.PHI -> true;
+                case Ir.COPY -> isUnboxed(operands[0]);
+                case Ir.UNARY, Ir.BINARY -> Arrays.stream(operands).allMatch(operand -> number[operand.id]);
+                default -> false;
+            };
+        }
+
+        private boolean isNumber(Instruction instruction, IntPredicate numberSlot) {
+            Instruction[] operands = instruction.operands;
+            return switch (instruction.op) {
+                case Ir.CONSTANT -> instruction.value instanceof Double;
+                case Ir.COPY -> number[operands[0].id];
+                case Ir.PHI -> Arrays.stream(operands).allMatch(operand -> number[operand.id]);
+                // Anything else is a runtime error
+                case Ir.UNARY -> instruction.operator == TokenType.MINUS;
+                case Ir.BINARY -> switch (instruction.operator) {
+                    case MINUS, STAR, SLASH -> true;
+                    // Adding a number to a string is an error too
+                    case PLUS -> number[operands[0].id] || number[operands[1].id];
+                    default -> false;
+                };
+                case Ir.LOAD_SLOT -> numberSlot.test((Integer) instruction.value);
+                default -> false;
+            };
+        }
+
+        void compile() {
+            List<Block> blocks = program.blocks;
+            for (int i = 0; i < blocks.size(); i++) {
+                Block block = blocks.get(i);
+                Block next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+                starts[block.id] = size;
+                for (Instruction instruction : block.instructions) {
+                    compile(instruction);
+                }
+
+                switch (block.successors.size()) {
+                    case 0 -> emit(HALT);
+                    case 1 -> {
+                        moves(block, block.successors.get(0));
+                        jump(block.successors.get(0), next);
+                    }
+                    default -> {
+                        Block ifTrue = block.successors.get(0);
+                        Block ifFalse = block.successors.get(1);
+                        emit(JUMP_IF_FALSE, boxed(block.condition), 0);
+                        int address = size - 1;
+                        if (!hasPhis(ifFalse)) {
+                            fixups.add(new int[] {address, ifFalse.id});
+                            moves(block, ifTrue);
+                            jump(ifTrue, next);
+                        } else {
+                            // The moves into the false side need a place of their own to run
+                            moves(block, ifTrue);
+                            emit(JUMP, 0);
+                            fixups.add(new int[] {size - 1, ifTrue.id});
+                            code[address] = size;
+                            moves(block, ifFalse);
+                            jump(ifFalse, next);
+                        }
+                    }
+                }
+            }
+
+            for (int[] fixup : fixups) {
+                code[fixup[0]] = starts[fixup[1]];
+            }
+        }
+
+        private void compile(Instruction instruction) {
+            Instruction[] operands = instruction.operands;
+            switch (instruction.op) {
+                // Constants are loaded before the program starts, and phis by the moves of the blocks before
+                case Ir.CONSTANT, Ir.PHI -> {
+                }
+                case Ir.COPY -> emit(unboxed[instruction.id] ? MOVE_NUMBER : MOVE, register(instruction),
+                        register(operands[0]));
+                case Ir.UNARY -> {
+                    if (unboxed[instruction.id]) {
+                        emit(NEGATE, register(instruction), unboxed(operands[0]));
+                    } else {
+                        emit(UNARY, register(instruction), instruction.operator.ordinal(), instruction.line,
+                                boxed(operands[0]));
+                    }
+                }
+                case Ir.BINARY -> compileBinary(instruction);
+                case Ir.GET_GLOBAL -> emit(GET_GLOBAL, register(instruction), name(instruction.name), instruction.line);
+                case Ir.SET_GLOBAL -> emit(SET_GLOBAL, name(instruction.name), instruction.line, boxed(operands[0]));
+                case Ir.DEFINE_GLOBAL -> emit(DEFINE_GLOBAL, name(instruction.name), boxed(operands[0]));
+                case Ir.LOAD_SLOT -> emit(LOAD_SLOT, register(instruction), (int) instruction.value);
+                case Ir.STORE_SLOT -> emit(STORE_SLOT, (int) instruction.value, boxed(operands[0]));
+                case Ir.PRINT -> emit(PRINT, boxed(operands[0]));
+                case Ir.CALL -> {
+                    int[] call = new int[4 + operands.length];
+                    call[0] = CALL;
+                    call[1] = register(instruction);
+                    call[2] = instruction.line;
+                    call[3] = operands.length - 1;
+                    for (int i = 0; i < operands.length; i++) {
+                        call[4 + i] = boxed(operands[i]);
+                    }
+                    emit(call);
+                }
+                default -> throw new IllegalStateException("Unknown instruction " + instruction.op);
+            }
+        }
+
+        private void compileBinary(Instruction instruction) {
+            Instruction left = instruction.operands[0];
+            Instruction right = instruction.operands[1];
+            boolean numbers = number[left.id] && number[right.id];
+            int opcode = switch (instruction.operator) {
+                case PLUS -> ADD;
+                case MINUS -> SUBTRACT;
+                case STAR -> MULTIPLY;
+                case SLASH -> DIVIDE;
+                case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> COMPARE;
+                default -> BINARY;
+            };
+            if (!numbers || opcode == BINARY) {
+                emit(BINARY, register(instruction), instruction.operator.ordinal(), instruction.line,
+                        boxed(left), boxed(right));
+            } else if (opcode == COMPARE) {
+                emit(COMPARE, register(instruction), instruction.operator.ordinal(), unboxed(left), unboxed(right));
+            } else {
+                emit(opcode, register(instruction), unboxed(left), unboxed(right));
+            }
+        }
+
+        /**
+         * @return the register that holds a value as an object, boxing it into a new one
+         *         if it is held as a number
+         */
+        private int boxed(Instruction instruction) {
+            if (!unboxed[instruction.id] || instruction.op == Ir.CONSTANT) return register(instruction);
+            int box = newRegister(null);
+            emit(BOX, box, register(instruction));
+            return box;
+        }
+
+        /**
+         * @return the number register that holds a value that is certainly a number,
+         *         unboxing it into a new one if it is held as an object
+         */
+        private int unboxed(Instruction instruction) {
+            if (unboxed[instruction.id]) return register(instruction);
+            int number = newRegister(null);
+            emit(UNBOX, number, register(instruction));
+            return number;
+        }
+
+        private void jump(Block to, Block next) {
+            if (to == next) return;
+            emit(JUMP, 0);
+            fixups.add(new int[] {size - 1, to.id});
+        }
+
+        private static boolean hasPhis(Block block) {
+            return !block.instructions.isEmpty() && block.instructions.get(0).op == Ir.PHI;
+        }
+
+        /**
+         * Assigns the phis of a block for the edge from another. They all read their
+         * operands as if at once, so moves are ordered to write no register before it
+         * has been read, and a cycle is broken with a temporary. A cycle is only ever
+         * among object or among number registers, as boxing and unboxing moves read
+         * values that the phis do not define.
+         */
+        private void moves(Block from, Block to) {
+            int edge = to.predecessors.indexOf(from);
+            // Target and source registers, and the opcode that moves between them
+            List<int[]> pending = new ArrayList<>();
+            for (Instruction instruction : to.instructions) {
+                if (instruction.op != Ir.PHI) break;
+                Instruction operand = instruction.operands[edge];
+                int target = register(instruction);
+                int source = register(operand);
+                int opcode;
+                if (unboxed[instruction.id]) {
+                    opcode = unboxed[operand.id] ? MOVE_NUMBER : UNBOX;
+                } else {
+                    opcode = unboxed[operand.id] && operand.op != Ir.CONSTANT ? BOX : MOVE;
+                }
+                if (target != source) {
+                    pending.add(new int[] {target, source, opcode});
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                int[] ready = null;
+                for (int[] move : pending) {
+                    if (pending.stream().noneMatch(other -> other[1] == move[0])) {
+                        ready = move;
+                        break;
+                    }
+                }
+                if (ready == null) {
+                    int[] move = pending.get(0);
+                    if (temporary < 0) {
+                        temporary = newRegister(null);
+                    }
+                    boolean numbers = move[2] == MOVE_NUMBER || move[2] == UNBOX;
+                    emit(numbers ? MOVE_NUMBER : MOVE, temporary, move[0]);
+                    for (int[] other : pending) {
+                        if (other[1] == move[0]) other[1] = temporary;
+                    }
+                    continue;
+                }
+                emit(ready[2], ready[0], ready[1]);
+                pending.remove(ready);
+            }
+        }
+
+        private int register(Instruction instruction) {
+            if (registerOf[instruction.id] < 0) {
+                registerOf[instruction.id] = newRegister(instruction.op == Ir.CONSTANT ? instruction.value : null);
+            }
+            return registerOf[instruction.id];
+        }
+
+        private int newRegister(Object initialValue) {
+            registers.add(initialValue);
+            return registers.size() - 1;
+        }
+
+        private int name(String name) {
+            return nameIndexes.computeIfAbsent(name, key -> {
+                names.add(key);
+                return names.size() - 1;
+            });
+        }
+
+        private void emit(int... instruction) {
+            if (size + instruction.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(size + instruction.length, code.length * 2));
+            }
+            System.arraycopy(instruction, 0, code, size, instruction.length);
+            size += instruction.length;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.RegisterCode.*;
+
+/**
+ * Executes {@link RegisterCode}. Operators behave exactly as in {@link Interpreter},
+ * whose helpers it shares; globals live in an {@link Environment}, which, like the
+ * Interpreter's, is kept from one program to the next. Functions are called on an
+ * Interpreter that shares the globals.
+ */
+class RegisterVm {
+    private static final TokenType[] OPERATORS = TokenType.values();
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+    private final Printer printer;
+
+    RegisterVm() {
+        this(new Interpreter());
+    }
+
+    /**
+     * Creates a vm that runs loops for an {@link Interpreter}, on its globals and value stack.
+     */
+    RegisterVm(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+        this.printer = interpreter.printer;
+    }
+
+    void interpret(RegisterCode program) {
+        try {
+            execute(program, 0);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    /**
+     * Runs a program to its end.
+     *
+     * @param frame the base of the slots the program loads and stores in the value
+     *              stack of the interpreter, which a call may replace by a larger one
+     * @throws RuntimeError when the program fails, for the caller to report
+     */
+    void execute(RegisterCode program, int frame) {
+        for (int slot : program.numberSlots) {
+            if (!(interpreter.stack[frame + slot] instanceof Double)) {
+                program = program.general;
+                break;
+            }
+        }
+        int[] code = program.code;
+        Object[] registers = program.registers.clone();
+        double[] numbers = program.numbers.clone();
+        String[] names = program.names;
+        int pc = 0;
+        while (true) {
+            switch (code[pc]) {
+                case MOVE -> {
+                    registers[code[pc + 1]] = registers[code[pc + 2]];
+                    pc += 3;
+                }
+                case UNARY -> {
+                    registers[code[pc + 1]] = Interpreter.unary(OPERATORS[code[pc + 2]], code[pc + 3],
+                            registers[code[pc + 4]]);
+                    pc += 5;
+                }
+                case BINARY -> {
+                    registers[code[pc + 1]] = Interpreter.binary(OPERATORS[code[pc + 2]], code[pc + 3],
+                            registers[code[pc + 4]], registers[code[pc + 5]]);
+                    pc += 6;
+                }
+                case GET_GLOBAL -> {
+                    registers[code[pc + 1]] = globals.get(names[code[pc + 2]], code[pc + 3]);
+                    pc += 4;
+                }
+                case SET_GLOBAL -> {
+                    globals.assign(names[code[pc + 1]], code[pc + 2], registers[code[pc + 3]]);
+                    pc += 4;
+                }
+                case DEFINE_GLOBAL -> {
+                    globals.define(names[code[pc + 1]], registers[code[pc + 2]]);
+                    pc += 3;
+                }
+                case LOAD_SLOT -> {
+                    registers[code[pc + 1]] = interpreter.stack[frame + code[pc + 2]];
+                    pc += 3;
+                }
+                case STORE_SLOT -> {
+                    interpreter.stack[frame + code[pc + 1]] = registers[code[pc + 2]];
+                    pc += 3;
+                }
+                case PRINT -> {
+                    printer.print(registers[code[pc + 1]]);
+                    pc += 2;
+                }
+                case CALL -> {
+                    int count = code[pc + 3];
+                    Object[] arguments = new Object[count];
+                    for (int i = 0; i < count; i++) {
+                        arguments[i] = registers[code[pc + 5 + i]];
+                    }
+                    registers[code[pc + 1]] = interpreter.call(registers[code[pc + 4]], arguments, code[pc + 2]);
+                    pc += 5 + count;
+                }
+                case JUMP -> pc = code[pc + 1];
+                case JUMP_IF_FALSE -> pc = Interpreter.isTruthy(registers[code[pc + 1]]) ? pc + 3 : code[pc + 2];
+                case HALT -> {
+                    return;
+                }
+                case MOVE_NUMBER -> {
+                    numbers[code[pc + 1]] = numbers[code[pc + 2]];
+                    pc += 3;
+                }
+                case BOX -> {
+                    registers[code[pc + 1]] = numbers[code[pc + 2]];
+                    pc += 3;
+                }
+                case UNBOX -> {
+                    numbers[code[pc + 1]] = (double) registers[code[pc + 2]];
+                    pc += 3;
+                }
+                case NEGATE -> {
+                    numbers[code[pc + 1]] = -numbers[code[pc + 2]];
+                    pc += 3;
+                }
+                case ADD -> {
+                    numbers[code[pc + 1]] = numbers[code[pc + 2]] + numbers[code[pc + 3]];
+                    pc += 4;
+                }
+                case SUBTRACT -> {
+                    numbers[code[pc + 1]] = numbers[code[pc + 2]] - numbers[code[pc + 3]];
+                    pc += 4;
+                }
+                case MULTIPLY -> {
+                    numbers[code[pc + 1]] = numbers[code[pc + 2]] * numbers[code[pc + 3]];
+                    pc += 4;
+                }
+                case DIVIDE -> {
+                    numbers[code[pc + 1]] = numbers[code[pc + 2]] / numbers[code[pc + 3]];
+                    pc += 4;
+                }
+                case COMPARE -> {
+                    double left = numbers[code[pc + 3]];
+                    double right = numbers[code[pc + 4]];
+                    registers[code[pc + 1]] = switch (OPERATORS[code[pc + 2]]) {
+                        case GREATER -> left > right;
+                        case GREATER_EQUAL -> left >= right;
+                        case LESS -> left < right;
+                        default -> left <= right;
+                    };
+                    pc += 5;
+                }
+                default -> throw new IllegalStateException("Unknown opcode " + code[pc]);
+            }
+        }
+    }
+}
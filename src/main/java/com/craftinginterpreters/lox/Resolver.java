@@ -0,0 +1,357 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static scope analysis that runs between parsing and interpretation.
+ * Every variable declared inside a block gets a slot in the interpreter's value
+ * stack, and every reference to it is annotated with that slot. Slots are handed
+ * out in a stack discipline, so sibling blocks reuse the same slots.
+ * Top-level variables are globals and stay in the interpreter's {@link Environment}.
+ * <p>
+ * A function body has slots of its own, numbered from 0 in the frame of each call:
+ * the parameters come first, then the locals of the body, and the number of slots
+ * it needs at most is its frame size. Functions capture nothing, so a body may use
+ * its own locals and the globals only; using a local of an enclosing function or
+ * block is an error. The exception is a local declared by a function declaration,
+ * such as the function itself or one declared before it in the same block: as each
+ * declaration has a single function value, a reference to it is bound to the
+ * declaration, and captures nothing. Assigning to such a local once a function
+ * refers to it is an error, as that function would not see the new value.
+ * <p>
+ * Statements and expressions are walked with explicit stacks, so arbitrarily deep
+ * programs can be resolved.
+ */
+class Resolver {
+    // Marks the point in the work list where the innermost open block ends
+    private static final Object END_OF_BLOCK = new Object();
+    // The slot of a local that is visible in a function body but lives in an enclosing frame
+    private static final int CAPTURED = -2;
+
+    // Innermost scope last; each maps a declared name to its slot
+    private List<Map<String, Integer>> scopes = new ArrayList<>();
+    // In step with scopes; the slot, or null, each declared name had before it was shadowed
+    private List<Map<String, Integer>> shadowed = new ArrayList<>();
+    // The innermost slot of every local name in scope, so lookups do not walk the scopes
+    private Map<String, Integer> visible = new HashMap<>();
+    // The function declaration each slot of the frame holds, while it is not assigned
+    private Map<Integer, Stmt.Function> functionSlots = new HashMap<>();
+    // The function declarations that locals of enclosing frames hold, by name
+    private Map<String, Stmt.Function> outerFunctions = new HashMap<>();
+    // Declarations that a function refers to, by identity
+    private final Set<Stmt.Function> referenced = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Blocks whose scope is open, innermost first
+    private final ArrayDeque<Stmt.Block> blocks = new ArrayDeque<>();
+    private int nextSlot = 0;
+    // The number of slots the frame being resolved has needed so far
+    private int maxSlot = 0;
+    private boolean hadError = false;
+
+    /**
+     * Marks the end of a function body in the work list, with the scopes of the code
+     * around the function to go back to.
+     */
+    private record FunctionEnd(Stmt.Function function, List<Map<String, Integer>> scopes,
+                               List<Map<String, Integer>> shadowed, Map<String, Integer> visible,
+                               Map<Integer, Stmt.Function> functionSlots,
+                               Map<String, Stmt.Function> outerFunctions, int nextSlot, int maxSlot) {}
+
+    /**
+     * The locals visible where a lazily parsed block appears: the slot of each, and
+     * the declaration of each that holds a function declaration.
+     */
+    record Scope(Map<String, Integer> slots, Map<String, Stmt.Function> functions) {}
+
+    /**
+     * Resolves a list of top-level statements.
+     *
+     * Errors are reported to {@link Lox}.
+     *
+     * @param statements the statements to analyze; {@code null} entries left by parse errors are skipped
+     */
+    void resolve(List<Stmt> statements) {
+        ArrayDeque<Object> work = new ArrayDeque<>();
+        pushStatements(work, statements);
+
+        while (!work.isEmpty()) {
+            Object item = work.pop();
+            if (item == END_OF_BLOCK) {
+                endBlock(blocks.pop());
+                continue;
+            }
+            if (item instanceof FunctionEnd end) {
+                end.function().frameSize = maxSlot;
+                scopes = end.scopes();
+                shadowed = end.shadowed();
+                visible = end.visible();
+                functionSlots = end.functionSlots();
+                outerFunctions = end.outerFunctions();
+                nextSlot = end.nextSlot();
+                maxSlot = end.maxSlot();
+                continue;
+            }
+
+            Stmt stmt = (Stmt) item;
+            switch (stmt.kind) {
+                case Stmt.BLOCK -> {
+                    Stmt.Block block = (Stmt.Block) stmt;
+                    if (block.statements instanceof LazyStatements body && !body.isLoaded()) {
+                        // Resolved by resolveDeferred once the body is parsed
+                        block.firstSlot = nextSlot;
+                        body.defer(block, visibleLocals());
+                        continue;
+                    }
+                    beginScope();
+                    block.firstSlot = nextSlot;
+                    blocks.push(block);
+                    work.push(END_OF_BLOCK);
+                    pushStatements(work, block.statements);
+                }
+                case Stmt.EXPRESSION -> resolve(((Stmt.Expression) stmt).expression);
+                case Stmt.PRINT -> resolve(((Stmt.Print) stmt).expression);
+                case Stmt.VAR -> {
+                    Stmt.Var var = (Stmt.Var) stmt;
+                    // The initializer still sees an outer variable with the same name
+                    if (var.initializer != null) {
+                        resolve(var.initializer);
+                    }
+                    if (!scopes.isEmpty()) {
+                        var.slot = declare(var.name);
+                        // A redeclaration; functions that referred to the old one keep it
+                        functionSlots.remove(var.slot);
+                    }
+                }
+                case Stmt.WHILE -> {
+                    Stmt.While loop = (Stmt.While) stmt;
+                    resolve(loop.condition);
+                    // Every local the loop can see lives below this slot
+                    loop.slots = nextSlot;
+                    work.push(loop.body);
+                }
+                case Stmt.FUNCTION -> {
+                    Stmt.Function function = (Stmt.Function) stmt;
+                    // Declared before the body, which may call it
+                    if (!scopes.isEmpty()) {
+                        function.slot = declare(function.name);
+                        functionSlots.put(function.slot, function);
+                    }
+                    work.push(new FunctionEnd(function, scopes, shadowed, visible, functionSlots,
+                            outerFunctions, nextSlot, maxSlot));
+                    beginFunction(function);
+                    work.push(function.body);
+                }
+                case Stmt.RETURN -> {
+                    Stmt.Return stmtReturn = (Stmt.Return) stmt;
+                    if (stmtReturn.value != null) {
+                        resolve(stmtReturn.value);
+                    }
+                }
+                default -> throw new IllegalStateException("Unknown statement kind " + stmt.kind);
+            }
+        }
+    }
+
+    /**
+     * Resolves a lazily parsed block that was skipped by an earlier {@link #resolve(List)}.
+     *
+     * @param block the block, with its first slot already assigned
+     * @param scope the local variables that were visible where the block appears
+     * @throws Parser.ParseError if the block has errors, which have been reported
+     */
+    void resolveDeferred(Stmt.Block block, Scope scope) {
+        scopes.add(scope.slots());
+        shadowed.add(new HashMap<>());
+        visible.putAll(scope.slots());
+        scope.functions().forEach((name, function) -> {
+            int slot = scope.slots().get(name);
+            if (slot == CAPTURED) {
+                outerFunctions.put(name, function);
+            } else {
+                functionSlots.put(slot, function);
+            }
+        });
+        nextSlot = block.firstSlot;
+        resolve(List.of(block));
+        if (hadError) throw new Parser.ParseError();
+    }
+
+    /**
+     * Starts the scope of a function body with its parameters in the first slots of
+     * a new frame. The locals around it stay visible, so that using one is reported
+     * rather than taken for a global.
+     */
+    private void beginFunction(Stmt.Function function) {
+        Map<String, Integer> captured = new HashMap<>();
+        for (String name : visible.keySet()) {
+            captured.put(name, CAPTURED);
+        }
+        outerFunctions = visibleFunctions();
+        scopes = new ArrayList<>();
+        shadowed = new ArrayList<>();
+        visible = captured;
+        functionSlots = new HashMap<>();
+        nextSlot = 0;
+        maxSlot = 0;
+        beginScope();
+        for (String param : function.params) {
+            declare(param);
+        }
+        // A repeated parameter still takes the slot its argument is passed in
+        nextSlot = function.params.size();
+        maxSlot = Math.max(maxSlot, nextSlot);
+    }
+
+    private Scope visibleLocals() {
+        return new Scope(new HashMap<>(visible), visibleFunctions());
+    }
+
+    /**
+     * @return the declaration of each visible local that holds a function declaration
+     */
+    private Map<String, Stmt.Function> visibleFunctions() {
+        Map<String, Stmt.Function> functions = new HashMap<>();
+        visible.forEach((name, slot) -> {
+            Stmt.Function function = slot == CAPTURED ? outerFunctions.get(name) : functionSlots.get(slot);
+            if (function != null) functions.put(name, function);
+        });
+        return functions;
+    }
+
+    private static void pushStatements(ArrayDeque<Object> work, List<Stmt> statements) {
+        // Pushed in reverse, so they are popped in program order
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            Stmt statement = statements.get(i);
+            if (statement != null) {
+                work.push(statement);
+            }
+        }
+    }
+
+    private void endBlock(Stmt.Block block) {
+        block.declarations = scopes.get(scopes.size() - 1).size();
+        endScope();
+
+        // The block's variables are dead now, so their slots can be handed out again
+        nextSlot = block.firstSlot;
+    }
+
+    /**
+     * Annotates the variable references of an expression. Scopes do not change
+     * inside an expression, so the nodes can be visited in any order.
+     */
+    private void resolve(Expr root) {
+        ArrayDeque<Expr> work = new ArrayDeque<>();
+        work.push(root);
+
+        while (!work.isEmpty()) {
+            Expr expr = work.pop();
+            switch (expr.kind) {
+                case Expr.ASSIGN -> {
+                    Expr.Assign assign = (Expr.Assign) expr;
+                    assign.slot = resolveLocal(assign.name, assign.line);
+                    if (assign.slot >= 0) {
+                        assigned(assign.slot, assign.name, assign.line);
+                    }
+                    work.push(assign.value);
+                }
+                case Expr.BINARY -> {
+                    work.push(((Expr.Binary) expr).left);
+                    work.push(((Expr.Binary) expr).right);
+                }
+                case Expr.GROUPING -> work.push(((Expr.Grouping) expr).expression);
+                case Expr.LITERAL -> {
+                }
+                case Expr.UNARY -> work.push(((Expr.Unary) expr).right);
+                case Expr.TERNARY -> {
+                    Expr.Ternary ternary = (Expr.Ternary) expr;
+                    work.push(ternary.condition);
+                    work.push(ternary.left);
+                    work.push(ternary.right);
+                }
+                case Expr.VARIABLE -> {
+                    Expr.Variable variable = (Expr.Variable) expr;
+                    Integer slot = visible.get(variable.name);
+                    Stmt.Function function = slot != null && slot == CAPTURED ? outerFunctions.get(variable.name) : null;
+                    if (function != null) {
+                        variable.function = function;
+                        referenced.add(function);
+                    } else {
+                        variable.slot = resolveLocal(variable.name, variable.line);
+                    }
+                }
+                case Expr.CALL -> {
+                    Expr.Call call = (Expr.Call) expr;
+                    work.push(call.callee);
+                    for (Expr argument : call.arguments) {
+                        work.push(argument);
+                    }
+                }
+                default -> throw new IllegalStateException("Unknown expression kind " + expr.kind);
+            }
+        }
+    }
+
+    private void beginScope() {
+        scopes.add(new HashMap<>());
+        shadowed.add(new HashMap<>());
+    }
+
+    private void endScope() {
+        Map<String, Integer> scope = scopes.remove(scopes.size() - 1);
+        Map<String, Integer> outer = shadowed.remove(shadowed.size() - 1);
+        // The slots are handed out again, to locals that hold no declaration yet
+        functionSlots.keySet().removeAll(scope.values());
+        for (String name : scope.keySet()) {
+            Integer slot = outer.get(name);
+            if (slot == null) {
+                visible.remove(name);
+            } else {
+                visible.put(name, slot);
+            }
+        }
+    }
+
+    private int declare(String name) {
+        Map<String, Integer> scope = scopes.get(scopes.size() - 1);
+        // Redeclaring a name in the same block reuses its slot
+        Integer slot = scope.get(name);
+        if (slot == null) {
+            slot = nextSlot++;
+            maxSlot = Math.max(maxSlot, nextSlot);
+            scope.put(name, slot);
+            shadowed.get(shadowed.size() - 1).put(name, visible.put(name, slot));
+        }
+        return slot;
+    }
+
+    /**
+     * Notes that a local of the frame is assigned, so that it no longer holds the
+     * function it was declared with.
+     */
+    private void assigned(int slot, String name, int line) {
+        Stmt.Function function = functionSlots.remove(slot);
+        if (function != null && referenced.contains(function)) {
+            Lox.report(line, " at '" + name + "'", "Can't assign to a local function that a function refers to.");
+            hadError = true;
+        }
+    }
+
+    private int resolveLocal(String name, int line) {
+        Integer slot = visible.get(name);
+        // Not found: assume it is global
+        if (slot == null) return -1;
+        if (slot == CAPTURED) {
+            Lox.report(line, " at '" + name + "'", "Can't use a local variable of an enclosing scope in a function.");
+            hadError = true;
+            return -1;
+        }
+        return slot;
+    }
+}
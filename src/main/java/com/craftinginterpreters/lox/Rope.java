@@ -0,0 +1,115 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+
+/**
+ * A Lox string built by concatenation, kept as an unflattened tree of pieces.
+ * Appending to a long string therefore costs a single node instead of a copy of
+ * everything built so far.
+ * The text is flattened once, the first time it is printed, compared or measured,
+ * and the pieces are released after that.
+ */
+final class Rope implements CharSequence {
+    // Short results are cheaper to copy than to keep as a tree
+    private static final int FLAT_THRESHOLD = 64;
+
+    private CharSequence left;
+    private CharSequence right;
+    private final int length;
+    private String flat;
+
+    private Rope(CharSequence left, CharSequence right) {
+        this.left = left;
+        this.right = right;
+        this.length = left.length() + right.length();
+    }
+
+    /**
+     * Concatenates two Lox strings.
+     *
+     * @param left the left operand, a {@link String} or a {@link Rope}
+     * @param right the right operand, a {@link String} or a {@link Rope}
+     * @return a {@link String} for short results, a {@link Rope} otherwise
+     */
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        if (left.length() == 0) return right;
+        if (right.length() == 0) return left;
+        if (left.length() + right.length() <= FLAT_THRESHOLD) {
+            return left.toString() + right;
+        }
+        return new Rope(left, right);
+    }
+
+    /**
+     * Wraps text that is costly to produce, such as bytes still to be decoded, as a Lox
+     * string. The text is produced the first time it is printed, compared or indexed.
+     *
+     * @param text a sequence whose length is known without producing the text
+     */
+    static Rope lazy(CharSequence text) {
+        return new Rope(text, "");
+    }
+
+    /**
+     * Checks whether a runtime value is a Lox string.
+     *
+     * @param value the value to check
+     * @return true for both flat and concatenated strings
+     */
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            flat = flatten();
+            left = null;
+            right = null;
+        }
+        return flat;
+    }
+
+    /**
+     * Copies all pieces into one string, walking the tree with an explicit stack
+     * since ropes built in a loop are as deep as the number of appends.
+     */
+    private String flatten() {
+        char[] chars = new char[length];
+        int position = 0;
+
+        // Pieces are copied left to right, so the right child is always pushed first
+        ArrayDeque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(right);
+        pending.push(left);
+        while (!pending.isEmpty()) {
+            CharSequence piece = pending.pop();
+            if (piece instanceof Rope rope && rope.flat == null) {
+                pending.push(rope.right);
+                pending.push(rope.left);
+                continue;
+            }
+            String text = piece.toString();
+            text.getChars(0, text.length(), chars, position);
+            position += text.length();
+        }
+        assert position == length;
+
+        return new String(chars);
+    }
+}
@@ -1,9 +1,9 @@
 package com.craftinginterpreters.lox;
 
 public class RuntimeError extends RuntimeException {
-    final Token token;
-    public RuntimeError(Token token, String message) {
+    final int line;
+    public RuntimeError(int line, String message) {
         super(message);
-        this.token = token;
+        this.line = line;
     }
 }
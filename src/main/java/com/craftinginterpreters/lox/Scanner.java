@@ -16,6 +16,11 @@ class Scanner {
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    // Line on which the current lexeme starts
+    private int startLine = 1;
+    // Set when the source is only a window of the text, see Scanner(String, int, int, boolean)
+    private final boolean partial;
+    private final List<Runnable> heldErrors = new ArrayList<>();
 
     // Map of Lox keywords to their corresponding token types
     private static final Map<String, TokenType> keywords = Map.ofEntries(
@@ -43,7 +48,25 @@ class Scanner {
      * @param source the source code to scan
      */
     Scanner(String source) {
+        this(source, 0, 1, false);
+    }
+
+    /**
+     * Creates a scanner that starts part way into the source, for relexing after an edit.
+     * The source may also be just a window of the text: a string that runs off its end
+     * is then not an error, and other errors are held back until {@link #reportErrors()},
+     * so that nothing is reported if the window turns out to be too small.
+     *
+     * @param source the source code to scan
+     * @param offset where scanning starts; the start of a token or of the whitespace before one
+     * @param line the line at that offset
+     * @param partial whether the text continues past the end of the source
+     */
+    Scanner(String source, int offset, int line, boolean partial) {
         this.source = source;
+        this.current = offset;
+        this.line = line;
+        this.partial = partial;
     }
 
     /**
@@ -61,6 +84,47 @@ class Scanner {
         return tokens;
     }
 
+    /**
+     * Scans just the next token, for scanning a piece of the source at a time.
+     * Its position is available from {@link #tokenOffset()} and {@link #tokenLine()}.
+     *
+     * @return the next token, or an EOF token at the end of the source
+     */
+    Token nextToken() {
+        tokens.clear();
+        while (tokens.isEmpty()) {
+            start = current;
+            startLine = line;
+            if (isAtEnd()) {
+                return new Token(EOF, "", null, line);
+            }
+            scanToken();
+        }
+        return tokens.get(0);
+    }
+
+    /**
+     * @return the offset at which the token last returned by {@link #nextToken()} starts
+     */
+    int tokenOffset() {
+        return start;
+    }
+
+    /**
+     * @return the line on which the token last returned by {@link #nextToken()} starts
+     */
+    int tokenLine() {
+        return startLine;
+    }
+
+    /**
+     * Reports the errors held back by a scanner over a window of the text.
+     */
+    void reportErrors() {
+        heldErrors.forEach(Runnable::run);
+        heldErrors.clear();
+    }
+
     /**
      * Checks if we've reached the end of the source code.
      *
@@ -136,12 +200,20 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.report(line, "scanner default case", "Unexpected character.");
+                    error(line, "scanner default case", "Unexpected character.");
                 }
             }
         }
     }
 
+    private void error(int line, String where, String message) {
+        if (partial) {
+            heldErrors.add(() -> Lox.report(line, where, message));
+        } else {
+            Lox.report(line, where, message);
+        }
+    }
+
     /**
      * Processes an identifier token.
      * Identifiers are variable names, function names, etc.
@@ -238,7 +310,10 @@ class Scanner {
 
         // Check for unterminated string
         if (isAtEnd()) {
-            Lox.report(line, "string scanner", "Unterminated string.");
+            // The window may just end before the closing quote
+            if (!partial) {
+                error(line, "string scanner", "Unterminated string.");
+            }
             return;
         }
 
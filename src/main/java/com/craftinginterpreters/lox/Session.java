@@ -0,0 +1,58 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+/**
+ * The state one run of Lox programs has to itself: its options, its interpreters,
+ * whether it has reported errors, where its output goes, and the directory its
+ * relative paths are resolved against. {@link Lox} keeps one per thread, so that
+ * a {@link LoxDaemon} can run requests side by side.
+ */
+final class Session {
+    // Where print statements and errors go; null for the process's own streams,
+    // looked up each time so that redirecting them also redirects a running session
+    private final PrintStream out;
+    private final PrintStream err;
+    // Null for the process's working directory
+    private final Path directory;
+
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+    // Parse block bodies the first time they run, set by --lazy-blocks
+    boolean lazyBlocks = false;
+    // Compile programs to register code and run them on the vm instead, set by --vm
+    boolean registerVm = false;
+    final Interpreter interpreter = new Interpreter();
+    final RegisterVm vm = new RegisterVm();
+
+    /**
+     * A session that writes to {@link System#out} and {@link System#err}, in the
+     * process's working directory.
+     */
+    Session() {
+        this(null, null, null);
+    }
+
+    Session(PrintStream out, PrintStream err, Path directory) {
+        this.out = out;
+        this.err = err;
+        this.directory = directory;
+    }
+
+    PrintStream out() {
+        return out != null ? out : System.out;
+    }
+
+    PrintStream err() {
+        return err != null ? err : System.err;
+    }
+
+    /**
+     * @param path a path given by a program or on the command line
+     * @return the path, resolved against the session's directory if it is relative
+     */
+    Path resolve(String path) {
+        return directory != null ? directory.resolve(path) : Path.of(path);
+    }
+}
@@ -3,15 +3,27 @@ package com.craftinginterpreters.lox;
 import java.util.List;
 
 abstract public class Stmt {
+  static final int BLOCK = 0;
+  static final int EXPRESSION = 1;
+  static final int PRINT = 2;
+  static final int VAR = 3;
+  static final int WHILE = 4;
+  static final int FUNCTION = 5;
+  static final int RETURN = 6;
+
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitExpressionStmt(Expression stmt);
     R visitPrintStmt(Print stmt);
     R visitVarStmt(Var stmt);
+    R visitWhileStmt(While stmt);
+    R visitFunctionStmt(Function stmt);
+    R visitReturnStmt(Return stmt);
   }
 
-  static public class Block extends Stmt {
+  static final public class Block extends Stmt {
     Block(List<Stmt> statements) {
+      super(BLOCK);
       this.statements = statements;
     }
 
@@ -21,9 +33,12 @@ abstract public class Stmt {
     }
 
     final List<Stmt> statements;
+    int firstSlot = -1;
+    int declarations = -1;
   }
-  static public class Expression extends Stmt {
+  static final public class Expression extends Stmt {
     Expression(Expr expression) {
+      super(EXPRESSION);
       this.expression = expression;
     }
 
@@ -34,8 +49,9 @@ abstract public class Stmt {
 
     final Expr expression;
   }
-  static public class Print extends Stmt {
+  static final public class Print extends Stmt {
     Print(Expr expression) {
+      super(PRINT);
       this.expression = expression;
     }
 
@@ -46,8 +62,9 @@ abstract public class Stmt {
 
     final Expr expression;
   }
-  static public class Var extends Stmt {
-    Var(Token name, Expr initializer) {
+  static final public class Var extends Stmt {
+    Var(String name, Expr initializer) {
+      super(VAR);
       this.name = name;
       this.initializer = initializer;
     }
@@ -57,9 +74,82 @@ abstract public class Stmt {
       return visitor.visitVarStmt(this);
     }
 
-    final Token name;
+    final String name;
     final Expr initializer;
+    int slot = -1;
+  }
+  static final public class While extends Stmt {
+    While(Expr condition, Stmt body) {
+      super(WHILE);
+      this.condition = condition;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitWhileStmt(this);
+    }
+
+    final Expr condition;
+    final Stmt body;
+    int slots = -1;
+    int backEdges = 0;
+    RegisterCode compiled = null;
+  }
+  static final public class Function extends Stmt {
+    Function(String name, List<String> params, Block body) {
+      super(FUNCTION);
+      this.name = name;
+      this.params = params;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitFunctionStmt(this);
+    }
+
+    final String name;
+    final List<String> params;
+    final Block body;
+    int slot = -1;
+    int frameSize = -1;
+    LoxFunction function = null;
+  }
+  static final public class Return extends Stmt {
+    Return(Expr value) {
+      super(RETURN);
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitReturnStmt(this);
+    }
+
+    final Expr value;
+  }
+
+  final int kind;
+
+  Stmt(int kind) {
+    this.kind = kind;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
+
+  // Same as stmt.accept(visitor), but selects the visitor method with
+  // a switch on the kind tag instead of a virtual call on the node
+  static <R> R dispatch(Visitor<R> visitor, Stmt stmt) {
+    return switch (stmt.kind) {
+      case BLOCK -> visitor.visitBlockStmt((Block) stmt);
+      case EXPRESSION -> visitor.visitExpressionStmt((Expression) stmt);
+      case PRINT -> visitor.visitPrintStmt((Print) stmt);
+      case VAR -> visitor.visitVarStmt((Var) stmt);
+      case WHILE -> visitor.visitWhileStmt((While) stmt);
+      case FUNCTION -> visitor.visitFunctionStmt((Function) stmt);
+      case RETURN -> visitor.visitReturnStmt((Return) stmt);
+      default -> throw new IllegalStateException("Unknown kind " + stmt.kind);
+    };
+  }
 }
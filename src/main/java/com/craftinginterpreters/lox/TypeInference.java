@@ -0,0 +1,352 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flow analysis that runs after the {@link Resolver} and works out which types each
+ * variable and expression can have at each point of the program. Every unary and
+ * binary operator records the types its operands were found to have, so that the
+ * {@link Interpreter} can skip the operand checks of those proven to be numbers.
+ * <p>
+ * Types are sets of the bits below. Statements run in order, the branches of a
+ * ternary operator are analyzed separately and then joined, and a loop is analyzed
+ * again from the join of the states it can start an iteration in until that no
+ * longer changes. Nothing is assumed about globals a program has not defined itself, nor about
+ * anything once a block that has not been parsed yet may have run. A call may assign any
+ * global, and a function body is analyzed on its own, knowing nothing of its parameters
+ * or the globals, as it may be called from anywhere. An operator that
+ * is analyzed more than once, such as a shared subtree, records the union of what
+ * it has seen. Like the Resolver, the pass uses explicit stacks.
+ */
+final class TypeInference {
+    static final int NUMBER = 1;
+    static final int STRING = 2;
+    static final int BOOLEAN = 4;
+    static final int NIL = 8;
+    static final int FUNCTION = 16;
+    static final int ANY = NUMBER | STRING | BOOLEAN | NIL | FUNCTION;
+
+    /**
+     * The types of the variables at one point of the program.
+     */
+    private static final class State {
+        // By slot; slots past the end hold anything
+        int[] locals;
+        // Only globals this program has defined or assigned
+        final Map<String, Integer> globals;
+
+        State(int[] locals, Map<String, Integer> globals) {
+            this.locals = locals;
+            this.globals = globals;
+        }
+
+        State copy() {
+            return new State(locals.clone(), new HashMap<>(globals));
+        }
+
+        int local(int slot) {
+            return slot < locals.length ? locals[slot] : ANY;
+        }
+
+        void setLocal(int slot, int type) {
+            if (slot >= locals.length) {
+                int length = locals.length;
+                locals = Arrays.copyOf(locals, Math.max(slot + 1, length * 2));
+                Arrays.fill(locals, length, locals.length, ANY);
+            }
+            locals[slot] = type;
+        }
+
+        /**
+         * Widens this state to also cover another.
+         *
+         * @return true if this state changed
+         */
+        boolean join(State other) {
+            boolean changed = false;
+            int length = Math.max(locals.length, other.locals.length);
+            for (int slot = 0; slot < length; slot++) {
+                int type = local(slot) | other.local(slot);
+                if (type != local(slot)) {
+                    setLocal(slot, type);
+                    changed = true;
+                }
+            }
+            // A global only one branch has a type for may hold anything after the other
+            changed |= globals.keySet().retainAll(other.globals.keySet());
+            for (Map.Entry<String, Integer> global : globals.entrySet()) {
+                int type = global.getValue() | other.globals.get(global.getKey());
+                if (type != global.getValue()) {
+                    global.setValue(type);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        void forget() {
+            Arrays.fill(locals, ANY);
+            globals.clear();
+        }
+    }
+
+    /**
+     * Marks the end of the body of a loop in the work list.
+     */
+    private record LoopEnd(Stmt.While loop) {}
+
+    /**
+     * Marks the end of a function body in the work list, with the state to go back to.
+     */
+    private record FunctionEnd(State state) {}
+
+    private State state = new State(new int[0], new HashMap<>());
+    // The state at the start of each loop analyzed so far, covering every iteration seen;
+    // kept so that a nested loop does not start over each time its outer loop is analyzed again
+    private final Map<Stmt.While, State> loopStates = new IdentityHashMap<>();
+
+    /**
+     * Analyzes resolved top-level statements, or the statements of a lazily parsed
+     * block once it has been resolved.
+     *
+     * @param statements the statements to analyze; {@code null} entries left by parse errors are skipped
+     */
+    void infer(List<Stmt> statements) {
+        ArrayDeque<Object> work = new ArrayDeque<>();
+        pushStatements(work, statements);
+
+        while (!work.isEmpty()) {
+            Object item = work.pop();
+            if (item instanceof FunctionEnd end) {
+                state = end.state();
+                continue;
+            }
+            if (item instanceof LoopEnd end) {
+                State start = loopStates.get(end.loop());
+                if (start.join(state)) {
+                    // The next iteration can start in a state not analyzed yet
+                    beginIteration(work, end.loop(), start);
+                } else {
+                    // Leaving the loop, after its condition has been evaluated once more
+                    state = start.copy();
+                    infer(end.loop().condition);
+                }
+                continue;
+            }
+
+            Stmt stmt = (Stmt) item;
+            switch (stmt.kind) {
+                case Stmt.BLOCK -> {
+                    Stmt.Block block = (Stmt.Block) stmt;
+                    if (block.statements instanceof LazyStatements body && !body.isLoaded()) {
+                        // It may assign any variable, and is analyzed on its own once loaded
+                        state.forget();
+                        continue;
+                    }
+                    pushStatements(work, block.statements);
+                }
+                case Stmt.EXPRESSION -> infer(((Stmt.Expression) stmt).expression);
+                case Stmt.PRINT -> infer(((Stmt.Print) stmt).expression);
+                case Stmt.VAR -> {
+                    Stmt.Var var = (Stmt.Var) stmt;
+                    int type = var.initializer == null ? NIL : infer(var.initializer);
+                    set(var.slot, var.name, type);
+                }
+                case Stmt.WHILE -> {
+                    Stmt.While loop = (Stmt.While) stmt;
+                    State start = loopStates.get(loop);
+                    if (start == null) {
+                        start = state.copy();
+                        loopStates.put(loop, start);
+                    } else {
+                        start.join(state);
+                    }
+                    beginIteration(work, loop, start);
+                }
+                case Stmt.FUNCTION -> {
+                    Stmt.Function function = (Stmt.Function) stmt;
+                    set(function.slot, function.name, FUNCTION);
+                    work.push(new FunctionEnd(state));
+                    state = new State(new int[0], new HashMap<>());
+                    work.push(function.body);
+                }
+                case Stmt.RETURN -> {
+                    Stmt.Return stmtReturn = (Stmt.Return) stmt;
+                    if (stmtReturn.value != null) {
+                        infer(stmtReturn.value);
+                    }
+                }
+                default -> throw new IllegalStateException("Unknown statement kind " + stmt.kind);
+            }
+        }
+    }
+
+    private void beginIteration(ArrayDeque<Object> work, Stmt.While loop, State start) {
+        state = start.copy();
+        infer(loop.condition);
+        work.push(new LoopEnd(loop));
+        work.push(loop.body);
+    }
+
+    private static void pushStatements(ArrayDeque<Object> work, List<Stmt> statements) {
+        // Pushed in reverse, so they are popped in program order
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            Stmt statement = statements.get(i);
+            if (statement != null) {
+                work.push(statement);
+            }
+        }
+    }
+
+    private void set(int slot, String name, int type) {
+        if (slot >= 0) {
+            state.setLocal(slot, type);
+        } else {
+            state.globals.put(name, type);
+        }
+    }
+
+    /**
+     * Analyzes an expression in evaluation order.
+     *
+     * @return the types its value can have
+     */
+    private int infer(Expr root) {
+        // Nodes still being analyzed, innermost last, and how far each has got
+        Expr[] nodes = new Expr[16];
+        int[] steps = new int[16];
+        int nodeCount = 0;
+        // Types of analyzed operands that have not been consumed yet
+        int[] types = new int[16];
+        int typeCount = 0;
+        // For each ternary being analyzed, the state before its branches, then after its left branch
+        ArrayDeque<State> saved = new ArrayDeque<>();
+
+        nodes[nodeCount++] = root;
+        while (nodeCount > 0) {
+            if (nodeCount + 1 >= nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                steps = Arrays.copyOf(steps, steps.length * 2);
+            }
+            if (typeCount + 1 >= types.length) {
+                types = Arrays.copyOf(types, types.length * 2);
+            }
+
+            int top = nodeCount - 1;
+            Expr expr = nodes[top];
+            int step = steps[top]++;
+            Expr operand = null;
+            switch (expr.kind) {
+                case Expr.LITERAL -> types[typeCount++] = typeOf(((Expr.Literal) expr).value);
+                case Expr.VARIABLE -> {
+                    Expr.Variable variable = (Expr.Variable) expr;
+                    types[typeCount++] = variable.slot >= 0 ? state.local(variable.slot)
+                            : variable.function != null ? FUNCTION
+                            : state.globals.getOrDefault(variable.name, ANY);
+                }
+                case Expr.GROUPING -> {
+                    if (step == 0) operand = ((Expr.Grouping) expr).expression;
+                }
+                case Expr.UNARY -> {
+                    Expr.Unary unary = (Expr.Unary) expr;
+                    if (step == 0) {
+                        operand = unary.right;
+                    } else {
+                        unary.operandTypes |= types[typeCount - 1];
+                        types[typeCount - 1] = unary.operator == TokenType.MINUS ? NUMBER : BOOLEAN;
+                    }
+                }
+                case Expr.BINARY -> {
+                    Expr.Binary binary = (Expr.Binary) expr;
+                    if (step == 0) {
+                        operand = binary.left;
+                    } else if (step == 1) {
+                        operand = binary.right;
+                    } else {
+                        int right = types[--typeCount];
+                        int left = types[typeCount - 1];
+                        binary.operandTypes |= left | right;
+                        types[typeCount - 1] = binary(binary.operator, left, right);
+                    }
+                }
+                case Expr.ASSIGN -> {
+                    Expr.Assign assign = (Expr.Assign) expr;
+                    if (step == 0) {
+                        operand = assign.value;
+                    } else {
+                        set(assign.slot, assign.name, types[typeCount - 1]);
+                    }
+                }
+                case Expr.TERNARY -> {
+                    Expr.Ternary ternary = (Expr.Ternary) expr;
+                    if (step == 0) {
+                        operand = ternary.condition;
+                    } else if (step == 1) {
+                        typeCount--;
+                        saved.push(state.copy());
+                        operand = ternary.left;
+                    } else if (step == 2) {
+                        State before = saved.pop();
+                        saved.push(state);
+                        state = before;
+                        operand = ternary.right;
+                    } else {
+                        state.join(saved.pop());
+                        int right = types[--typeCount];
+                        types[typeCount - 1] |= right;
+                    }
+                }
+                case Expr.CALL -> {
+                    Expr.Call call = (Expr.Call) expr;
+                    if (step == 0) {
+                        operand = call.callee;
+                    } else if (step <= call.arguments.size()) {
+                        operand = call.arguments.get(step - 1);
+                    } else {
+                        typeCount -= call.arguments.size();
+                        types[typeCount - 1] = ANY;
+                        state.globals.clear();
+                    }
+                }
+                default -> throw new IllegalStateException("Unknown expression kind " + expr.kind);
+            }
+
+            if (operand != null) {
+                nodes[nodeCount] = operand;
+                steps[nodeCount] = 0;
+                nodeCount++;
+            } else {
+                nodes[--nodeCount] = null;
+            }
+        }
+        return types[0];
+    }
+
+    static int typeOf(Object value) {
+        if (value == null) return NIL;
+        if (value instanceof Double) return NUMBER;
+        if (value instanceof Boolean) return BOOLEAN;
+        if (value instanceof LoxFunction || value instanceof LoxNative) return FUNCTION;
+        return STRING;
+    }
+
+    /**
+     * @return the types the result of a binary operator can have, if it does not fail
+     */
+    static int binary(TokenType operator, int left, int right) {
+        return switch (operator) {
+            case MINUS, SLASH, STAR -> NUMBER;
+            case PLUS -> {
+                int result = (left & right & NUMBER) | (left & right & STRING);
+                // Always fails, so nothing after it runs
+                yield result == 0 ? ANY : result;
+            }
+            default -> BOOLEAN;
+        };
+    }
+}
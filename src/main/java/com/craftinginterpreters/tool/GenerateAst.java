@@ -7,29 +7,42 @@ import java.util.Arrays;
 import java.util.List;
 
 public class GenerateAst {
+    // Whether to emit final node classes with an integer kind tag and a switch-based
+    // dispatcher, in addition to the visitor interface
+    private static boolean kindTags = false;
+
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.err.println("Usage: generate_ast <output_directory>");
+        if (args.length == 2 && args[0].equals("--kind-tags")) {
+            kindTags = true;
+        } else if (args.length != 1) {
+            System.err.println("Usage: generate_ast [--kind-tags] <output_directory>");
             System.exit(64);
         }
 
-        String outputDir = args[0];
+        String outputDir = args[args.length - 1];
 
+        // Fields after `|` are not constructor parameters: they are filled in by
+        // the Resolver and TypeInference, or by the Interpreter as it runs, and
+        // default to the given value for trees those have not seen
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Grouping : Expr expression",
+                "Assign   : String name, int line, Expr value | int slot = -1, boolean calls = false",
+                "Binary   : Expr left, TokenType operator, int line, Expr right | int operandTypes = 0, boolean calls = false",
+                "Grouping : Expr expression | boolean calls = false",
                 "Literal  : Object value",
-                "Unary    : Token operator, Expr right",
-                "Ternary  : Expr condition, Expr left, Expr right",
-                "Variable : Token name"
+                "Unary    : TokenType operator, int line, Expr right | int operandTypes = 0, boolean calls = false",
+                "Ternary  : Expr condition, Expr left, Expr right | boolean calls = false",
+                "Variable : String name, int line | int slot = -1, Stmt.Function function = null",
+                "Call     : Expr callee, int line, List<Expr> arguments"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+                "Block      : List<Stmt> statements | int firstSlot = -1, int declarations = -1",
                 "Expression : Expr expression",
                 "Print      : Expr expression",
-                "Var        : Token name, Expr initializer"
+                "Var        : String name, Expr initializer | int slot = -1",
+                "While      : Expr condition, Stmt body | int slots = -1, int backEdges = 0, RegisterCode compiled = null",
+                "Function   : String name, List<String> params, Block body | int slot = -1, int frameSize = -1, LoxFunction function = null",
+                "Return     : Expr value"
         ));
     }
 
@@ -46,21 +59,61 @@ public class GenerateAst {
         writer.println("import java.util.List;");
         writer.println();
         writer.println("abstract public class " + baseName + " {");
+        if (kindTags) {
+            defineKinds(writer, types);
+        }
         defineVisitor(writer, baseName, types);
         writer.println();
 
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split("\\|");
+            String annotations = fields.length > 1 ? fields[1].trim() : "";
+            defineType(writer, baseName, className, fields[0].trim(), annotations);
         }
 
         writer.println();
+        if (kindTags) {
+            writer.println("  final int kind;");
+            writer.println();
+            writer.println("  " + baseName + "(int kind) {");
+            writer.println("    this.kind = kind;");
+            writer.println("  }");
+            writer.println();
+        }
         writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+        if (kindTags) {
+            defineDispatch(writer, baseName, types);
+        }
         writer.println("}");
         writer.close();
     }
 
+    private static void defineKinds(PrintWriter writer, List<String> types) {
+        for (int i = 0; i < types.size(); i++) {
+            String typeName = types.get(i).split(":")[0].trim();
+            writer.println("  static final int " + typeName.toUpperCase() + " = " + i + ";");
+        }
+        writer.println();
+    }
+
+    private static void defineDispatch(PrintWriter writer, String baseName, List<String> types) {
+        String argument = baseName.toLowerCase();
+        writer.println();
+        writer.println("  // Same as " + argument + ".accept(visitor), but selects the visitor method with");
+        writer.println("  // a switch on the kind tag instead of a virtual call on the node");
+        writer.println("  static <R> R dispatch(Visitor<R> visitor, " + baseName + " " + argument + ") {");
+        writer.println("    return switch (" + argument + ".kind) {");
+        for (String type : types) {
+            String typeName = type.split(":")[0].trim();
+            writer.println("      case " + typeName.toUpperCase() + " -> visitor.visit" + typeName + baseName
+                    + "((" + typeName + ") " + argument + ");");
+        }
+        writer.println("      default -> throw new IllegalStateException(\"Unknown kind \" + " + argument + ".kind);");
+        writer.println("    };");
+        writer.println("  }");
+    }
+
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
         writer.println("  interface Visitor<R> {");
         for (String type : types) {
@@ -70,9 +123,13 @@ public class GenerateAst {
         writer.println("  }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
-        writer.println("  static public class " + className + " extends " + baseName + " {");
+    private static void defineType(
+            PrintWriter writer, String baseName, String className, String fieldList, String annotationList) {
+        writer.println("  static " + (kindTags ? "final " : "") + "public class " + className + " extends " + baseName + " {");
         writer.println("    " + className + "(" + fieldList + ") {");
+        if (kindTags) {
+            writer.println("      super(" + className.toUpperCase() + ");");
+        }
 
         String[] fields = fieldList.split(", ");
         for (String field : fields) {
@@ -94,6 +151,11 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("    final " + field + ";");
         }
+        if (!annotationList.isEmpty()) {
+            for (String annotation : annotationList.split(", ")) {
+                writer.println("    " + annotation + ";");
+            }
+        }
 
         writer.println("  }");
     }
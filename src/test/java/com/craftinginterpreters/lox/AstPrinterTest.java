@@ -12,10 +12,10 @@ public class AstPrinterTest {
         // Create the expression: (- 123 * (group 45.67))
         Expr expression = new Expr.Binary(
                 new Expr.Unary(
-                        new Token(TokenType.MINUS, "-", null, 1),
+                        TokenType.MINUS, 1,
                         new Expr.Literal(123)
                 ),
-                new Token(TokenType.STAR, "*", null, 1),
+                TokenType.STAR, 1,
                 new Expr.Grouping(
                         new Expr.Literal(45.67)
                 )
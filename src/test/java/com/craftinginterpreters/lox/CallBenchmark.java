@@ -0,0 +1,58 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a recursive function that makes about 22,000 calls, all at once and in slices
+ * of 1,000 statements, which pause inside the calls.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec@bench}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CallBenchmark {
+    private List<Stmt> program;
+
+    @Setup
+    public void setUp() {
+        program = new Parser(new Scanner("""
+            fun fib(n) { return n < 2 ? n : fib(n - 1) + fib(n - 2); }
+            var result = fib(20);
+            """).scanTokens()).parse();
+        new Resolver().resolve(program);
+        new TypeInference().infer(program);
+    }
+
+    @Benchmark
+    public Object whole() {
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(program);
+        return interpreter.globals.get("result", 0);
+    }
+
+    @Benchmark
+    public Object sliced() {
+        Interpreter interpreter = new Interpreter();
+        Continuation continuation = interpreter.start(program, 1_000);
+        while (!continuation.resume()) {
+            // Another slice
+        }
+        return interpreter.globals.get("result", 0);
+    }
+}
@@ -0,0 +1,127 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares evaluating an expression tree through {@code accept} and the visitor
+ * interface with the switch on the kind tag generated by {@code GenerateAst --kind-tags}.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec@bench}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+    private Expr expression;
+    private final Evaluator visitor = new VisitorEvaluator();
+    private final Evaluator kindSwitch = new SwitchEvaluator();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(34);
+        StringBuilder source = new StringBuilder("print 0");
+        for (int i = 0; i < 2_000; i++) {
+            switch (random.nextInt(4)) {
+                case 0 -> source.append(" + (").append(random.nextInt(100)).append(" * 2)");
+                case 1 -> source.append(" - -").append(random.nextInt(100));
+                case 2 -> source.append(" + (1 < 2 ? 3 : 4)");
+                default -> source.append(" * 1");
+            }
+        }
+        source.append(";");
+
+        List<Stmt> statements = new Parser(new Scanner(source.toString()).scanTokens()).parse();
+        expression = ((Stmt.Print) statements.get(0)).expression;
+
+        // The rest of the pipeline visits the same nodes with other visitors, so the
+        // calls inside accept() see several receiver types, as they do in jlox
+        new Resolver().resolve(statements);
+        new AstPrinter().print(expression);
+    }
+
+    @Benchmark
+    public Object visitor() {
+        return visitor.evaluate(expression);
+    }
+
+    @Benchmark
+    public Object kindSwitch() {
+        return kindSwitch.evaluate(expression);
+    }
+
+    private abstract static class Evaluator implements Expr.Visitor<Object> {
+        abstract Object evaluate(Expr expr);
+
+        @Override
+        public Object visitAssignExpr(Expr.Assign expr) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object visitBinaryExpr(Expr.Binary expr) {
+            Object left = evaluate(expr.left);
+            Object right = evaluate(expr.right);
+            return Interpreter.binary(expr.operator, expr.line, left, right);
+        }
+
+        @Override
+        public Object visitGroupingExpr(Expr.Grouping expr) {
+            return evaluate(expr.expression);
+        }
+
+        @Override
+        public Object visitLiteralExpr(Expr.Literal expr) {
+            return expr.value;
+        }
+
+        @Override
+        public Object visitUnaryExpr(Expr.Unary expr) {
+            return Interpreter.unary(expr.operator, expr.line, evaluate(expr.right));
+        }
+
+        @Override
+        public Object visitTernaryExpr(Expr.Ternary expr) {
+            return evaluate(Interpreter.isTruthy(evaluate(expr.condition)) ? expr.left : expr.right);
+        }
+
+        @Override
+        public Object visitVariableExpr(Expr.Variable expr) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object visitCallExpr(Expr.Call expr) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class VisitorEvaluator extends Evaluator {
+        @Override
+        Object evaluate(Expr expr) {
+            return expr.accept(this);
+        }
+    }
+
+    private static final class SwitchEvaluator extends Evaluator {
+        @Override
+        Object evaluate(Expr expr) {
+            return Expr.dispatch(this, expr);
+        }
+    }
+}
@@ -76,7 +76,8 @@ public class ExamplesTest {
                 Path outFile = Paths.get(entry.toString() + ".out");
                 if (Files.exists(outFile)) {
                     String testName = directory.relativize(entry).toString();
-                    tests.add(createTest(testName, entry, outFile));
+                    tests.add(createTest(testName, entry, outFile, false));
+                    tests.add(createTest(testName + " (lazy blocks)", entry, outFile, true));
                 }
             }
         }
@@ -89,9 +90,10 @@ public class ExamplesTest {
      * @param testName the name of the test
      * @param loxFile the .lox file to run
      * @param outFile the .lox.out file containing the expected output
+     * @param lazyBlocks whether to parse block bodies lazily
      * @return a dynamic test
      */
-    private DynamicTest createTest(String testName, Path loxFile, Path outFile) {
+    private DynamicTest createTest(String testName, Path loxFile, Path outFile, boolean lazyBlocks) {
         return dynamicTest(testName, () -> {
             // Capture standard output
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
@@ -101,6 +103,7 @@ public class ExamplesTest {
             try {
                 // Reset the Lox interpreter to a fresh state
                 Lox.reset();
+                Lox.session().lazyBlocks = lazyBlocks;
                 // Run the .lox file using the public runFile method
                 Lox.runFile(loxFile.toString());
 
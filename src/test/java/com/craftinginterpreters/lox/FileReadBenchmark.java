@@ -0,0 +1,78 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a 27 MB log a line at a time and adds up the lengths of the lines, with a
+ * {@link BufferedReader} and with a {@link LoxFile}, whose lines are not decoded
+ * since only their lengths are used.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec@bench}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileReadBenchmark {
+    private Path log;
+
+    @Setup
+    public void setUp() throws IOException {
+        log = Files.createTempFile("jlox-bench", ".log");
+        try (Writer writer = Files.newBufferedWriter(log, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < 500_000; i++) {
+                writer.write("2024-01-01T00:00:00 INFO request " + i + " served in " + (i % 97) + " ms\n");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(log);
+    }
+
+    @Benchmark
+    public long bufferedReader() throws IOException {
+        long total = 0;
+        try (BufferedReader reader = Files.newBufferedReader(log, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                total += line.length();
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long mapped() throws IOException {
+        long total = 0;
+        LoxFile file = new LoxFile(log.toString(), LoxFile.WINDOW_SIZE);
+        try {
+            for (CharSequence line = file.readLine(); line != null; line = file.readLine()) {
+                total += line.length();
+            }
+        } finally {
+            file.close();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,100 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.DisplayName;
+import org.assertj.core.api.Assertions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+/**
+ * Runs programs through the flat AST encoding and checks that they behave
+ * exactly as with the tree-walking interpreter.
+ */
+public class FlatInterpreterTest {
+    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+
+    @BeforeEach
+    void setUp() {
+        Lox.reset();
+        System.setOut(new PrintStream(outputStream));
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    private String run(String source) {
+        outputStream.reset();
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new FlatInterpreter().interpret(FlatAst.encode(statements));
+        return outputStream.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    @Test
+    @DisplayName("Test encoding an expression into flat arrays")
+    void testEncoding() {
+        List<Stmt> statements = new Parser(new Scanner("print 1 + 2;").scanTokens()).parse();
+        FlatAst program = FlatAst.encode(statements);
+
+        // Children come first: two literals, the binary node, then the print
+        Assertions.assertThat(program.code).containsExactly(
+                FlatAst.LITERAL, 0,
+                FlatAst.LITERAL, 1,
+                FlatAst.BINARY, TokenType.PLUS.ordinal(), 1, 0, 2,
+                FlatAst.PRINT, 4);
+        Assertions.assertThat(program.constants).containsExactly(1.0, 2.0);
+        Assertions.assertThat(program.roots).containsExactly(9);
+    }
+
+    @Test
+    @DisplayName("Test functions in blocks refer to themselves by declaration")
+    void testBlockFunctions() {
+        outputStream.reset();
+        List<Stmt> statements = new Parser(new Scanner("""
+            { fun f(n) { return n == 0 ? 0 : f(n - 1) + 2; } fun g() { return f(4); } print g(); }
+            """).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        new FlatInterpreter().interpret(FlatAst.encode(statements));
+        Assertions.assertThat(outputStream.toString(StandardCharsets.UTF_8).trim()).isEqualTo("8");
+    }
+
+    @Test
+    @DisplayName("Test runtime errors are reported")
+    void testRuntimeError() {
+        run("print -\"a\";");
+        Assertions.assertThat(Lox.session().hadRuntimeError).isTrue();
+    }
+
+    @TestFactory
+    @DisplayName("Flat AST Examples Tests")
+    List<DynamicTest> examplesTests() throws IOException {
+        Path directory = Paths.get("t");
+        try (var files = Files.list(directory)) {
+            return files
+                    .filter(path -> path.toString().endsWith(".lox"))
+                    .filter(path -> Files.exists(Paths.get(path + ".out")))
+                    .sorted()
+                    .map(path -> dynamicTest(directory.relativize(path).toString(), () -> {
+                        String expected = Files.readString(Paths.get(path + ".out"), StandardCharsets.UTF_8).trim();
+                        Assertions.assertThat(run(Files.readString(path, StandardCharsets.UTF_8))).isEqualTo(expected);
+                    }))
+                    .collect(Collectors.toList());
+        }
+    }
+}
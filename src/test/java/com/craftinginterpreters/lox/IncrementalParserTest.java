@@ -0,0 +1,216 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.assertj.core.api.Assertions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Test class for the IncrementalParser.
+ * Edited sources are compared with the result of scanning and parsing them from scratch.
+ */
+public class IncrementalParserTest {
+    private static final String[] PIECES = {
+        "var a = 1;", "print a + b;", "{ var x = 2; print x; }", "a = b = 3;", "print \"s\";",
+        "\n", " ", "// note\n", "/* long\ncomment */", "\"multi\nline\"", "(", ")", "{", "}", ";",
+        "+", "=", "==", "!", "-", "?", ":", "1.5", "x", "print", "var", "y1", "\"",
+    };
+
+    private final PrintStream originalErr = System.err;
+    private final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+    @BeforeEach
+    void setUp() {
+        // Random edits produce plenty of syntax errors
+        System.setErr(new PrintStream(errors));
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.setErr(originalErr);
+    }
+
+    @Test
+    @DisplayName("Test statements outside an edit are reused")
+    void testReuse() {
+        IncrementalParser parser = new IncrementalParser("var a = 1;\nprint a;\n{ var b = a; print b; }\nprint a + 1;\n");
+        List<Stmt> before = List.copyOf(parser.statements());
+
+        // "print a;" becomes "print abc;"
+        List<Stmt> after = parser.edit(18, 0, "bc");
+
+        Assertions.assertThat(after).hasSize(4);
+        Assertions.assertThat(after.get(0)).isSameAs(before.get(0));
+        Assertions.assertThat(after.get(1)).isNotSameAs(before.get(1));
+        Assertions.assertThat(after.get(2)).isSameAs(before.get(2));
+        Assertions.assertThat(after.get(3)).isSameAs(before.get(3));
+        Assertions.assertThat(dump(after.get(1))).isEqualTo("print abc@2");
+
+        // A new line moves everything after it, so those statements are reparsed with
+        // their new lines when they are read
+        after = parser.edit(11, 0, "\n");
+        Assertions.assertThat(after.get(0)).isSameAs(before.get(0));
+        Assertions.assertThat(after.get(3)).isNotSameAs(before.get(3));
+        Assertions.assertThat(dump(after.get(3))).isEqualTo("print (a@5 PLUS@5 1.0)");
+        Assertions.assertThat(after.get(3)).isSameAs(parser.statements().get(3));
+        Assertions.assertThat(parser.tokens().get(parser.tokens().size() - 1).line).isEqualTo(6);
+        assertMatchesFullParse(parser);
+    }
+
+    @Test
+    @DisplayName("Test runtime errors after an edit report the edited lines")
+    void testErrorLines() {
+        IncrementalParser parser = new IncrementalParser("var a = 1;\nvar b = 2;\nprint -\"x\";\n");
+        List<Stmt> statements = parser.edit(11, 0, "\n");
+        new Resolver().resolve(statements);
+        errors.reset();
+        try {
+            new Interpreter().interpret(statements);
+            Assertions.assertThat(errors.toString()).isEqualTo("Operand must be a number.\n[line 4]\n");
+        } finally {
+            Lox.session().hadRuntimeError = false;
+        }
+    }
+
+    @Test
+    @DisplayName("Test edits that merge and split tokens and statements")
+    void testEdits() {
+        String[][] cases = {
+            // source, offset, removed, inserted
+            {"var a = 1; print a;", "9", "1", ""},
+            {"var a = 1; print a;", "6", "0", "="},
+            {"print a; print b;", "7", "0", "bc"},
+            {"print 1; /* x */ print 2;", "9", "0", "/"},
+            {"print \"a\"; print 2;", "7", "1", ""},
+            {"{ print 1; } print 2;", "11", "1", ""},
+            {"  print 1;", "0", "0", "x"},
+            {"print 1;", "8", "0", "\nprint 2;"},
+            {"print 1;\nprint 2;", "0", "17", ""},
+        };
+        for (String[] testCase : cases) {
+            IncrementalParser parser = new IncrementalParser(testCase[0]);
+            parser.edit(Integer.parseInt(testCase[1]), Integer.parseInt(testCase[2]), testCase[3]);
+            assertMatchesFullParse(parser);
+        }
+    }
+
+    @Test
+    @DisplayName("Test edits whose effect reaches far past the edited text")
+    void testLongRanges() {
+        String filler = "print 1; ".repeat(200);
+        String[][] cases = {
+            // source, offset, removed, inserted
+            {"print \"" + filler + "\"; print 2;", "6", "1", ""},
+            {"print 0; " + filler + "print 2;", "9", "0", "/*"},
+            {"print 0; /*" + filler + "*/ print 2;", "9", "2", ""},
+            {"print 0; " + filler + "print 2;", "9", "0", "\""},
+        };
+        for (String[] testCase : cases) {
+            IncrementalParser parser = new IncrementalParser(testCase[0]);
+            errors.reset();
+            parser.edit(Integer.parseInt(testCase[1]), Integer.parseInt(testCase[2]), testCase[3]);
+            assertMatchesFullParse(parser);
+        }
+
+        // Errors are reported once, and only real ones
+        IncrementalParser parser = new IncrementalParser("print 0; " + filler);
+        errors.reset();
+        parser.edit(9, 0, "# \"");
+        Assertions.assertThat(errors.toString().split("\\R"))
+                .containsExactly("[line 1] Errorscanner default case: Unexpected character.",
+                        "[line 1] Errorstring scanner: Unterminated string.");
+    }
+
+    @Test
+    @DisplayName("Test random edits give the same result as parsing from scratch")
+    void testRandomEdits() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            StringBuilder source = new StringBuilder();
+            for (int i = random.nextInt(120); i > 0; i--) {
+                source.append(PIECES[random.nextInt(PIECES.length)]).append(random.nextBoolean() ? " " : "");
+            }
+            IncrementalParser parser = new IncrementalParser(source.toString());
+            assertMatchesFullParse(parser);
+
+            for (int edit = 0; edit < 20; edit++) {
+                int length = parser.source().length();
+                int offset = random.nextInt(length + 1);
+                int removed = random.nextInt(Math.min(length - offset, 8) + 1);
+                String inserted = random.nextBoolean() ? PIECES[random.nextInt(PIECES.length)] : "";
+                parser.edit(offset, removed, inserted);
+                assertMatchesFullParse(parser);
+            }
+        }
+    }
+
+    private static void assertMatchesFullParse(IncrementalParser parser) {
+        List<Token> tokens = new Scanner(parser.source()).scanTokens();
+        List<Stmt> statements = new Parser(tokens).parse();
+
+        Assertions.assertThat(describe(parser.tokens())).as(parser.source()).isEqualTo(describe(tokens));
+        Assertions.assertThat(parser.statements().stream().map(IncrementalParserTest::dump).toList())
+                .as(parser.source())
+                .isEqualTo(statements.stream().map(IncrementalParserTest::dump).toList());
+    }
+
+    private static String describe(List<Token> tokens) {
+        return tokens.stream()
+                .map(token -> token.type + " " + token.lexeme + " " + token.literal + " " + token.line)
+                .collect(Collectors.joining("\n"));
+    }
+
+    /**
+     * Prints a statement including the line of every node that records one.
+     */
+    private static String dump(Stmt stmt) {
+        if (stmt == null) return "<error>";
+        return switch (stmt.kind) {
+            case Stmt.BLOCK -> ((Stmt.Block) stmt).statements.stream()
+                    .map(IncrementalParserTest::dump)
+                    .collect(Collectors.joining(" ", "{ ", " }"));
+            case Stmt.EXPRESSION -> dump(((Stmt.Expression) stmt).expression);
+            case Stmt.PRINT -> "print " + dump(((Stmt.Print) stmt).expression);
+            case Stmt.VAR -> {
+                Stmt.Var var = (Stmt.Var) stmt;
+                yield "var " + var.name + (var.initializer == null ? "" : " = " + dump(var.initializer));
+            }
+            default -> throw new IllegalStateException("Unknown statement kind " + stmt.kind);
+        };
+    }
+
+    private static String dump(Expr expr) {
+        return switch (expr.kind) {
+            case Expr.ASSIGN -> {
+                Expr.Assign assign = (Expr.Assign) expr;
+                yield "(" + assign.name + "@" + assign.line + " = " + dump(assign.value) + ")";
+            }
+            case Expr.BINARY -> {
+                Expr.Binary binary = (Expr.Binary) expr;
+                yield "(" + dump(binary.left) + " " + binary.operator + "@" + binary.line + " " + dump(binary.right) + ")";
+            }
+            case Expr.GROUPING -> "(group " + dump(((Expr.Grouping) expr).expression) + ")";
+            case Expr.LITERAL -> String.valueOf(((Expr.Literal) expr).value);
+            case Expr.UNARY -> {
+                Expr.Unary unary = (Expr.Unary) expr;
+                yield "(" + unary.operator + "@" + unary.line + " " + dump(unary.right) + ")";
+            }
+            case Expr.TERNARY -> {
+                Expr.Ternary ternary = (Expr.Ternary) expr;
+                yield "(" + dump(ternary.condition) + " ? " + dump(ternary.left) + " : " + dump(ternary.right) + ")";
+            }
+            case Expr.VARIABLE -> {
+                Expr.Variable variable = (Expr.Variable) expr;
+                yield variable.name + "@" + variable.line;
+            }
+            default -> throw new IllegalStateException("Unknown expression kind " + expr.kind);
+        };
+    }
+}
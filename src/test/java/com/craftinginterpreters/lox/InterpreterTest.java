@@ -8,6 +8,7 @@ import org.assertj.core.api.Assertions;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Test class for the Interpreter.
@@ -140,6 +141,14 @@ public class InterpreterTest {
     @DisplayName("Test interpreting string concatenation")
     void testStringConcatenation() {
         Assertions.assertThat(evaluateExpression("\"hello\" + \" \" + \"world\"")).isEqualTo("hello world");
+
+        // Long results are kept as ropes but still print and compare by their text
+        String a = "a".repeat(50);
+        String b = "b".repeat(50);
+        Assertions.assertThat(evaluateExpression("\"" + a + "\" + \"" + b + "\"")).isEqualTo(a + b);
+        Assertions.assertThat(evaluateExpression("\"" + a + "\" + \"" + b + "\" == \"" + a + b + "\"")).isEqualTo("true");
+        Assertions.assertThat(evaluateExpression("\"" + a + b + "\" == \"" + a + "\" + \"" + b + "\"")).isEqualTo("true");
+        Assertions.assertThat(evaluateExpression("\"" + a + "\" + \"" + b + "\" != \"" + b + a + "\"")).isEqualTo("true");
     }
 
     @Test
@@ -198,7 +207,7 @@ public class InterpreterTest {
     @Test
     @DisplayName("Test type errors")
     void testTypeErrors() {
-        // For testing runtime errors, we need to check if Lox.hadRuntimeError is set
+        // For testing runtime errors, we need to check if Lox.session().hadRuntimeError is set
         // We'll use a custom method that resets the error flag before each test
         
         // Test adding a number to a string (should cause a runtime error)
@@ -218,6 +227,382 @@ public class InterpreterTest {
         Assertions.assertThat(hasError).isTrue();
     }
     
+    @Test
+    @DisplayName("Test programs behave the same with shared subtrees")
+    void testSharedSubtrees() {
+        String source = """
+            var a = 1;
+            print a + 1; print a + 1;
+            { var a = 10; print a + 1; { print a + 1; var a = 100; print a + 1; } print a + 1; }
+            print a + 1;
+            """;
+
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens(), true).parse();
+        new Resolver().resolve(statements);
+        outputStream.reset();
+        interpreter.interpret(statements);
+
+        Assertions.assertThat(outputStream.toString().trim().split("\\R"))
+                .containsExactly("2", "2", "11", "11", "101", "11", "2");
+    }
+
+    @Test
+    @DisplayName("Test deeply nested programs run without overflowing the Java stack")
+    void testDeepNesting() {
+        int depth = 100_000;
+
+        Assertions.assertThat(evaluateExpression("(".repeat(depth) + "-1" + ")".repeat(depth))).isEqualTo("-1");
+        Assertions.assertThat(evaluateExpression("-".repeat(depth) + "1")).isEqualTo("1");
+        Assertions.assertThat(evaluateExpression("0" + " + 1".repeat(depth))).isEqualTo("100000");
+        Assertions.assertThat(evaluateExpression("false ? 1 : ".repeat(depth) + "2")).isEqualTo("2");
+
+        String source = "var a = 0;" + "{ var b = a; a = b + 1;".repeat(depth) + "print a;" + "}".repeat(depth)
+                + "print a;";
+        Assertions.assertThat(runProgram(source)).containsExactly("100000", "100000");
+    }
+
+    @Test
+    @DisplayName("Test a runtime error deep inside nested blocks leaves the interpreter usable")
+    void testDeepRuntimeError() {
+        int depth = 10_000;
+        Assertions.assertThat(hasRuntimeError("{ var a = 1;".repeat(depth) + "-\"x\";" + "}".repeat(depth))).isTrue();
+        Assertions.assertThat(runProgram("{ var a = 1; { var b = 2; print a + b; } }")).containsExactly("3");
+    }
+
+    @Test
+    @DisplayName("Test sliced execution pauses at statement boundaries and resumes on other threads")
+    void testSlicedExecution() throws Exception {
+        String source = "var a = 1; { var b = a + 1; print b; { var c = b + 1; print c; } print a + b; } print a;";
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        outputStream.reset();
+
+        Continuation continuation = interpreter.start(statements, 2);
+        Assertions.assertThat(outputStream.toString()).isEmpty();
+
+        int slices = 0;
+        while (!continuation.isDone()) {
+            // Alternate between the test thread and a fresh thread
+            if (slices++ % 2 == 0) {
+                continuation.resume();
+            } else {
+                Thread thread = new Thread(continuation::resume);
+                thread.start();
+                thread.join();
+            }
+        }
+
+        Assertions.assertThat(slices).isEqualTo(5);
+        Assertions.assertThat(outputStream.toString().trim().split("\\R")).containsExactly("2", "3", "3", "1");
+        Assertions.assertThat(continuation.resume()).isTrue();
+    }
+
+    @Test
+    @DisplayName("Test a program resumed on another thread keeps the session it was started in")
+    void testSlicedSession() throws Exception {
+        List<Stmt> statements = new Parser(new Scanner("print 1;\nprint 2;\nprint -\"x\";").scanTokens()).parse();
+        new Resolver().resolve(statements);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Session session = new Session(new PrintStream(out), new PrintStream(err), null);
+        Session original = Lox.useSession(session);
+        Continuation continuation = interpreter.start(statements, 1);
+        Lox.useSession(original);
+        outputStream.reset();
+
+        boolean[] threadError = new boolean[1];
+        Thread thread = new Thread(() -> {
+            while (!continuation.resume()) {
+                // Another slice
+            }
+            threadError[0] = Lox.session().hadRuntimeError;
+        });
+        thread.start();
+        thread.join();
+
+        Assertions.assertThat(out.toString().split("\\R")).containsExactly("1", "2");
+        Assertions.assertThat(err.toString()).isEqualTo("Operand must be a number.\n[line 3]\n");
+        Assertions.assertThat(session.hadRuntimeError).isTrue();
+        // Neither the resuming thread nor the test thread saw any of it
+        Assertions.assertThat(threadError[0]).isFalse();
+        Assertions.assertThat(outputStream.toString()).isEmpty();
+        Assertions.assertThat(Lox.session()).isSameAs(original);
+    }
+
+    @Test
+    @DisplayName("Test interleaved programs do not see each other's state")
+    void testInterleavedPrograms() {
+        List<Continuation> continuations = new java.util.ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String source = "var n = " + i + "; { var x = n * 10; { var y = x + 1; print y; } print x; }";
+            List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+            new Resolver().resolve(statements);
+            continuations.add(new Interpreter().start(statements, 1));
+        }
+        outputStream.reset();
+
+        while (!continuations.stream().allMatch(Continuation::isDone)) {
+            continuations.forEach(Continuation::resume);
+        }
+
+        Assertions.assertThat(outputStream.toString().trim().split("\\R"))
+                .containsExactly("1", "11", "21", "0", "10", "20");
+    }
+
+    @Test
+    @DisplayName("Test a runtime error finishes a sliced program")
+    void testSlicedRuntimeError() {
+        List<Stmt> statements = new Parser(new Scanner("{ var a = 1; print a; -\"x\"; print a; }").scanTokens()).parse();
+        new Resolver().resolve(statements);
+        outputStream.reset();
+
+        Continuation continuation = interpreter.start(statements, 100);
+        Assertions.assertThat(continuation.resume()).isTrue();
+        Assertions.assertThat(outputStream.toString().trim()).isEqualTo("1");
+        // The interpreter can start another program afterwards
+        Assertions.assertThat(interpreter.start(statements, 1)).isNotNull();
+    }
+
+    @Test
+    @DisplayName("Test lazily parsed blocks see the variables of enclosing blocks")
+    void testLazyBlocks() {
+        String source = """
+            var a = "global";
+            { var a = 1; var b = 2; { print a + b; { var a = 10; print a + b; } b = 5; } print a + b; }
+            print a;
+            """;
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens(), false, true).parse();
+        new Resolver().resolve(statements);
+        outputStream.reset();
+        interpreter.interpret(statements);
+
+        Assertions.assertThat(outputStream.toString().trim().split("\\R")).containsExactly("3", "12", "6", "global");
+    }
+
+    @Test
+    @DisplayName("Test hot loops run on the register vm and write their locals back")
+    void testOnStackReplacement() {
+        String source = """
+            var total = 0;
+            { var i = 0; var sum = 0; var last = "none";
+              while (i < 5000) { i = i + 1; sum = sum + i; last = i > 4999 ? "done" : last; }
+              print i; print sum; print last; total = sum; }
+            print total;
+            """;
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        Stmt.While loop = (Stmt.While) ((Stmt.Block) statements.get(1)).statements.get(3);
+        outputStream.reset();
+        interpreter.interpret(statements);
+
+        Assertions.assertThat(loop.compiled).isNotNull();
+        Assertions.assertThat(outputStream.toString().trim().split("\\R"))
+                .containsExactly("5000", "1.25025E7", "done", "1.25025E7");
+
+        // Already compiled, the loop runs on the vm from its first iteration
+        outputStream.reset();
+        interpreter.interpret(statements);
+        Assertions.assertThat(outputStream.toString().trim().split("\\R"))
+                .containsExactly("5000", "1.25025E7", "done", "1.25025E7");
+    }
+
+    @Test
+    @DisplayName("Test random programs behave the same with every loop compiled")
+    void testCompiledLoops() {
+        Random random = new Random(45);
+        for (int i = 0; i < 200; i++) {
+            String source = IrTest.RANDOM_GLOBALS + IrTest.randomProgram(random) + "print g0; print g1; print g2;";
+            Assertions.assertThat(runWithThreshold(source, 1)).as(source)
+                    .isEqualTo(runWithThreshold(source, Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    @DisplayName("Test a runtime error in a compiled loop reports its line")
+    void testCompiledLoopRuntimeError() {
+        String source = "{ var i = 0;\nwhile (true) {\ni = i + 1;\nprint i > 2 ? -\"s\" : i; } }";
+        Assertions.assertThat(runWithThreshold(source, 1))
+                .isEqualTo("1\n2\nOperand must be a number.\n[line 4]\n");
+    }
+
+    @Test
+    @DisplayName("Test a loop compiled while its locals held numbers runs when they hold something else")
+    void testCompiledLoopNumberSlots() {
+        String source = """
+            fun repeat(x, n) { var i = 0; while (i < n) { x = x + x; i = i + 1; } return x; }
+            print repeat(1, 3);
+            print repeat("ab", 2);
+            print repeat(0.5, 2);
+            print repeat(nil, 2);
+            """;
+        Assertions.assertThat(runWithThreshold(source, 1))
+                .isEqualTo("8\nabababab\n2\nOperands must be two numbers or two strings.\n[line 1]\n");
+    }
+
+    @Test
+    @DisplayName("Test sliced programs never hand a loop over to the vm")
+    void testSlicedLoops() {
+        List<Stmt> statements = new Parser(new Scanner(
+                "{ var i = 0; while (i < 10) i = i + 1; print i; }").scanTokens()).parse();
+        new Resolver().resolve(statements);
+        Stmt.While loop = (Stmt.While) ((Stmt.Block) statements.get(0)).statements.get(1);
+        interpreter.compileThreshold = 1;
+        outputStream.reset();
+
+        Continuation continuation = interpreter.start(statements, 3);
+        while (!continuation.isDone()) {
+            continuation.resume();
+        }
+
+        Assertions.assertThat(loop.compiled).isNull();
+        Assertions.assertThat(outputStream.toString().trim()).isEqualTo("10");
+    }
+
+    @Test
+    @DisplayName("Test calls run in frames of their own and return without unwinding")
+    void testFunctions() {
+        String source = """
+            fun fib(n) { return n < 2 ? n : fib(n - 1) + fib(n - 2); }
+            print fib(15);
+            fun find(limit) {
+              var i = 0;
+              while (true) { { var square = i * i; while (square > limit) return i; } i = i + 1; }
+            }
+            print find(50);
+            { var a = "outer"; fun swap(a, b) { var c = a; a = b; b = c; return a + b; } print swap(a, "!"); print a; }
+            fun none() { }
+            print none();
+            print fib;
+            """;
+        Assertions.assertThat(runProgram(source)).containsExactly("610", "8", "!outer", "outer", "nil", "<fn fib>");
+
+        // Enough back edges to hand the loops over to the vm, which calls back into the interpreter
+        Assertions.assertThat(runWithThreshold("""
+            var total = 0;
+            fun add(n) { total = total + n; return total; }
+            fun sum(n) { var last = 0; for (var i = 1; i <= n; i = i + 1) last = add(i); return last; }
+            print sum(3000);
+            print total;
+            """, 100)).isEqualTo("4501500\n4501500\n");
+    }
+
+    @Test
+    @DisplayName("Test functions in blocks call themselves and each other")
+    void testBlockFunctions() {
+        String source = """
+            {
+              fun fact(n) { return n < 2 ? 1 : n * fact(n - 1); }
+              fun twice(n) { return 2 * fact(n); }
+              print twice(5);
+              fun outer(n) { fun down(k) { return k == 0 ? 0 : down(k - 1) + 1; } return down(n); }
+              print outer(20);
+            }
+            """;
+        Assertions.assertThat(runProgram(source)).containsExactly("240", "20");
+        // With the loop handed over to the vm, which gets the function as a constant
+        Assertions.assertThat(runWithThreshold("""
+            { fun f(n) { return n < 1 ? 0 : f(n - 1) + 1; }
+              fun g() { var total = 0; for (var i = 0; i < 300; i = i + 1) total = total + f(2); return total; }
+              print g(); }
+            """, 100)).isEqualTo("600\n");
+    }
+
+    @Test
+    @DisplayName("Test sliced programs pause inside calls")
+    void testSlicedCalls() {
+        List<Stmt> statements = new Parser(new Scanner("""
+            fun spin(n) { var i = 0; while (i < n) { i = i + 1; } return i; }
+            print spin(3000000);
+            var total = spin(10) + spin(20) * 2;
+            print total;
+            """).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        outputStream.reset();
+
+        Continuation continuation = interpreter.start(statements, 10);
+        int slices = 1;
+        while (!continuation.resume()) {
+            slices++;
+        }
+
+        // Every iteration is a back edge and a statement, so the loop takes many slices
+        Assertions.assertThat(slices).isGreaterThan(3_000_000 * 2 / 10);
+        Assertions.assertThat(outputStream.toString().trim().split("\\R")).containsExactly("3000000", "50");
+    }
+
+    @Test
+    @DisplayName("Test recursion is limited by the heap rather than the Java stack")
+    void testDeepRecursion() {
+        String source = """
+            fun down(n) { return n == 0 ? 0 : down(n - 1) + 1; }
+            print down(50000);
+            fun count(n) { var inner = n == 0 ? 0 : count(n - 1); return inner + 1; }
+            print count(50000);
+            """;
+        Assertions.assertThat(runProgram(source)).containsExactly("50000", "50001");
+
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        outputStream.reset();
+        Continuation continuation = interpreter.start(statements, 7);
+        while (!continuation.resume()) {
+            // Another slice
+        }
+        Assertions.assertThat(outputStream.toString().trim().split("\\R")).containsExactly("50000", "50001");
+    }
+
+    @Test
+    @DisplayName("Test runtime errors in calls")
+    void testCallErrors() {
+        Assertions.assertThat(runWithThreshold("fun f(a) { return a; }\nprint f(1, 2);", 1000))
+                .isEqualTo("Expected 1 arguments but got 2.\n[line 2]\n");
+        Assertions.assertThat(runWithThreshold("var f = 1;\nprint f();", 1000))
+                .isEqualTo("Can only call functions and classes.\n[line 2]\n");
+        Assertions.assertThat(runWithThreshold("fun f(n) {\nreturn -n; }\nprint f(1);\nprint f(\"s\");", 1000))
+                .isEqualTo("-1\nOperand must be a number.\n[line 2]\n");
+        Assertions.assertThat(runWithThreshold("fun f(n) { return f(n + 1); }\nprint f(0);", 1000))
+                .isEqualTo("Stack overflow.\n[line 1]\n");
+
+        // The failed calls left nothing behind
+        Assertions.assertThat(runProgram("fun f(n) { return n * 2; } { var a = 1; print f(a); }")).containsExactly("2");
+    }
+
+    /**
+     * Helper method to run a whole program on a fresh interpreter that compiles loops
+     * after the given number of back edges.
+     *
+     * @return what the program prints and reports
+     */
+    private String runWithThreshold(String source, int threshold) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        Interpreter fresh = new Interpreter();
+        fresh.compileThreshold = threshold;
+        PrintStream originalErr = System.err;
+        System.setErr(new PrintStream(outputStream));
+        try {
+            outputStream.reset();
+            fresh.interpret(statements);
+        } finally {
+            System.setErr(originalErr);
+        }
+        return outputStream.toString();
+    }
+
+    /**
+     * Helper method to resolve and run a whole program.
+     *
+     * @param source the program to run
+     * @return the printed lines
+     */
+    private String[] runProgram(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        outputStream.reset();
+        interpreter.interpret(statements);
+        return outputStream.toString().trim().split("\\R");
+    }
+
     /**
      * Helper method to check if evaluating an expression causes a runtime error.
      * 
@@ -225,32 +610,23 @@ public class InterpreterTest {
      * @return true if a runtime error occurred, false otherwise
      */
     private boolean hasRuntimeError(String source) {
-        // Create a field to track runtime errors
-        try {
-            // Use reflection to access and reset the private static field hadRuntimeError in Lox
-            java.lang.reflect.Field hadRuntimeErrorField = Lox.class.getDeclaredField("hadRuntimeError");
-            hadRuntimeErrorField.setAccessible(true);
-            hadRuntimeErrorField.set(null, false);
-            
-            // Add a semicolon to the source if it doesn't already end with one
-            if (!source.trim().endsWith(";")) {
-                source = source + ";";
-            }
-            
-            // Parse the source into statements
-            Scanner scanner = new Scanner(source);
-            List<Token> tokens = scanner.scanTokens();
-            Parser parser = new Parser(tokens);
-            List<Stmt> statements = parser.parse();
-            
-            // Interpret the statements
-            interpreter.interpret(statements);
-            
-            // Check if a runtime error occurred
-            return (boolean) hadRuntimeErrorField.get(null);
-        } catch (Exception e) {
-            // If we can't access the field, assume no error
-            return false;
+        Lox.session().hadRuntimeError = false;
+
+        // Add a semicolon to the source if it doesn't already end with one
+        if (!source.trim().endsWith(";")) {
+            source = source + ";";
         }
+
+        // Parse the source into statements
+        Scanner scanner = new Scanner(source);
+        List<Token> tokens = scanner.scanTokens();
+        Parser parser = new Parser(tokens);
+        List<Stmt> statements = parser.parse();
+
+        // Interpret the statements
+        interpreter.interpret(statements);
+
+        // Check if a runtime error occurred
+        return Lox.session().hadRuntimeError;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,428 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.assertj.core.api.Assertions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test class for the SSA form and its optimization passes.
+ * Tests what lowering and each pass produce, and that optimized programs behave
+ * exactly as with the tree-walking interpreter.
+ */
+public class IrTest {
+    private final PrintStream originalOut = System.out;
+    private final PrintStream originalErr = System.err;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @BeforeEach
+    void setUp() {
+        Lox.reset();
+        System.setOut(new PrintStream(output));
+        System.setErr(new PrintStream(output));
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        Lox.reset();
+    }
+
+    private static List<Stmt> parse(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        return statements;
+    }
+
+    private static String optimized(String source) {
+        Ir program = Ir.lower(parse(source));
+        IrOptimizer.optimize(program);
+        return program.toString();
+    }
+
+    /**
+     * @return what the programs print and report, run one after the other by the
+     *         same tree-walking interpreter
+     */
+    private String interpret(String... sources) {
+        output.reset();
+        Interpreter interpreter = new Interpreter();
+        for (String source : sources) {
+            interpreter.interpret(parse(source));
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return what the programs print and report, run one after the other from their
+     *         SSA form, sharing their globals
+     */
+    private String execute(boolean optimize, String... sources) {
+        output.reset();
+        IrInterpreter interpreter = new IrInterpreter();
+        for (String source : sources) {
+            Ir program = Ir.lower(parse(source));
+            if (optimize) {
+                IrOptimizer.optimize(program);
+            }
+            interpreter.interpret(program);
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Runs the programs one after the other, so that later ones can observe the globals
+     * the earlier ones left behind.
+     */
+    private void assertSameBehavior(String... sources) {
+        String expected = interpret(sources);
+        Assertions.assertThat(execute(false, sources)).as(String.join("\n", sources)).isEqualTo(expected);
+        Assertions.assertThat(execute(true, sources)).as(String.join("\n", sources)).isEqualTo(expected);
+    }
+
+    @Test
+    @DisplayName("Test locals become values and ternaries join them with phis")
+    void testLowering() {
+        Assertions.assertThat(Ir.lower(parse("{ var a = g; var b = a > 0 ? (a = 2) : a; print a + b; }")).toString())
+                .isEqualTo("""
+                        block0:
+                          v0 = get g
+                          v1 = copy v0 (a)
+                          v2 = 0
+                          v3 = > v1 v2
+                          branch v3 block1 block2
+                        block1:
+                          v4 = 2
+                          v5 = copy v4 (a)
+                          jump block3
+                        block2:
+                          jump block3
+                        block3:
+                          v6 = phi v5 v1
+                          v7 = phi v5 v1
+                          v8 = copy v7 (b)
+                          v9 = + v6 v8
+                          print v9
+                        """);
+    }
+
+    @Test
+    @DisplayName("Test loop headers select each local from before the loop or the end of its body")
+    void testLoops() {
+        // Only the phis of the locals the body assigns are left
+        Assertions.assertThat(optimized("{ var a = 1; var b = 2; var n = g; while (n > 0) { var t = a; a = b; b = t; n = n - 1; } print a; }"))
+                .isEqualTo("""
+                        block0:
+                          v0 = 1
+                          v1 = 2
+                          v2 = get g
+                          jump block1
+                        block1:
+                          v3 = phi v0 v4
+                          v4 = phi v1 v3
+                          v5 = phi v2 v8
+                          v6 = 0
+                          v7 = > v5 v6
+                          branch v7 block2 block3
+                        block2:
+                          v8 = - v5 v0
+                          jump block1
+                        block3:
+                          print v3
+                        """);
+
+        // Nothing is known about a global at the header, as the body may have changed it
+        assertSameBehavior("var c = 0; var x = 0;", "while (c < 3) { print x; x = c; x = \"s\"; c = c + 1; }", "print x;");
+        assertSameBehavior("var c = 0;", "while (c < 3) { c = c + 1; print c; x = c; print -nil; }", "print x;");
+        assertSameBehavior("{ var a = 1; var b = 2; var n = 5; while (n > 0) { var t = a; a = b; b = t; n = n - 1; } print a; print b; }");
+        // Only a runtime error ends this one
+        assertSameBehavior("var n = 0; while (true) { n = n + 1; print n > 3 ? -\"s\" : n; print n; }", "print n;");
+        assertSameBehavior("var n = 0; while (false) { n = n + 1; } print n;");
+    }
+
+    @Test
+    @DisplayName("Test a loop lowered on its own loads and stores the slots of the locals outside it")
+    void testLowerLoop() {
+        List<Stmt> statements = parse("{ var a = 0; var b = g; while (a < 10) a = a + b; }");
+        Ir program = Ir.lowerLoop((Stmt.While) ((Stmt.Block) statements.get(0)).statements.get(2));
+        IrOptimizer.optimize(program);
+        // b is only read, so it is not stored back
+        Assertions.assertThat(program.toString()).isEqualTo("""
+                block0:
+                  v0 = load 0
+                  v1 = load 1
+                  jump block1
+                block1:
+                  v2 = phi v0 v5
+                  v3 = 10
+                  v4 = < v2 v3
+                  branch v4 block2 block3
+                block2:
+                  v5 = + v2 v1
+                  jump block1
+                block3:
+                  store 0 v2
+                """);
+
+        // Blocks that have not been parsed yet are left to the interpreter
+        statements = new Parser(new Scanner("{ var a = 0; while (a < 10) { a = a + 1; } }").scanTokens(),
+                false, true).parse();
+        new Resolver().resolve(statements);
+        Stmt.Block block = (Stmt.Block) statements.get(0);
+        Assertions.assertThat(Ir.lowerLoop((Stmt.While) block.statements.get(1))).isNull();
+    }
+
+    @Test
+    @DisplayName("Test constants propagate through variables, globals and branches")
+    void testConstantPropagation() {
+        Assertions.assertThat(optimized("var a = 2; { var b = a * 3; print b > 5 ? b + 1 : b - 1; print a + \"s\"; }"))
+                .isEqualTo("""
+                        block0:
+                          v0 = 2
+                          define a v0
+                          v1 = 7
+                          print v1
+                          v2 = "s"
+                          v3 = + v0 v2
+                          print v3
+                        """);
+    }
+
+    @Test
+    @DisplayName("Test copies and phis of a single value are replaced by it")
+    void testCopyPropagation() {
+        Assertions.assertThat(optimized("{ var a = g; var b = a; var c = h ? b : a; print c; }"))
+                .isEqualTo("""
+                        block0:
+                          v0 = get g
+                          v1 = get h
+                          branch v1 block1 block2
+                        block1:
+                          jump block3
+                        block2:
+                          jump block3
+                        block3:
+                          print v0
+                        """);
+    }
+
+    @Test
+    @DisplayName("Test operators on the same values are computed once")
+    void testCommonSubexpressions() {
+        Assertions.assertThat(optimized("{ var x = g; print x * x + 1; print x * x + 1; print h ? x * x : -(x * x); }"))
+                .isEqualTo("""
+                        block0:
+                          v0 = get g
+                          v1 = * v0 v0
+                          v2 = 1
+                          v3 = + v1 v2
+                          print v3
+                          print v3
+                          v4 = get h
+                          branch v4 block1 block2
+                        block1:
+                          jump block3
+                        block2:
+                          v5 = - v1
+                          jump block3
+                        block3:
+                          v6 = phi v1 v5
+                          print v6
+                        """);
+    }
+
+    @Test
+    @DisplayName("Test overwritten stores and unused values are dropped")
+    void testDeadStores() {
+        // Reading g may fail, which observes the store before it
+        Assertions.assertThat(optimized("var a = 1; a = 2; a = g; a = 3; var b = 3; var b = 4; { var c = a - 1; var d = b - h; }"))
+                .isEqualTo("""
+                        block0:
+                          v0 = 1
+                          define a v0
+                          v1 = 2
+                          set a v1
+                          v2 = get g
+                          v3 = 3
+                          set a v3
+                          v4 = 4
+                          define b v4
+                          v5 = get h
+                          v6 = - v4 v5
+                        """);
+        // Either store may fail, or be observed by the error of another
+        Assertions.assertThat(optimized("x = 1; x = 2; var y = 1; print -z; y = 2;"))
+                .isEqualTo("""
+                        block0:
+                          v0 = 1
+                          set x v0
+                          v1 = 2
+                          set x v1
+                          define y v0
+                          v2 = get z
+                          v3 = - v2
+                          print v3
+                          set y v1
+                        """);
+    }
+
+    @Test
+    @DisplayName("Test calls may read and assign any global")
+    void testCalls() {
+        // The store before the call is observed by it, and a is read again after it
+        Assertions.assertThat(optimized("var a = 1; fun set(n) { a = n; } a = 2; set(3); print a; { var b = set(a + 1); print b; }"))
+                .isEqualTo("""
+                        block0:
+                          v0 = 1
+                          define a v0
+                          v1 = <fn set>
+                          define set v1
+                          v2 = 2
+                          set a v2
+                          v3 = 3
+                          v4 = call v1 v3
+                          v5 = get a
+                          print v5
+                          v6 = get set
+                          v7 = + v5 v0
+                          v8 = call v6 v7
+                          print v8
+                        """);
+        assertSameBehavior("var a = 1; fun set(n) { a = n; return -n; }", "a = 2; print set(3); print a;\nprint set(nil);\nprint a;");
+        assertSameBehavior("fun f(x) { return x * 2; } { var a = f(1); var b = a; print f(b) + f(a); }\nprint f();");
+    }
+
+    @Test
+    @DisplayName("Test runtime errors happen where they would without optimization")
+    void testRuntimeErrors() {
+        assertSameBehavior("var a = 1; print a;\na = \"s\";\nprint a - 1; print 2;");
+        assertSameBehavior("{ var a = 1; var b = a + nil; }\nprint 1;");
+        assertSameBehavior("var a = 1; a = 2;\nb = 3;\na = 4;", "print a;");
+        assertSameBehavior("var a = 1; a = 2;\nprint -\"s\";\na = 4;", "print a;");
+        assertSameBehavior("var c = false;", "c ? x : 0;\nx = 1;\nx = 2;");
+        assertSameBehavior("var c = false;", "var a = 1; c ? 0 : (a = 2); print a;");
+        assertSameBehavior("print 1;\nprint -undefined;\nprint 2;");
+        assertSameBehavior("var c = true; print c ? 1 : -\"s\";\nprint !c ? 1 : -\"s\";");
+    }
+
+    @Test
+    @DisplayName("Test examples behave as with the interpreter")
+    void testExamples() throws IOException {
+        try (var files = Files.list(Path.of("t"))) {
+            for (Path path : files.filter(file -> file.toString().endsWith(".lox")).sorted().toList()) {
+                assertSameBehavior(Files.readString(path, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test random programs behave as with the interpreter")
+    void testRandomPrograms() {
+        Random random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            // The globals are defined by a program of their own, so that nothing is known about them
+            assertSameBehavior(RANDOM_GLOBALS, randomProgram(random), "print g0;", "print g1;", "print g2;", "print g3;");
+        }
+    }
+
+    // Defines the globals random programs start with
+    static final String RANDOM_GLOBALS = "var g0 = 1; var g1 = 2; var g2 = \"s\";";
+
+    /**
+     * Generates a program of blocks, loops, ternaries and assignments, which may fail at any point.
+     * Every loop runs a few times, counted by a local the rest of the program does not touch.
+     * It uses the globals g0 to g2 defined by {@link #RANDOM_GLOBALS}, and may define g3.
+     */
+    static String randomProgram(Random random) {
+        StringBuilder source = new StringBuilder();
+        randomStatements(random, source, new ArrayList<>(List.of("g0", "g1", "g2")), 3);
+        return source.toString();
+    }
+
+    private static void randomStatements(Random random, StringBuilder source, List<String> variables, int depth) {
+        int count = 1 + random.nextInt(6);
+        int visible = variables.size();
+        for (int i = 0; i < count; i++) {
+            switch (random.nextInt(depth == 0 ? 4 : 6)) {
+                case 0 -> source.append("print ").append(randomExpression(random, variables, 3)).append(";\n");
+                case 1 -> source.append(randomExpression(random, variables, 3)).append(";\n");
+                case 2 -> {
+                    String name = depth == 3 ? "g" + random.nextInt(4) : "l" + variables.size();
+                    source.append("var ").append(name).append(" = ")
+                            .append(randomExpression(random, variables, 2)).append(";\n");
+                    variables.add(name);
+                }
+                case 3 -> source.append(variables.get(random.nextInt(variables.size()))).append(" = ")
+                        .append(randomExpression(random, variables, 2)).append(";\n");
+                case 4 -> {
+                    source.append("{\n");
+                    randomStatements(random, source, variables, depth - 1);
+                    source.append("}\n");
+                }
+                default -> {
+                    String counter = "i" + depth;
+                    source.append("for (var ").append(counter).append(" = 0; ").append(counter).append(" < ")
+                            .append(random.nextInt(4)).append("; ").append(counter).append(" = ").append(counter)
+                            .append(" + 1) {\n");
+                    randomStatements(random, source, variables, depth - 1);
+                    source.append("}\n");
+                }
+            }
+        }
+        // Locals go out of scope with their block
+        variables.subList(visible, variables.size()).clear();
+    }
+
+    private static String randomExpression(Random random, List<String> variables, int depth) {
+        String[] literals = {"0", "1", "2", "-0", "0.5", "\"s\"", "\"t\"", "true", "false", "nil"};
+        String[] operators = {"+", "-", "*", "/", "<", ">=", "==", "!="};
+        return switch (depth == 0 ? random.nextInt(2) : random.nextInt(7)) {
+            case 0 -> literals[random.nextInt(literals.length)];
+            case 1 -> variables.get(random.nextInt(variables.size()));
+            case 2 -> (random.nextBoolean() ? "-" : "!") + randomExpression(random, variables, depth - 1);
+            case 3 -> "(" + randomExpression(random, variables, depth - 1) + " ? "
+                    + randomExpression(random, variables, depth - 1) + " : "
+                    + randomExpression(random, variables, depth - 1) + ")";
+            case 4 -> "(" + variables.get(random.nextInt(variables.size())) + " = "
+                    + randomExpression(random, variables, depth - 1) + ")";
+            default -> "(" + randomExpression(random, variables, depth - 1) + " "
+                    + operators[random.nextInt(operators.length)] + " "
+                    + randomExpression(random, variables, depth - 1) + ")";
+        };
+    }
+
+    @Test
+    @DisplayName("Test lazily parsed blocks are lowered")
+    void testLazyBlocks() {
+        List<Stmt> statements = new Parser(new Scanner("var a = 1; { var b = a + 1; { print b * 2; } }").scanTokens(),
+                false, true).parse();
+        new Resolver().resolve(statements);
+        Ir program = Ir.lower(statements);
+        IrOptimizer.optimize(program);
+        new IrInterpreter().interpret(program);
+        Assertions.assertThat(output.toString()).isEqualTo("4\n");
+    }
+
+    @Test
+    @DisplayName("Test deeply nested programs")
+    void testDeepNesting() {
+        int depth = 100_000;
+        assertSameBehavior("var a = g; print " + "-".repeat(depth) + "a;");
+        assertSameBehavior("var a = 1; print a" + " + a".repeat(depth) + ";");
+        assertSameBehavior("var c = true; print " + "(c ? ".repeat(depth) + "1" + " : 2)".repeat(depth) + ";");
+        assertSameBehavior("{".repeat(depth) + "var a = 1; print a;" + "}".repeat(depth));
+        assertSameBehavior("var c = true; " + "while (c) ".repeat(depth) + "c = false; print c;");
+    }
+}
@@ -0,0 +1,110 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.assertj.core.api.Assertions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class LoxArrayTest {
+
+    @Test
+    @DisplayName("Test arrays of numbers keep them unboxed and grow")
+    void testNumbers() {
+        LoxArray.Numbers array = new LoxArray.Numbers(2);
+        Assertions.assertThat(array.get(1)).isEqualTo(0.0);
+        array.set(0, 2.5);
+        for (int i = 0; i < 20; i++) {
+            array.add((double) i);
+        }
+
+        Assertions.assertThat(array.length).isEqualTo(22);
+        Assertions.assertThat(array.values.length).isGreaterThanOrEqualTo(22);
+        Assertions.assertThat(array.values[0]).isEqualTo(2.5);
+        Assertions.assertThat(array.get(21)).isEqualTo(19.0);
+        Assertions.assertThat(new LoxArray.Numbers(0)).hasToString("[]");
+        Assertions.assertThat(new LoxArray.Numbers(2)).hasToString("[0, 0]");
+    }
+
+    @Test
+    @DisplayName("Test arrays of values hold anything")
+    void testValues() {
+        LoxArray.Values array = new LoxArray.Values(1);
+        array.add("a");
+        array.add(true);
+        array.set(0, 1.5);
+
+        Assertions.assertThat(array).hasToString("[1.5, a, true]");
+        Assertions.assertThat(array.get(1)).isEqualTo("a");
+    }
+
+    @Test
+    @DisplayName("Test printing an array that contains itself")
+    void testCycles() {
+        LoxArray.Values outer = new LoxArray.Values(0);
+        LoxArray.Values inner = new LoxArray.Values(0);
+        outer.add(inner);
+        outer.add(inner);
+        inner.add(outer);
+
+        // An array shared without a cycle is printed in full each time
+        Assertions.assertThat(outer).hasToString("[[[...]], [[...]]]");
+        Assertions.assertThat(run("var a = array(0); push(a, 1); push(a, a); print a; print str(a);"))
+                .isEqualTo("[1, [...]]\n[1, [...]]\n");
+    }
+
+    @Test
+    @DisplayName("Test indexes and values are checked")
+    void testErrors() {
+        LoxArray.Numbers numbers = new LoxArray.Numbers(3);
+        numbers.values = new double[100];
+        // Capacity beyond the length is not addressable
+        Assertions.assertThatThrownBy(() -> numbers.get(3))
+                .isInstanceOf(LoxNative.Failure.class)
+                .hasMessage("Index 3 is out of bounds for length 3.");
+        Assertions.assertThatThrownBy(() -> new LoxArray.Values(0).set(-1, null))
+                .hasMessage("Index -1 is out of bounds for length 0.");
+        Assertions.assertThatThrownBy(() -> numbers.add("1"))
+                .hasMessage("Can only store numbers in an array of numbers.");
+        Assertions.assertThatThrownBy(() -> new LoxArray.Values(-1))
+                .hasMessage("Array size must not be negative.");
+    }
+
+    @Test
+    @DisplayName("Test array errors are runtime errors at the call")
+    void testRuntimeErrors() {
+        Assertions.assertThat(run("var a = numbers(2);\nprint get(a, 2);"))
+                .isEqualTo("Index 2 is out of bounds for length 2.\n[line 2]\n");
+        Assertions.assertThat(run("var a = numbers(2);\n\nset(a, 0, nil);"))
+                .isEqualTo("Can only store numbers in an array of numbers.\n[line 3]\n");
+        Assertions.assertThat(run("print get(1, 0);"))
+                .isEqualTo("Can only index arrays and maps.\n[line 1]\n");
+        Assertions.assertThat(run("print get(numbers(1), 0.5);"))
+                .isEqualTo("Array index must be an integer.\n[line 1]\n");
+        Assertions.assertThat(run("print len(1);"))
+                .isEqualTo("Argument to len must be a string, an array or a map.\n[line 1]\n");
+    }
+
+    /**
+     * @return what the program prints and reports
+     */
+    private static String run(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+        System.setOut(new PrintStream(output));
+        System.setErr(new PrintStream(output));
+        try {
+            new Interpreter().interpret(statements);
+        } finally {
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,163 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.assertj.core.api.Assertions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Test class for the LoxDaemon and LoxClient.
+ * A daemon is started on a temporary socket and scripts are run through the client.
+ */
+public class LoxDaemonTest {
+    @TempDir
+    Path directory;
+
+    private Path socket;
+    private LoxDaemon daemon;
+    private Thread thread;
+
+    private final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        socket = directory.resolve("jlox.sock");
+        daemon = new LoxDaemon(socket, 500);
+        thread = new Thread(() -> {
+            try {
+                daemon.run();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        daemon.close();
+        thread.join();
+        Lox.reset();
+    }
+
+    private int run(String input, String... args) throws IOException {
+        stdout.reset();
+        stderr.reset();
+        return LoxClient.run(socket, args, directory.toString(),
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), stdout, stderr);
+    }
+
+    @Test
+    @DisplayName("Test running a script file")
+    void testScript() throws IOException {
+        Path example = Path.of("t", "001-print.lox").toAbsolutePath();
+        int status = run("", example.toString());
+
+        Assertions.assertThat(status).isEqualTo(0);
+        Assertions.assertThat(stdout.toString(StandardCharsets.UTF_8))
+                .isEqualTo(Files.readString(Path.of(example + ".out")));
+        Assertions.assertThat(stderr.toString(StandardCharsets.UTF_8)).isEmpty();
+
+        // Relative paths are resolved against the client's directory
+        Files.writeString(directory.resolve("script.lox"), "print 1 + 2;");
+        Assertions.assertThat(run("", "--lazy-blocks", "script.lox")).isEqualTo(0);
+        Assertions.assertThat(stdout.toString(StandardCharsets.UTF_8)).isEqualTo("3\n");
+    }
+
+    @Test
+    @DisplayName("Test scripts open relative files in the client's directory")
+    void testRelativeOpen() throws IOException {
+        Files.writeString(directory.resolve("data.txt"), "first\nsecond\n");
+        String program = "var f = open(\"data.txt\"); print readLine(f); print readLine(f); close(f);";
+
+        Assertions.assertThat(run(program)).isEqualTo(0);
+        Assertions.assertThat(stdout.toString(StandardCharsets.UTF_8)).isEqualTo("first\nsecond\n");
+        Assertions.assertThat(stderr.toString(StandardCharsets.UTF_8)).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test exit statuses and error output")
+    void testErrors() throws IOException {
+        Assertions.assertThat(run("print 1;\nprint ;")).isEqualTo(65);
+        Assertions.assertThat(stdout.toString(StandardCharsets.UTF_8)).isEmpty();
+        Assertions.assertThat(stderr.toString(StandardCharsets.UTF_8)).startsWith("[line 2] Error");
+
+        Assertions.assertThat(run("print 1;\nprint -\"a\";")).isEqualTo(70);
+        Assertions.assertThat(stdout.toString(StandardCharsets.UTF_8)).isEqualTo("1\n");
+        Assertions.assertThat(stderr.toString(StandardCharsets.UTF_8)).isEqualTo("Operand must be a number.\n[line 2]\n");
+
+        Assertions.assertThat(run("", "missing.lox")).isEqualTo(66);
+        Assertions.assertThat(run("", "--unknown")).isEqualTo(64);
+        Assertions.assertThat(stdout.toString(StandardCharsets.UTF_8)).startsWith("Usage: jlox");
+    }
+
+    @Test
+    @DisplayName("Test requests do not see each other's state")
+    void testIsolation() throws IOException {
+        Assertions.assertThat(run("var a = 1; print a;")).isEqualTo(0);
+        Assertions.assertThat(run("print a;")).isEqualTo(70);
+        Assertions.assertThat(stderr.toString(StandardCharsets.UTF_8)).startsWith("Undefined variable 'a'.");
+
+        // A syntax error does not stick to the next request
+        Assertions.assertThat(run("print ;")).isEqualTo(65);
+        Assertions.assertThat(run("print 2;")).isEqualTo(0);
+        Assertions.assertThat(stdout.toString(StandardCharsets.UTF_8)).isEqualTo("2\n");
+    }
+
+    @Test
+    @DisplayName("Test requests run side by side with output of their own")
+    void testConcurrentRequests() throws Exception {
+        String loop = "var i = 0; while (i < 20000) { print \"%s\"; i = i + 1; }";
+        ByteArrayOutputStream otherStdout = new ByteArrayOutputStream();
+        Thread other = new Thread(() -> {
+            try {
+                LoxClient.run(socket, new String[0], directory.toString(),
+                        new ByteArrayInputStream(loop.formatted("a").getBytes(StandardCharsets.UTF_8)),
+                        otherStdout, new ByteArrayOutputStream());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        other.start();
+        Assertions.assertThat(run(loop.formatted("b"))).isEqualTo(0);
+        other.join();
+
+        Assertions.assertThat(stdout.toString(StandardCharsets.UTF_8)).isEqualTo("b\n".repeat(20000));
+        Assertions.assertThat(otherStdout.toString(StandardCharsets.UTF_8)).isEqualTo("a\n".repeat(20000));
+    }
+
+    @Test
+    @DisplayName("Test a client that sends nothing does not hold up others and is hung up on")
+    void testSilentClient() throws IOException {
+        try (SocketChannel silent = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            silent.connect(UnixDomainSocketAddress.of(socket));
+
+            Assertions.assertThat(run("print 1;")).isEqualTo(0);
+            Assertions.assertThat(stdout.toString(StandardCharsets.UTF_8)).isEqualTo("1\n");
+            // Once the read timeout has passed
+            Assertions.assertThat(silent.read(ByteBuffer.allocate(1))).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    @DisplayName("Test a second daemon cannot take over a live socket")
+    void testSocketInUse() {
+        Assertions.assertThatThrownBy(() -> new LoxDaemon(socket))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("already listening");
+    }
+}
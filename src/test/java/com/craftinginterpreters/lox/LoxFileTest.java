@@ -0,0 +1,95 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.io.TempDir;
+import org.assertj.core.api.Assertions;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LoxFileTest {
+    @TempDir
+    Path directory;
+
+    private String write(String text) throws IOException {
+        Path file = directory.resolve("input.txt");
+        Files.writeString(file, text, StandardCharsets.UTF_8);
+        return file.toString();
+    }
+
+    private static List<String> lines(LoxFile file) {
+        List<String> lines = new ArrayList<>();
+        for (CharSequence line = file.readLine(); line != null; line = file.readLine()) {
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    @Test
+    @DisplayName("Test reading lines as BufferedReader would")
+    void testLines() throws IOException {
+        LoxFile file = new LoxFile(write("one\r\n\ntwo\nthree"), LoxFile.WINDOW_SIZE);
+        Assertions.assertThat(lines(file)).containsExactly("one", "", "two", "three");
+        Assertions.assertThat(file.readLine()).isNull();
+
+        Assertions.assertThat(lines(new LoxFile(write("last\n"), 64))).containsExactly("last");
+        Assertions.assertThat(lines(new LoxFile(write(""), 64))).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test ASCII lines are decoded only when used")
+    void testLazyLines() throws IOException {
+        LoxFile file = new LoxFile(write("plain\ncafé\n"), LoxFile.WINDOW_SIZE);
+
+        CharSequence plain = file.readLine();
+        Assertions.assertThat(plain).isInstanceOf(Rope.class);
+        Assertions.assertThat(plain.length()).isEqualTo(5);
+        Assertions.assertThat(Interpreter.isEqual(plain, "plain")).isTrue();
+        // Other lines are decoded as UTF-8 straight away
+        CharSequence accented = file.readLine();
+        Assertions.assertThat(accented).isEqualTo("café");
+    }
+
+    @Test
+    @DisplayName("Test lines that cross the end of a window")
+    void testWindows() throws IOException {
+        StringBuilder text = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String line = "line " + i + "-".repeat(i % 13);
+            text.append(line).append('\n');
+            expected.add(line);
+        }
+        // Every line is at most 21 bytes with its line feed, so each fits in a window
+        Assertions.assertThat(lines(new LoxFile(write(text.toString()), 21))).isEqualTo(expected);
+
+        LoxFile file = new LoxFile(write("short\nmuch too long\n"), 8);
+        Assertions.assertThat(file.readLine()).hasToString("short");
+        Assertions.assertThatThrownBy(file::readLine)
+                .isInstanceOf(LoxNative.Failure.class)
+                .hasMessage("Line is longer than 8 bytes.");
+    }
+
+    @Test
+    @DisplayName("Test reading fixed-size records")
+    void testRecords() throws IOException {
+        LoxFile file = new LoxFile(write("aaabbbcccd"), 4);
+        List<String> records = new ArrayList<>();
+        for (CharSequence record = file.readRecord(3); record != null; record = file.readRecord(3)) {
+            records.add(record.toString());
+        }
+        Assertions.assertThat(records).containsExactly("aaa", "bbb", "ccc", "d");
+
+        Assertions.assertThatThrownBy(() -> file.readRecord(5))
+                .hasMessage("Record size must be between 1 and 4.");
+        file.close();
+        Assertions.assertThatThrownBy(file::readLine)
+                .isInstanceOf(LoxNative.Failure.class)
+                .hasMessageEndingWith("input.txt is closed.");
+    }
+}
@@ -0,0 +1,101 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.assertj.core.api.Assertions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class LoxMapTest {
+
+    @Test
+    @DisplayName("Test keys are equal as Interpreter.isEqual compares them")
+    void testKeyEquality() {
+        LoxMap map = new LoxMap();
+        map.put(1, "int");
+        map.put(1.0, "double");
+        map.put("ab", "string");
+        map.put(Rope.concat("a".repeat(40), "b".repeat(40)), "rope");
+        map.put(null, "nil");
+        map.put(true, "true");
+        map.put(Double.NaN, "nan");
+        map.put(-0.0, "negative zero");
+
+        Assertions.assertThat(map.size()).isEqualTo(7);
+        Assertions.assertThat(map.get(1.0)).isEqualTo("double");
+        Assertions.assertThat(map.get(Rope.concat("a", "b"))).isEqualTo("string");
+        Assertions.assertThat(map.get("a".repeat(40) + "b".repeat(40))).isEqualTo("rope");
+        Assertions.assertThat(map.get((Object) null)).isEqualTo("nil");
+        Assertions.assertThat(map.get(Boolean.TRUE)).isEqualTo("true");
+        // NaN is a key like any other, as Double.equals treats it, and -0 is not 0
+        Assertions.assertThat(map.get(0.0 / 0.0)).isEqualTo("nan");
+        Assertions.assertThat(map.get(0.0)).isNull();
+        Assertions.assertThat(map.get(-0.0)).isEqualTo("negative zero");
+        Assertions.assertThat(map.containsKey("1")).isFalse();
+    }
+
+    @Test
+    @DisplayName("Test the table against a reference map")
+    void testAgainstReference() {
+        Random random = new Random(49);
+        LoxMap map = new LoxMap();
+        Map<Object, Object> reference = new HashMap<>();
+        for (int step = 0; step < 20_000; step++) {
+            // Few enough keys that they collide, are removed and come back often
+            int n = random.nextInt(300);
+            Object key = switch (n % 3) {
+                case 0 -> n;
+                case 1 -> "k" + n;
+                default -> n + 0.5;
+            };
+            if (random.nextInt(3) == 0) {
+                Assertions.assertThat(map.remove(key)).isEqualTo(reference.remove(key) != null);
+            } else {
+                map.put(key, step);
+                reference.put(key, step);
+            }
+            Assertions.assertThat(map.size()).isEqualTo(reference.size());
+        }
+
+        for (int n = 0; n < 300; n++) {
+            for (Object key : List.of(n, "k" + n, n + 0.5)) {
+                Assertions.assertThat(map.get(key)).as("%s", key).isEqualTo(reference.get(key));
+            }
+        }
+        List<Object> keys = new ArrayList<>();
+        LoxArray array = map.keys();
+        for (int i = 0; i < array.length; i++) {
+            keys.add(array.get(i));
+        }
+        Assertions.assertThat(keys).containsExactlyInAnyOrderElementsOf(reference.keySet());
+    }
+
+    @Test
+    @DisplayName("Test printing a map")
+    void testToString() {
+        LoxMap map = new LoxMap();
+        Assertions.assertThat(map).hasToString("{}");
+        map.put("a", 1.5);
+        Assertions.assertThat(map).hasToString("{a: 1.5}");
+    }
+
+    @Test
+    @DisplayName("Test printing a map that contains itself")
+    void testCycles() {
+        LoxMap map = new LoxMap();
+        map.put(1.0, map);
+        Assertions.assertThat(map).hasToString("{1: {...}}");
+
+        // Through an array, and through the array of its keys
+        LoxArray.Values array = new LoxArray.Values(0);
+        array.add(map);
+        map.put(array, 2);
+        map.remove(1.0);
+        Assertions.assertThat(map).hasToString("{[{...}]: 2}");
+        Assertions.assertThat(map.keys()).hasToString("[[{[...]: 2}]]");
+    }
+}
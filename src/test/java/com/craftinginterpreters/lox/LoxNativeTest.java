@@ -0,0 +1,173 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.assertj.core.api.Assertions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class LoxNativeTest {
+
+    /**
+     * Host methods, as an embedding program would declare them.
+     */
+    static final class Host {
+        static int calls = 0;
+
+        public static double hypot(double a, double b) {
+            return Math.hypot(a, b);
+        }
+
+        public static long twice(int n) {
+            return 2L * n;
+        }
+
+        public static boolean shout(String text, boolean loud) {
+            return loud && !text.isEmpty();
+        }
+
+        public static void tick() {
+            calls++;
+        }
+
+        public static Object first(Object a, Object b) {
+            return a;
+        }
+
+        public static int fail() {
+            throw new IllegalStateException("broken");
+        }
+
+        // Neither of these is bound
+        static int hidden() {
+            return 0;
+        }
+
+        public int instance() {
+            return 0;
+        }
+    }
+
+    static final class Overloaded {
+        public static int f(int a) {
+            return a;
+        }
+
+        public static int f(int a, int b) {
+            return a + b;
+        }
+    }
+
+    static final class Unsupported {
+        public static float f() {
+            return 0;
+        }
+    }
+
+    private static LoxNative bind(String name, Class<?> type, Class<?>... parameters) throws ReflectiveOperationException {
+        MethodHandle handle = MethodHandles.lookup().findStatic(Host.class, name, MethodType.methodType(type, parameters));
+        return LoxNative.of(name, handle);
+    }
+
+    @Test
+    @DisplayName("Test converting arguments and results")
+    void testConversions() throws ReflectiveOperationException {
+        LoxNative hypot = bind("hypot", double.class, double.class, double.class);
+        Assertions.assertThat(hypot.arity()).isEqualTo(2);
+        Assertions.assertThat(hypot.call(new Object[] {3.0, 4.0}, 1)).isEqualTo(5.0);
+        Assertions.assertThat(hypot.call(new Object[] {1.0, 1.0}, 1)).isEqualTo(Math.sqrt(2));
+
+        LoxNative twice = bind("twice", long.class, int.class);
+        // Whole-number results are widened to doubles
+        Assertions.assertThat(twice.call(new Object[] {21.0}, 1)).isEqualTo(42.0);
+        Assertions.assertThat(twice.call(new Object[] {(double) Integer.MAX_VALUE}, 1)).isEqualTo(2.0 * Integer.MAX_VALUE);
+
+        LoxNative shout = bind("shout", boolean.class, String.class, boolean.class);
+        Assertions.assertThat(shout.call(new Object[] {Rope.concat("a", "b"), true}, 1)).isEqualTo(true);
+
+        LoxNative tick = bind("tick", void.class);
+        Host.calls = 0;
+        Assertions.assertThat(tick.call(new Object[0], 1)).isNull();
+        Assertions.assertThat(Host.calls).isEqualTo(1);
+
+        LoxNative first = bind("first", Object.class, Object.class, Object.class);
+        Assertions.assertThat(first.call(new Object[] {null, 1.0}, 1)).isNull();
+        Assertions.assertThat(first).hasToString("<native fn first>");
+    }
+
+    @Test
+    @DisplayName("Test calls that do not fit the method are runtime errors")
+    void testErrors() throws ReflectiveOperationException {
+        LoxNative twice = bind("twice", long.class, int.class);
+        Assertions.assertThatThrownBy(() -> twice.call(new Object[] {1.5}, 3))
+                .isInstanceOf(RuntimeError.class)
+                .hasMessage("Argument to twice must be an integer.")
+                .extracting("line").isEqualTo(3);
+        Assertions.assertThatThrownBy(() -> twice.call(new Object[] {"1"}, 3))
+                .hasMessage("Argument to twice must be an integer.");
+        Assertions.assertThatThrownBy(() -> twice.call(new Object[0], 3))
+                .isInstanceOf(RuntimeError.class)
+                .hasMessage("Expected 1 arguments but got 0.");
+
+        LoxNative shout = bind("shout", boolean.class, String.class, boolean.class);
+        Assertions.assertThatThrownBy(() -> shout.call(new Object[] {"a", nil()}, 1))
+                .hasMessage("Argument to shout must be a boolean.");
+
+        LoxNative fail = bind("fail", int.class);
+        Assertions.assertThatThrownBy(() -> fail.call(new Object[0], 2))
+                .isInstanceOf(RuntimeError.class)
+                .hasMessage("Native function fail failed: java.lang.IllegalStateException: broken");
+    }
+
+    private static Object nil() {
+        return null;
+    }
+
+    @Test
+    @DisplayName("Test binding the public static methods of a class")
+    void testBindAll() {
+        List<LoxNative> functions = LoxNative.bindAll(MethodHandles.lookup(), Host.class);
+        Assertions.assertThat(functions).extracting(function -> function.name)
+                .containsExactlyInAnyOrder("hypot", "twice", "shout", "tick", "first", "fail");
+
+        Assertions.assertThatThrownBy(() -> LoxNative.bindAll(MethodHandles.lookup(), Overloaded.class))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Native function f is overloaded");
+        Assertions.assertThatThrownBy(() -> LoxNative.bindAll(MethodHandles.lookup(), Unsupported.class))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Native function f returns a float");
+    }
+
+    @Test
+    @DisplayName("Test calling natives defined by the host from Lox")
+    void testInterpreter() {
+        List<Stmt> statements = new Parser(new Scanner("""
+            print hypot(3, 4);
+            { var n = 5; print twice(n); print first(n, nil); }
+            print twice("x");
+            """).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        Interpreter interpreter = new Interpreter();
+        interpreter.defineNatives(MethodHandles.lookup(), Host.class);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+        System.setOut(new PrintStream(output));
+        System.setErr(new PrintStream(output));
+        try {
+            interpreter.interpret(statements);
+        } finally {
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+        }
+        Assertions.assertThat(output.toString(StandardCharsets.UTF_8))
+                .isEqualTo("5\n10\n5\nArgument to twice must be an integer.\n[line 3]\n");
+    }
+}
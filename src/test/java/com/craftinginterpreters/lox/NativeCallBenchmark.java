@@ -0,0 +1,60 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls a two-argument static method with the boxed values Lox passes: directly, as a
+ * {@link LoxNative}, and through reflection, which is what it replaces.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec@bench}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NativeCallBenchmark {
+    public static double hypot(double a, double b) {
+        return Math.sqrt(a * a + b * b);
+    }
+
+    private Object[] arguments;
+    private LoxNative bound;
+    private Method method;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        arguments = new Object[] {3.0, 4.5};
+        method = NativeCallBenchmark.class.getMethod("hypot", double.class, double.class);
+        bound = LoxNative.of("hypot", MethodHandles.lookup().unreflect(method));
+    }
+
+    @Benchmark
+    public Object direct() {
+        return hypot((double) arguments[0], (double) arguments[1]);
+    }
+
+    @Benchmark
+    public Object methodHandle() {
+        return bound.call(arguments, 1);
+    }
+
+    @Benchmark
+    public Object reflection() throws ReflectiveOperationException {
+        return method.invoke(null, arguments);
+    }
+}
@@ -0,0 +1,71 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.assertj.core.api.Assertions;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link NumberFormatter} produces exactly what the interpreter used to print:
+ * {@link Double#toString(double)} with a trailing ".0" removed.
+ */
+public class NumberFormatterTest {
+
+    /**
+     * The original formatting code of {@code Interpreter.stringify}.
+     */
+    private static String expected(double value) {
+        String text = Double.toString(value);
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        return text;
+    }
+
+    @Test
+    @DisplayName("Test formatting integral numbers")
+    void testIntegralNumbers() {
+        Assertions.assertThat(NumberFormatter.toString(0.0)).isEqualTo("0");
+        Assertions.assertThat(NumberFormatter.toString(-0.0)).isEqualTo("-0");
+        Assertions.assertThat(NumberFormatter.toString(7.0)).isEqualTo("7");
+        Assertions.assertThat(NumberFormatter.toString(-42.0)).isEqualTo("-42");
+        Assertions.assertThat(NumberFormatter.toString(9999999.0)).isEqualTo("9999999");
+        Assertions.assertThat(NumberFormatter.toString(1e7)).isEqualTo("1.0E7");
+    }
+
+    @Test
+    @DisplayName("Test formatting special and fractional numbers")
+    void testSpecialNumbers() {
+        double[] values = {
+            0.5, -0.25, 0.1, 1.0 / 3, 0.001, 0.0001, 1e-300, 123456.789, 1e21, 1e23,
+            Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+        };
+        for (double value : values) {
+            Assertions.assertThat(NumberFormatter.toString(value)).isEqualTo(expected(value));
+        }
+    }
+
+    @Test
+    @DisplayName("Test formatting into a buffer at an offset")
+    void testFormatAtOffset() {
+        byte[] buffer = new byte[4 + NumberFormatter.MAX_LENGTH];
+        int end = NumberFormatter.format(-1234.0, buffer, 4);
+        Assertions.assertThat(new String(buffer, 4, end - 4)).isEqualTo("-1234");
+    }
+
+    @Test
+    @DisplayName("Test formatting matches the original output on random numbers")
+    void testRandomNumbers() {
+        Random random = new Random(26);
+        for (int i = 0; i < 10_000; i++) {
+            double integral = (double) (random.nextInt(40_000_000) - 20_000_000);
+            double fractional = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+            double bits = Double.longBitsToDouble(random.nextLong());
+            for (double value : new double[] {integral, fractional, bits}) {
+                Assertions.assertThat(NumberFormatter.toString(value)).isEqualTo(expected(value));
+            }
+        }
+    }
+}
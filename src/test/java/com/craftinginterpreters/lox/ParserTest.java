@@ -208,4 +208,255 @@ public class ParserTest {
         // Assert the expected output
         Assertions.assertThat(result).isEqualTo(expected);
     }
+
+    @Test
+    @DisplayName("Test operator precedence and associativity")
+    public void testPrecedenceAndAssociativity() {
+        String[][] cases = {
+            {"1 - 2 - 3 * -4 / 5;", "(- (- 1.0 2.0) (/ (* 3.0 (- 4.0)) 5.0))"},
+            {"a == b < c + d;", "(== a (< b (+ c d)))"},
+            {"!a != !!b;", "(!= (! a) (! (! b)))"},
+            {"a = b = c, d;", "(, a = b = c d)"},
+            {"a = b ? c : d ? e : f;", "a = (?: b c (?: d e f))"},
+        };
+
+        for (String[] testCase : cases) {
+            List<Token> tokens = new Scanner(testCase[0]).scanTokens();
+            Expr expr = getExpressionFromStatements(new Parser(tokens).parse());
+            Assertions.assertThat(new AstPrinter().print(expr)).isEqualTo(testCase[1]);
+        }
+    }
+
+    @Test
+    @DisplayName("Test hash-consing of identical pure subtrees")
+    public void testSharedSubtrees() {
+        List<Token> tokens = new Scanner("print (a + 1) * (a + 1);\nprint 1;").scanTokens();
+        List<Stmt> statements = new Parser(tokens, true).parse();
+
+        Expr.Binary product = (Expr.Binary) ((Stmt.Print) statements.get(0)).expression;
+        Assertions.assertThat(product.left).isSameAs(product.right);
+
+        // Literals are pooled across lines
+        Expr.Binary sum = (Expr.Binary) ((Expr.Grouping) product.left).expression;
+        Assertions.assertThat(((Stmt.Print) statements.get(1)).expression).isSameAs(sum.right);
+
+        // Without sharing every occurrence is its own node
+        statements = new Parser(new Scanner("print (a + 1) * (a + 1);").scanTokens()).parse();
+        product = (Expr.Binary) ((Stmt.Print) statements.get(0)).expression;
+        Assertions.assertThat(product.left).isNotSameAs(product.right);
+    }
+
+    @Test
+    @DisplayName("Test variable reads are not shared across declarations and blocks")
+    public void testSharedReadsRespectScopes() {
+        List<Token> tokens = new Scanner("print a; var a = 1; print a; { var a = 2; print a; } print a;").scanTokens();
+        List<Stmt> statements = new Parser(tokens, true).parse();
+
+        Expr first = ((Stmt.Print) statements.get(0)).expression;
+        Expr second = ((Stmt.Print) statements.get(2)).expression;
+        Expr inner = ((Stmt.Print) ((Stmt.Block) statements.get(3)).statements.get(1)).expression;
+        Expr last = ((Stmt.Print) statements.get(4)).expression;
+
+        Assertions.assertThat(first).isNotSameAs(second);
+        Assertions.assertThat(inner).isNotSameAs(second);
+        Assertions.assertThat(last).isNotSameAs(inner);
+    }
+
+    @Test
+    @DisplayName("Test parsing nesting far deeper than the Java stack allows")
+    public void testDeepNesting() {
+        int depth = 100_000;
+
+        List<Token> tokens = new Scanner("(".repeat(depth) + "1" + ")".repeat(depth) + ";").scanTokens();
+        Expr expr = getExpressionFromStatements(new Parser(tokens).parse());
+        for (int i = 0; i < depth; i++) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        Assertions.assertThat(((Expr.Literal) expr).value).isEqualTo(1.0);
+
+        tokens = new Scanner("a = ".repeat(depth) + "-".repeat(depth) + "1;").scanTokens();
+        expr = getExpressionFromStatements(new Parser(tokens).parse());
+        for (int i = 0; i < depth; i++) {
+            expr = ((Expr.Assign) expr).value;
+        }
+        for (int i = 0; i < depth; i++) {
+            expr = ((Expr.Unary) expr).right;
+        }
+        Assertions.assertThat(expr).isInstanceOf(Expr.Literal.class);
+
+        tokens = new Scanner("{".repeat(depth) + "print 1;" + "}".repeat(depth)).scanTokens();
+        Stmt stmt = new Parser(tokens).parse().get(0);
+        for (int i = 0; i < depth; i++) {
+            stmt = ((Stmt.Block) stmt).statements.get(0);
+        }
+        Assertions.assertThat(stmt).isInstanceOf(Stmt.Print.class);
+    }
+
+    @Test
+    @DisplayName("Test for loops are desugared to while loops")
+    public void testLoops() {
+        List<Stmt> statements = new Parser(new Scanner(
+                "while (a) print 1; for (var i = 0; i < 3; i = i + 1) print i; for (;;) { }").scanTokens()).parse();
+
+        Stmt.While loop = (Stmt.While) statements.get(0);
+        Assertions.assertThat(new AstPrinter().print(loop.condition)).isEqualTo("a");
+        Assertions.assertThat(loop.body).isInstanceOf(Stmt.Print.class);
+
+        // The initializer and the loop share a block, and the increment follows the body
+        Stmt.Block block = (Stmt.Block) statements.get(1);
+        Assertions.assertThat(block.statements.get(0)).isInstanceOf(Stmt.Var.class);
+        loop = (Stmt.While) block.statements.get(1);
+        Assertions.assertThat(new AstPrinter().print(loop.condition)).isEqualTo("(< i 3.0)");
+        Stmt.Block body = (Stmt.Block) loop.body;
+        Assertions.assertThat(body.statements.get(0)).isInstanceOf(Stmt.Print.class);
+        Assertions.assertThat(new AstPrinter().print(((Stmt.Expression) body.statements.get(1)).expression))
+                .isEqualTo("i = (+ i 1.0)");
+
+        // Without clauses the loop runs forever
+        loop = (Stmt.While) statements.get(2);
+        Assertions.assertThat(((Expr.Literal) loop.condition).value).isEqualTo(true);
+        Assertions.assertThat(((Stmt.Block) loop.body).statements).isEmpty();
+
+        int depth = 100_000;
+        Stmt stmt = new Parser(new Scanner("while (true) ".repeat(depth) + "print 1;").scanTokens()).parse().get(0);
+        for (int i = 0; i < depth; i++) {
+            stmt = ((Stmt.While) stmt).body;
+        }
+        Assertions.assertThat(stmt).isInstanceOf(Stmt.Print.class);
+    }
+
+    @Test
+    @DisplayName("Test syntax errors in loops")
+    public void testLoopErrors() {
+        java.io.PrintStream originalErr = System.err;
+        java.io.ByteArrayOutputStream errors = new java.io.ByteArrayOutputStream();
+        System.setErr(new java.io.PrintStream(errors));
+        try {
+            new Parser(new Scanner("while true print 1;").scanTokens()).parse();
+            Assertions.assertThat(errors.toString()).contains("Expect '(' after 'while'.");
+            errors.reset();
+            new Parser(new Scanner("while (true) var a = 1;").scanTokens()).parse();
+            Assertions.assertThat(errors.toString()).contains("Expect a statement as loop body.");
+            errors.reset();
+            new Parser(new Scanner("for (var i = 0; i < 1) print i;").scanTokens()).parse();
+            Assertions.assertThat(errors.toString()).contains("Expect ';' after loop condition.");
+        } finally {
+            System.setErr(originalErr);
+        }
+    }
+
+    @Test
+    @DisplayName("Test parsing function declarations, returns and calls")
+    public void testFunctions() {
+        List<Stmt> statements = new Parser(new Scanner(
+                "fun add(a, b) { return a + b; } fun none() { return; } print add(1, 2)(3)(); print -f(x, y = 1, (2, 3));")
+                .scanTokens()).parse();
+
+        Stmt.Function add = (Stmt.Function) statements.get(0);
+        Assertions.assertThat(add.name).isEqualTo("add");
+        Assertions.assertThat(add.params).containsExactly("a", "b");
+        Stmt.Return value = (Stmt.Return) add.body.statements.get(0);
+        Assertions.assertThat(new AstPrinter().print(value.value)).isEqualTo("(+ a b)");
+        Stmt.Function none = (Stmt.Function) statements.get(1);
+        Assertions.assertThat(((Stmt.Return) none.body.statements.get(0)).value).isNull();
+
+        // Calls bind tighter than unary operators, and commas separate the arguments
+        Assertions.assertThat(new AstPrinter().print(((Stmt.Print) statements.get(2)).expression))
+                .isEqualTo("(call (call (call add 1.0 2.0) 3.0))");
+        Assertions.assertThat(new AstPrinter().print(((Stmt.Print) statements.get(3)).expression))
+                .isEqualTo("(- (call f x y = 1.0 (group (, 2.0 3.0))))");
+
+        // The iterative parser reads calls deeper than the Java stack allows
+        int depth = 100_000;
+        Expr expr = getExpressionFromStatements(new Parser(new Scanner(
+                "-".repeat(depth) + "f(1, g(2))(3);").scanTokens()).parse());
+        for (int i = 0; i < depth; i++) {
+            expr = ((Expr.Unary) expr).right;
+        }
+        Assertions.assertThat(new AstPrinter().print(expr)).isEqualTo("(call (call f 1.0 (call g 2.0)) 3.0)");
+    }
+
+    @Test
+    @DisplayName("Test syntax errors in functions")
+    public void testFunctionErrors() {
+        java.io.PrintStream originalErr = System.err;
+        java.io.ByteArrayOutputStream errors = new java.io.ByteArrayOutputStream();
+        System.setErr(new java.io.PrintStream(errors));
+        try {
+            new Parser(new Scanner("return 1;").scanTokens()).parse();
+            Assertions.assertThat(errors.toString()).contains("Can't return from top-level code.");
+            errors.reset();
+            new Parser(new Scanner("fun f() print 1;").scanTokens()).parse();
+            Assertions.assertThat(errors.toString()).contains("Expect '{' before function body.");
+            errors.reset();
+            new Parser(new Scanner("while (true) fun f() {}").scanTokens()).parse();
+            Assertions.assertThat(errors.toString()).contains("Expect a statement as loop body.");
+            errors.reset();
+            new Parser(new Scanner("f(1, 2;").scanTokens()).parse();
+            Assertions.assertThat(errors.toString()).contains("Expect ')' after arguments.");
+            errors.reset();
+            new Parser(new Scanner("f(" + "1, ".repeat(255) + "1);").scanTokens()).parse();
+            Assertions.assertThat(errors.toString()).contains("Can't have more than 255 arguments.");
+
+            // A lazily parsed block in a function body may return
+            errors.reset();
+            List<Stmt> statements = new Parser(new Scanner("fun f() { { return 1; } }").scanTokens(), false, true).parse();
+            Stmt.Block body = ((Stmt.Function) statements.get(0)).body;
+            Assertions.assertThat(body.statements.get(0)).isInstanceOf(Stmt.Block.class);
+            Assertions.assertThat(((Stmt.Block) body.statements.get(0)).statements.get(0)).isInstanceOf(Stmt.Return.class);
+            Assertions.assertThat(errors.toString()).isEmpty();
+        } finally {
+            System.setErr(originalErr);
+        }
+    }
+
+    @Test
+    @DisplayName("Test lazy blocks are parsed on first use")
+    public void testLazyBlocks() {
+        List<Token> tokens = new Scanner("print 1; { var a = 2; { print a; } } print 3;").scanTokens();
+        List<Stmt> statements = new Parser(tokens, false, true).parse();
+
+        Assertions.assertThat(statements).hasSize(3);
+        LazyStatements body = (LazyStatements) ((Stmt.Block) statements.get(1)).statements;
+        Assertions.assertThat(body.isLoaded()).isFalse();
+
+        Assertions.assertThat(body).hasSize(2);
+        Assertions.assertThat(body.isLoaded()).isTrue();
+        Assertions.assertThat(body.get(0)).isInstanceOf(Stmt.Var.class);
+        // Nested blocks are deferred again
+        LazyStatements inner = (LazyStatements) ((Stmt.Block) body.get(1)).statements;
+        Assertions.assertThat(inner.isLoaded()).isFalse();
+        Assertions.assertThat(inner.get(0)).isInstanceOf(Stmt.Print.class);
+    }
+
+    @Test
+    @DisplayName("Test syntax errors in lazy blocks are reported on first use")
+    public void testLazyBlockErrors() {
+        java.io.PrintStream originalErr = System.err;
+        java.io.ByteArrayOutputStream errors = new java.io.ByteArrayOutputStream();
+        System.setErr(new java.io.PrintStream(errors));
+        try {
+            List<Token> tokens = new Scanner("{\nprint 1\n}").scanTokens();
+            new Parser(tokens).parse();
+            String eager = errors.toString();
+            Assertions.assertThat(eager).isNotEmpty();
+
+            errors.reset();
+            List<Stmt> statements = new Parser(tokens, false, true).parse();
+            Assertions.assertThat(errors.toString()).isEmpty();
+
+            List<Stmt> body = ((Stmt.Block) statements.get(0)).statements;
+            Assertions.assertThatThrownBy(body::size).isInstanceOf(Parser.ParseError.class);
+            Assertions.assertThatThrownBy(body::size).isInstanceOf(Parser.ParseError.class);
+            // Reported once, exactly as in eager mode
+            Assertions.assertThat(errors.toString()).isEqualTo(eager);
+
+            // An unclosed block is parsed eagerly, so its error is not deferred
+            errors.reset();
+            new Parser(new Scanner("{ print 1;").scanTokens(), false, true).parse();
+            Assertions.assertThat(errors.toString()).contains("Expect '}' after block.");
+        } finally {
+            System.setErr(originalErr);
+        }
+    }
 }
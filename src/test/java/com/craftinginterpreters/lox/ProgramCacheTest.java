@@ -0,0 +1,106 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.assertj.core.api.Assertions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Test class for the ProgramCache.
+ * Tests eviction and statistics, and that Lox runs cached programs like fresh ones.
+ */
+public class ProgramCacheTest {
+    private final PrintStream originalOut = System.out;
+    private final PrintStream originalErr = System.err;
+
+    @AfterEach
+    void tearDown() {
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        Lox.reset();
+    }
+
+    private static List<Stmt> program() {
+        return List.of();
+    }
+
+    @Test
+    @DisplayName("Test the least recently used program is evicted first")
+    void testEvictsLeastRecentlyUsed() {
+        ProgramCache cache = new ProgramCache(2, Long.MAX_VALUE);
+        List<Stmt> a = program();
+        cache.put("a", false, a, 1);
+        cache.put("b", false, program(), 1);
+        Assertions.assertThat(cache.get("a", false)).isSameAs(a);
+
+        // "b" is now the least recently used
+        cache.put("c", false, program(), 1);
+        Assertions.assertThat(cache.get("b", false)).isNull();
+        Assertions.assertThat(cache.get("a", false)).isSameAs(a);
+        Assertions.assertThat(cache.get("c", false)).isNotNull();
+        // The same source parsed lazily is a different program
+        Assertions.assertThat(cache.get("a", true)).isNull();
+
+        Assertions.assertThat(cache.stats()).isEqualTo(new ProgramCache.Stats(3, 2, 1, 2, 2 * (2 + 96)));
+    }
+
+    @Test
+    @DisplayName("Test programs are evicted to stay under the weight bound")
+    void testWeightBound() {
+        ProgramCache cache = new ProgramCache(100, 1_000);
+        cache.put("small", false, program(), 1);
+        cache.put("large", false, program(), 9);
+        Assertions.assertThat(cache.stats().entries()).isEqualTo(2);
+
+        cache.put("larger", false, program(), 10);
+        Assertions.assertThat(cache.stats().evictions()).isEqualTo(2);
+        Assertions.assertThat(cache.stats().weight()).isEqualTo(2 * 6 + 960);
+
+        // Too heavy on its own, so not kept at all
+        cache.put("huge", false, program(), 100);
+        Assertions.assertThat(cache.get("huge", false)).isNull();
+        Assertions.assertThat(cache.get("larger", false)).isNotNull();
+
+        cache.remove("larger", false);
+        Assertions.assertThat(cache.stats().entries()).isEqualTo(0);
+        Assertions.assertThat(cache.stats().weight()).isEqualTo(0);
+    }
+
+    @Test
+    @DisplayName("Test a cached program runs like a freshly compiled one")
+    void testLoxReusesPrograms() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output));
+        System.setErr(new PrintStream(errors));
+
+        String source = "var a = 1; { var b = a + 1; { var c = b + 1; print c; } print b; } print a; -\"x\";";
+        long hits = Lox.programs.stats().hits();
+        for (int i = 0; i < 3; i++) {
+            Lox.reset();
+            Assertions.assertThat(Lox.runScript(source)).isEqualTo(70);
+        }
+        Assertions.assertThat(Lox.programs.stats().hits()).isEqualTo(hits + 2);
+        Assertions.assertThat(output.toString()).isEqualTo("3\n2\n1\n".repeat(3));
+        Assertions.assertThat(errors.toString()).isEqualTo("Operand must be a number.\n[line 1]\n".repeat(3));
+
+        // Syntax errors are reported every time, also from lazily parsed blocks
+        String[] reported = new String[2];
+        for (int i = 0; i < 2; i++) {
+            output.reset();
+            errors.reset();
+            Lox.reset();
+            Lox.session().lazyBlocks = true;
+            Assertions.assertThat(Lox.runScript("print 1; { print 2 }")).isEqualTo(65);
+            Lox.reset();
+            Assertions.assertThat(Lox.runScript("print ;")).isEqualTo(65);
+            Assertions.assertThat(output.toString()).isEqualTo("1\n");
+            reported[i] = errors.toString();
+        }
+        Assertions.assertThat(reported[0]).isNotEmpty().isEqualTo(reported[1]);
+    }
+}
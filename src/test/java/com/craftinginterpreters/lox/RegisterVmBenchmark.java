@@ -0,0 +1,90 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares running the same arithmetic on block-local variables with the tree-walking
+ * {@link Interpreter}, after type inference as {@link Lox} runs it, and on the
+ * {@link RegisterVm}, after optimization. The variables start from a global the
+ * program cannot know the value of, so nothing is folded away. Also runs a counting
+ * loop that the interpreter hands over to the vm, whose locals start out as numbers.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec@bench}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegisterVmBenchmark {
+    private static final String SEED = "var seed = 1;";
+
+    private List<Stmt> statements;
+    private List<Stmt> loop;
+    private RegisterCode code;
+    private final Interpreter interpreter = new Interpreter();
+    private final RegisterVm vm = new RegisterVm();
+    private PrintStream originalOut;
+
+    @Setup
+    public void setUp() {
+        String source = "{ var n = seed; var total = seed; var k = seed;"
+                + "n = n + 1; total = total + n * k - n / 2; k = k < 100 ? k + 3 : k - 97;".repeat(500)
+                + "print total; }";
+        statements = parse(source);
+        new TypeInference().infer(statements);
+        Ir program = Ir.lower(parse(source));
+        IrOptimizer.optimize(program);
+        code = RegisterCode.compile(program);
+        loop = parse("{ var i = 0; var total = 0;"
+                + " while (i < 100000) { total = total + i * 2 - i / 2; i = i + 1; } print total; }");
+
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        interpreter.interpret(parse(SEED));
+        vm.interpret(RegisterCode.compile(Ir.lower(parse(SEED))));
+    }
+
+    private static List<Stmt> parse(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        return statements;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public void interpreter() {
+        interpreter.interpret(statements);
+    }
+
+    @Benchmark
+    public void registerVm() {
+        vm.interpret(code);
+    }
+
+    @Benchmark
+    public void loop() {
+        interpreter.interpret(loop);
+    }
+}
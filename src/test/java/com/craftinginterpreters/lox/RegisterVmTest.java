@@ -0,0 +1,212 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.assertj.core.api.Assertions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+/**
+ * Runs programs compiled to register code and checks that they behave exactly
+ * as with the tree-walking interpreter.
+ */
+public class RegisterVmTest {
+    private final PrintStream originalOut = System.out;
+    private final PrintStream originalErr = System.err;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @BeforeEach
+    void setUp() {
+        Lox.reset();
+        System.setOut(new PrintStream(output));
+        System.setErr(new PrintStream(output));
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        Lox.reset();
+    }
+
+    private static RegisterCode compile(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        Ir program = Ir.lower(statements);
+        IrOptimizer.optimize(program);
+        return RegisterCode.compile(program);
+    }
+
+    /**
+     * @return what the programs print and report when run one after the other by Lox
+     */
+    private String run(boolean registerVm, String... sources) {
+        Lox.reset();
+        Lox.session().registerVm = registerVm;
+        output.reset();
+        for (String source : sources) {
+            Lox.runScript(source);
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    private void assertSameBehavior(String... sources) {
+        Assertions.assertThat(run(true, sources)).as(String.join("\n", sources)).isEqualTo(run(false, sources));
+    }
+
+    @Test
+    @DisplayName("Test compiling values to registers and phis to moves")
+    void testCompile() {
+        RegisterCode program = compile("{ var a = g; print a > 0 ? a : -a; }");
+
+        // The false side negates a into r4; both sides move their result into r3, the phi
+        Assertions.assertThat(program.code).containsExactly(
+                RegisterCode.GET_GLOBAL, 0, 0, 1,
+                RegisterCode.BINARY, 1, TokenType.GREATER.ordinal(), 1, 0, 2,
+                RegisterCode.JUMP_IF_FALSE, 1, 18,
+                RegisterCode.MOVE, 3, 0,
+                RegisterCode.JUMP, 26,
+                RegisterCode.UNARY, 4, TokenType.MINUS.ordinal(), 1, 0,
+                RegisterCode.MOVE, 3, 4,
+                RegisterCode.PRINT, 3,
+                RegisterCode.HALT);
+        Assertions.assertThat(program.registers).containsExactly(null, null, 0.0, null, null);
+        Assertions.assertThat(program.names).containsExactly("g");
+    }
+
+    @Test
+    @DisplayName("Test locals assigned in ternaries")
+    void testPhis() {
+        assertSameBehavior("var g = 1; var h = 2;",
+                "var c = true; { var a = g; var b = h; print c ? (a = b) : (b = a); print a; print b;"
+                        + " print !c ? (a = -b) : (b = -a); print a; print b; }");
+    }
+
+    @Test
+    @DisplayName("Test loops whose phis swap values, which needs a temporary register")
+    void testLoops() {
+        String swap = "{ var a = 1; var b = 2; var n = g; while (n > 0) { var t = a; a = b; b = t; n = n - 1; } print a; print b; }";
+        RegisterCode program = compile(swap);
+        // The phis of a, b and n are r1, r3 and r5; at the back edge a and b, which are
+        // numbers, swap through r9
+        Assertions.assertThat(program.code).containsSequence(
+                RegisterCode.MOVE_NUMBER, 9, 1,
+                RegisterCode.MOVE_NUMBER, 1, 3,
+                RegisterCode.MOVE_NUMBER, 3, 9);
+        for (int n = 0; n < 4; n++) {
+            assertSameBehavior("var g = " + n + ";", swap);
+        }
+        assertSameBehavior("var i = 0; for (var j = 0; j < 3; j = j + 1) { i = i + j; print i; }",
+                "while (i > 0) { i = i - 1; print -nil; }", "print i;");
+    }
+
+    @Test
+    @DisplayName("Test numbers computed in number registers, and boxed where used as objects")
+    void testNumbers() {
+        String sum = "{ var i = 0; var total = g; while (i < 3) { total = total + i * 2; i = i + 1; } print total; print -i; }";
+        RegisterCode program = compile(sum);
+        // i, in r1, is a number, so the loop compares and multiplies it unboxed; total, in r3,
+        // may be anything, so i * 2 is boxed into r9 to be added to it
+        Assertions.assertThat(program.code).containsSequence(
+                RegisterCode.COMPARE, 4, TokenType.LESS.ordinal(), 1, 5,
+                RegisterCode.JUMP_IF_FALSE, 4, 43,
+                RegisterCode.MULTIPLY, 6, 1, 7,
+                RegisterCode.BOX, 9, 6,
+                RegisterCode.BINARY, 8, TokenType.PLUS.ordinal(), 1, 3, 9,
+                RegisterCode.ADD, 10, 1, 11);
+        Assertions.assertThat(program.code).containsSequence(
+                RegisterCode.NEGATE, 12, 1,
+                RegisterCode.BOX, 13, 12,
+                RegisterCode.PRINT, 13);
+        Assertions.assertThat(program.numbers).containsExactly(0, 0, 0, 0, 0, 3, 0, 2, 0, 0, 0, 1, 0, 0);
+        for (String g : List.of("1", "0.5", "\"s\"", "nil")) {
+            assertSameBehavior("var g = " + g + ";", sum);
+        }
+        assertSameBehavior("{ var z = 0; var n = 0; while (n < 2) { n = n + 1; z = -z; print z; print z / z;"
+                + " print 1 / z; print z == 0; print n >= 1.5; } }");
+        // A phi of a number and a string, and a boxed number added to a string
+        assertSameBehavior("{ var a = 1; var n = 0; while (n < 3) { n = n + 1; print a; a = n > 1 ? \"s\" : n;"
+                + " print a + \"!\"; } }");
+    }
+
+    @Test
+    @DisplayName("Test calls from register code run on the interpreter")
+    void testCalls() {
+        RegisterCode program = compile("fun f(a, b) { return a + b; } print f(1, g);");
+        // The call on line 1 puts its result in r2, and passes the constant 1 in r3 and g in r1
+        // to the function, a constant in r0
+        Assertions.assertThat(program.code).containsSequence(RegisterCode.CALL, 2, 1, 2, 0, 3, 1);
+        assertSameBehavior("var g = 2;", "fun f(a, b) { return a + b; } print f(1, g);",
+                "{ var n = 0; while (n < 3) { n = n + 1; print f(n, n); } print f; }",
+                "print f(1);\nprint 2;");
+    }
+
+    @Test
+    @DisplayName("Test runtime errors and globals left behind")
+    void testRuntimeErrors() {
+        assertSameBehavior("var a = 1; a = 2;\nprint -\"s\";\na = 4;", "print a;", "print b;");
+        Assertions.assertThat(run(true, "print 1;\nprint -nil;")).isEqualTo("1\nOperand must be a number.\n[line 2]\n");
+        Assertions.assertThat(Lox.session().hadRuntimeError).isTrue();
+    }
+
+    @Test
+    @DisplayName("Test random programs behave as with the interpreter")
+    void testRandomPrograms() {
+        Random random = new Random(44);
+        for (int i = 0; i < 300; i++) {
+            assertSameBehavior(IrTest.RANDOM_GLOBALS, IrTest.randomProgram(random),
+                    "print g0;", "print g1;", "print g2;", "print g3;");
+        }
+    }
+
+    @Test
+    @DisplayName("Test lazily parsed blocks are all parsed before the program runs")
+    void testLazyBlocks() {
+        Lox.session().lazyBlocks = true;
+        Lox.session().registerVm = true;
+        Assertions.assertThat(Lox.runScript("print 1; { print 2; } { print 3 }")).isEqualTo(65);
+        Assertions.assertThat(output.toString()).doesNotContain("1\n").contains("Expect ';' after value.");
+    }
+
+    @Test
+    @DisplayName("Test deeply nested programs")
+    void testDeepNesting() {
+        int depth = 100_000;
+        assertSameBehavior("var g = 1;", "print " + "-".repeat(depth) + "g;");
+        assertSameBehavior("var c = true; print " + "(c ? ".repeat(depth) + "1" + " : 2)".repeat(depth) + ";");
+        assertSameBehavior("var c = true; " + "while (c) ".repeat(depth) + "c = false; print c;");
+    }
+
+    @TestFactory
+    @DisplayName("Register VM Examples Tests")
+    List<DynamicTest> examplesTests() throws IOException {
+        Path directory = Paths.get("t");
+        try (var files = Files.list(directory)) {
+            return files
+                    .filter(path -> path.toString().endsWith(".lox"))
+                    .filter(path -> Files.exists(Paths.get(path + ".out")))
+                    .sorted()
+                    .map(path -> dynamicTest(directory.relativize(path).toString(), () -> {
+                        String expected = Files.readString(Paths.get(path + ".out"), StandardCharsets.UTF_8).trim();
+                        String source = Files.readString(path, StandardCharsets.UTF_8);
+                        Assertions.assertThat(run(true, source).trim()).isEqualTo(expected);
+                    }))
+                    .collect(Collectors.toList());
+        }
+    }
+}
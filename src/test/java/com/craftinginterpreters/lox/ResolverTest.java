@@ -0,0 +1,179 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.assertj.core.api.Assertions;
+
+import java.util.List;
+
+public class ResolverTest {
+
+    /**
+     * Helper method to scan, parse and resolve a source string.
+     */
+    private List<Stmt> resolve(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        return statements;
+    }
+
+    @Test
+    @DisplayName("Test counting declarations per block")
+    void testBlockDeclarations() {
+        List<Stmt> statements = resolve("{ print 1; { var a = 1; var b = 2; var a = 3; } }");
+
+        Stmt.Block outer = (Stmt.Block) statements.get(0);
+        Stmt.Block inner = (Stmt.Block) outer.statements.get(1);
+
+        Assertions.assertThat(outer.declarations).isEqualTo(0);
+        Assertions.assertThat(inner.declarations).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Test unresolved blocks are marked as unknown")
+    void testUnresolvedBlock() {
+        List<Stmt> statements = new Parser(new Scanner("{ var a = 1; }").scanTokens()).parse();
+
+        Assertions.assertThat(((Stmt.Block) statements.get(0)).declarations).isEqualTo(-1);
+    }
+
+    @Test
+    @DisplayName("Test loops know how many slots are live around them")
+    void testLoopSlots() {
+        List<Stmt> statements = resolve("""
+            while (false) print 1;
+            { var a = 1; while (a < 3) { var b = a; a = b + 1; } var c = a; for (var i = 0; i < 2; i = i + 1) c = i; }
+            """);
+
+        Assertions.assertThat(((Stmt.While) statements.get(0)).slots).isEqualTo(0);
+        Stmt.Block block = (Stmt.Block) statements.get(1);
+        Assertions.assertThat(((Stmt.While) block.statements.get(1)).slots).isEqualTo(1);
+        // A for loop with an initializer is a block around the loop, so its counter is below it too
+        Stmt.Block loop = (Stmt.Block) block.statements.get(3);
+        Assertions.assertThat(((Stmt.While) loop.statements.get(1)).slots).isEqualTo(3);
+    }
+
+    @Test
+    @DisplayName("Test function bodies get frames of their own")
+    void testFunctionFrames() {
+        List<Stmt> statements = resolve("""
+            fun f(a, b) { var c = a; { var d = b; } { var e = c; var g = e; } return c; }
+            { var x = 1; fun h() { var y = 2; return y; } print h(); }
+            """);
+
+        Stmt.Function f = (Stmt.Function) statements.get(0);
+        Assertions.assertThat(f.slot).isEqualTo(-1);
+        // The parameters come first, and sibling blocks share the slots after c
+        Assertions.assertThat(f.body.firstSlot).isEqualTo(2);
+        Assertions.assertThat(((Stmt.Var) f.body.statements.get(0)).slot).isEqualTo(2);
+        Assertions.assertThat(((Expr.Variable) ((Stmt.Var) f.body.statements.get(0)).initializer).slot).isEqualTo(0);
+        Assertions.assertThat(f.frameSize).isEqualTo(5);
+
+        Stmt.Block block = (Stmt.Block) statements.get(1);
+        Stmt.Function h = (Stmt.Function) block.statements.get(1);
+        Assertions.assertThat(h.slot).isEqualTo(1);
+        // Slots start over in the frame of the call
+        Assertions.assertThat(((Stmt.Var) h.body.statements.get(0)).slot).isEqualTo(0);
+        Assertions.assertThat(h.frameSize).isEqualTo(1);
+        Expr.Call call = (Expr.Call) ((Stmt.Print) block.statements.get(2)).expression;
+        Assertions.assertThat(((Expr.Variable) call.callee).slot).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Test functions cannot use the locals around them")
+    void testCapturedLocals() {
+        java.io.PrintStream originalErr = System.err;
+        java.io.ByteArrayOutputStream errors = new java.io.ByteArrayOutputStream();
+        System.setErr(new java.io.PrintStream(errors));
+        try {
+            Lox.session().hadError = false;
+            resolve("var g = 1; { var a = 1; fun f(b) { print g; print b; var a = 2; print a; } }");
+            Assertions.assertThat(Lox.session().hadError).isFalse();
+
+            resolve("{ var a = 1;\nfun f() { print a; } }");
+            Assertions.assertThat(errors.toString())
+                    .isEqualTo("[line 2] Error at 'a': Can't use a local variable of an enclosing scope in a function.\n");
+            Assertions.assertThat(Lox.session().hadError).isTrue();
+        } finally {
+            System.setErr(originalErr);
+            Lox.session().hadError = false;
+        }
+    }
+
+    @Test
+    @DisplayName("Test functions refer to the functions of enclosing blocks by declaration")
+    void testBlockFunctions() {
+        List<Stmt> statements = resolve("""
+            { fun f(n) { return f(n - 1); } fun g() { return f(1); } print g(); }
+            """);
+
+        Stmt.Block block = (Stmt.Block) statements.get(0);
+        Stmt.Function f = (Stmt.Function) block.statements.get(0);
+        Stmt.Function g = (Stmt.Function) block.statements.get(1);
+        Expr.Variable self = (Expr.Variable) ((Expr.Call) ((Stmt.Return) f.body.statements.get(0)).value).callee;
+        Expr.Variable sibling = (Expr.Variable) ((Expr.Call) ((Stmt.Return) g.body.statements.get(0)).value).callee;
+        Assertions.assertThat(self.function).isSameAs(f);
+        Assertions.assertThat(self.slot).isEqualTo(-1);
+        Assertions.assertThat(sibling.function).isSameAs(f);
+        // The block itself still reads its slot
+        Expr.Variable call = (Expr.Variable) ((Expr.Call) ((Stmt.Print) block.statements.get(2)).expression).callee;
+        Assertions.assertThat(call.slot).isEqualTo(1);
+        Assertions.assertThat(call.function).isNull();
+    }
+
+    @Test
+    @DisplayName("Test a local function cannot be assigned once a function refers to it")
+    void testAssignedBlockFunctions() {
+        java.io.PrintStream originalErr = System.err;
+        java.io.ByteArrayOutputStream errors = new java.io.ByteArrayOutputStream();
+        System.setErr(new java.io.PrintStream(errors));
+        try {
+            // Assigned before it is referred to, so it no longer holds the function
+            resolve("{ fun g() { return 1; }\ng = 2;\nfun h() { return g(); } }");
+            resolve("{ fun g() { return 1; }\nfun h() { return g(); }\ng = 2; }");
+            Assertions.assertThat(errors.toString()).isEqualTo("""
+                [line 3] Error at 'g': Can't use a local variable of an enclosing scope in a function.
+                [line 3] Error at 'g': Can't assign to a local function that a function refers to.
+                """);
+        } finally {
+            System.setErr(originalErr);
+            Lox.session().hadError = false;
+        }
+    }
+
+    @Test
+    @DisplayName("Test assigning stack slots to block variables")
+    void testSlots() {
+        List<Stmt> statements = resolve("""
+            var g = 0;
+            {
+              var a = 1;
+              { var b = a; }
+              { var c = g; var c = 2; a = c; }
+            }
+            """);
+
+        Assertions.assertThat(((Stmt.Var) statements.get(0)).slot).isEqualTo(-1);
+
+        Stmt.Block outer = (Stmt.Block) statements.get(1);
+        Stmt.Var a = (Stmt.Var) outer.statements.get(0);
+        Stmt.Block first = (Stmt.Block) outer.statements.get(1);
+        Stmt.Block second = (Stmt.Block) outer.statements.get(2);
+        Stmt.Var b = (Stmt.Var) first.statements.get(0);
+        Stmt.Var c = (Stmt.Var) second.statements.get(0);
+        Stmt.Var c2 = (Stmt.Var) second.statements.get(1);
+        Expr.Assign assign = (Expr.Assign) ((Stmt.Expression) second.statements.get(2)).expression;
+
+        Assertions.assertThat(a.slot).isEqualTo(0);
+        Assertions.assertThat(((Expr.Variable) b.initializer).slot).isEqualTo(0);
+        // Sibling blocks reuse the same slot
+        Assertions.assertThat(b.slot).isEqualTo(1);
+        Assertions.assertThat(c.slot).isEqualTo(1);
+        Assertions.assertThat(c2.slot).isEqualTo(1);
+        Assertions.assertThat(second.firstSlot).isEqualTo(1);
+        Assertions.assertThat(second.declarations).isEqualTo(1);
+        // Globals are left to the environment
+        Assertions.assertThat(((Expr.Variable) c.initializer).slot).isEqualTo(-1);
+        Assertions.assertThat(assign.slot).isEqualTo(0);
+    }
+}
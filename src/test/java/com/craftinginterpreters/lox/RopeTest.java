@@ -0,0 +1,46 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+import org.assertj.core.api.Assertions;
+
+public class RopeTest {
+
+    @Test
+    @DisplayName("Test short concatenations stay flat strings")
+    void testShortConcatenation() {
+        CharSequence result = Rope.concat("hello", " world");
+        Assertions.assertThat(result).isInstanceOf(String.class);
+        Assertions.assertThat(result.toString()).isEqualTo("hello world");
+    }
+
+    @Test
+    @DisplayName("Test long concatenations build a rope that flattens on demand")
+    void testLongConcatenation() {
+        CharSequence result = "";
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 200_000; i++) {
+            String piece = "piece " + i + ";";
+            result = Rope.concat(result, piece);
+            expected.append(piece);
+        }
+
+        Assertions.assertThat(result).isInstanceOf(Rope.class);
+        Assertions.assertThat(result.length()).isEqualTo(expected.length());
+        Assertions.assertThat(result.toString()).isEqualTo(expected.toString());
+        Assertions.assertThat(result.charAt(7)).isEqualTo(expected.charAt(7));
+    }
+
+    @Test
+    @DisplayName("Test ropes sharing pieces flatten independently")
+    void testSharedPieces() {
+        String chunk = "x".repeat(100);
+        CharSequence shared = Rope.concat(chunk, chunk);
+        CharSequence left = Rope.concat("<", shared);
+        CharSequence right = Rope.concat(shared, ">");
+
+        Assertions.assertThat(shared.toString()).isEqualTo(chunk + chunk);
+        Assertions.assertThat(left.toString()).isEqualTo("<" + chunk + chunk);
+        Assertions.assertThat(right.toString()).isEqualTo(chunk + chunk + ">");
+    }
+}
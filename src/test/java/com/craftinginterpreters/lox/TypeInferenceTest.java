@@ -0,0 +1,169 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.assertj.core.api.Assertions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test class for TypeInference.
+ * Tests which operators are proven to have numeric operands, and that the
+ * interpreter still behaves the same when it skips their checks.
+ */
+public class TypeInferenceTest {
+    private final PrintStream originalOut = System.out;
+    private final PrintStream originalErr = System.err;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+    @BeforeEach
+    void setUp() {
+        System.setOut(new PrintStream(output));
+        System.setErr(new PrintStream(errors));
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        Lox.reset();
+    }
+
+    private static List<Stmt> infer(String source, boolean lazyBlocks) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens(), false, lazyBlocks).parse();
+        new Resolver().resolve(statements);
+        new TypeInference().infer(statements);
+        return statements;
+    }
+
+    /**
+     * Whether the operator printed by each print statement, in program order, has proven numeric operands.
+     */
+    private static List<Boolean> proven(List<Stmt> statements) {
+        List<Boolean> proven = new ArrayList<>();
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.Block block) {
+                proven.addAll(proven(block.statements));
+            } else if (stmt instanceof Stmt.While loop) {
+                proven.addAll(proven(List.of(loop.body)));
+            } else if (stmt instanceof Stmt.Print print) {
+                int types = print.expression instanceof Expr.Binary binary
+                        ? binary.operandTypes
+                        : ((Expr.Unary) print.expression).operandTypes;
+                proven.add(types == TypeInference.NUMBER);
+            }
+        }
+        return proven;
+    }
+
+    private static List<Boolean> proven(String source) {
+        return proven(infer(source, false));
+    }
+
+    @Test
+    @DisplayName("Test numbers flow through variables and arithmetic")
+    void testNumbers() {
+        Assertions.assertThat(proven("var a = 1; var b = a * 2; print a + b; print -(a - b); print b / a < 3;"))
+                .containsExactly(true, true, true);
+        Assertions.assertThat(proven("{ var a = 1; { var b = -a; print b + a; } print a == 1; }"))
+                .containsExactly(true, true);
+        Assertions.assertThat(proven("var a; a = 1; print a + 1; var a = \"s\"; print a + a; print !a;"))
+                .containsExactly(true, false, false);
+    }
+
+    @Test
+    @DisplayName("Test values of unknown type keep their checks")
+    void testUnknowns() {
+        // Globals from earlier programs, or never defined
+        Assertions.assertThat(proven("print g + 1; print -g;")).containsExactly(false, false);
+        Assertions.assertThat(proven("var a = \"x\"; print a + \"y\"; print 1 + nil;")).containsExactly(false, false);
+        // A slot reused by a sibling block has the type of its new variable
+        Assertions.assertThat(proven("{ { var a = 1; } { var b = \"s\"; print b + b; } }")).containsExactly(false);
+    }
+
+    @Test
+    @DisplayName("Test the branches of a ternary are joined")
+    void testTernary() {
+        Assertions.assertThat(proven("var a = 1; var c = true; c ? (a = \"s\") : 1; print a - 1;"))
+                .containsExactly(false);
+        Assertions.assertThat(proven("var a = 1; var c = true; c ? 1 : (a = nil); print a - 1;"))
+                .containsExactly(false);
+        Assertions.assertThat(proven("var a = \"s\"; var c = true; c ? (a = 2) : (a = 3); print a * 2; print (c ? 1 : 2) + 1;"))
+                .containsExactly(true, true);
+        Assertions.assertThat(proven("var c = true; print (c ? 1 : \"s\") + 1;")).containsExactly(false);
+    }
+
+    @Test
+    @DisplayName("Test types that change around a loop are joined at its header")
+    void testLoops() {
+        Assertions.assertThat(proven("{ var a = 1; var b = 1; while (a < 10) { print a + 1; print b + 1; b = \"s\"; a = a + 1; }"
+                + " print a - 1; print b + 1; }"))
+                .containsExactly(true, false, true, false);
+        // The string only reaches c on the third iteration
+        Assertions.assertThat(proven("{ var a = 1; var b = 1; var c = 1; while (c < 3) { print c + 1; c = b; b = a; a = \"s\"; } }"))
+                .containsExactly(false);
+        Assertions.assertThat(proven("var n = 0; for (var i = 0; i < 3; i = i + 1) { n = n + i; print n - i; } print n * 2;"))
+                .containsExactly(true, true);
+    }
+
+    @Test
+    @DisplayName("Test calls may change any global, and bodies know nothing of their callers")
+    void testFunctions() {
+        List<Stmt> statements = infer("""
+            var a = 1; var b = 2;
+            fun f(n) { var m = 1; print m + 1; print n + 1; print a + 1; return n; }
+            print a + 1; f(1); print a + 1;
+            { var c = 1; var d = f(c); print c + 1; print d + 1; }
+            """, false);
+        Stmt.Function f = (Stmt.Function) statements.get(2);
+        Assertions.assertThat(proven(f.body.statements)).containsExactly(true, false, false);
+        Assertions.assertThat(proven(statements)).containsExactly(true, false, true, false);
+        Assertions.assertThat(TypeInference.typeOf(LoxFunction.of(f))).isEqualTo(TypeInference.FUNCTION);
+    }
+
+    @Test
+    @DisplayName("Test a block that is not parsed yet may change any variable")
+    void testLazyBlocks() {
+        List<Stmt> statements = infer("var a = 1; { a = \"s\"; { var b = 2; print b * 2; } } print a + 1;", true);
+        Assertions.assertThat(proven(List.of(statements.get(2)))).containsExactly(false);
+
+        // The block is analyzed on its own once it is loaded
+        Lox.session().interpreter.interpret(statements);
+        Assertions.assertThat(proven(statements)).containsExactly(true, false);
+        Assertions.assertThat(errors.toString()).startsWith("Operands must be two numbers or two strings.");
+    }
+
+    @Test
+    @DisplayName("Test proven code gives the same results without its checks")
+    void testResults() {
+        String source = """
+            var a = 3;
+            var b = a * 2 - -a;
+            { var c = (b / a) + a * a; print c; print c > b; print c <= 12; print -c; }
+            var s = "s";
+            print s + s;
+            a = nil;
+            print -a;
+            """;
+        Assertions.assertThat(Lox.runScript(source)).isEqualTo(70);
+        Assertions.assertThat(output.toString()).isEqualTo("12\ntrue\ntrue\n-12\nss\n");
+        Assertions.assertThat(errors.toString()).isEqualTo("Operand must be a number.\n[line 7]\n");
+    }
+
+    @Test
+    @DisplayName("Test deeply nested proven expressions")
+    void testDeepNesting() {
+        int depth = 100_000;
+        Assertions.assertThat(Lox.runScript("var a = 1; print " + "-".repeat(depth) + "a;")).isEqualTo(0);
+        Assertions.assertThat(Lox.runScript("var a = 1; print a" + " + a".repeat(depth) + ";")).isEqualTo(0);
+        Assertions.assertThat(Lox.runScript("var a = 1; print " + "(".repeat(depth) + "a + 1" + ")".repeat(depth) + ";"))
+                .isEqualTo(0);
+        Assertions.assertThat(output.toString()).isEqualTo("1\n100001\n2\n");
+    }
+}